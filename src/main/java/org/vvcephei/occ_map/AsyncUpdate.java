@@ -0,0 +1,97 @@
+package org.vvcephei.occ_map;
+
+import java.util.ConcurrentModificationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * One {@link OCCHashMap#updateAsync} in flight.  Each attempt runs on the
+ * caller's executor: read the key, apply the function, and commit only if
+ * the key still holds what was read.  A lost race schedules the next attempt
+ * after a randomized, exponentially growing delay, so no thread ever spins or
+ * sleeps on a conflict.
+ */
+final class AsyncUpdate<TypeK, TypeV extends Versioned> implements Runnable {
+  // Backoff before attempt n+1 is uniform in [0, min(MAX, BASE << n)).
+  private static final long BASE_BACKOFF_NANOS = 1000;
+  private static final long MAX_BACKOFF_NANOS = 10 * 1000 * 1000;
+
+  private final OCCHashMap<TypeK, TypeV> _map;
+  private final TypeK _key;
+  private final Function<? super TypeV, ? extends TypeV> _fn;
+  private final Executor _executor;
+  private final int _maxAttempts;
+  final CompletableFuture<TypeV> _future = new CompletableFuture<TypeV>();
+  private int _attempts;      // Attempts never overlap, and the executor orders them
+
+  AsyncUpdate(final OCCHashMap<TypeK, TypeV> map, final TypeK key, final Function<? super TypeV, ? extends TypeV> fn,
+              final Executor executor, final int maxAttempts) {
+    _map = map;
+    _key = key;
+    _fn = fn;
+    _executor = executor;
+    _maxAttempts = maxAttempts;
+  }
+
+  void start() {
+    submit();
+  }
+
+  public void run() {
+    try {
+      if (attempt()) return;
+    } catch (Throwable t) {   // The function threw, or produced a stale version
+      _future.completeExceptionally(t);
+      return;
+    }
+    if (++_attempts >= _maxAttempts) {
+      _future.completeExceptionally(new ConcurrentModificationException(
+          "Gave up updating key[" + _key + "] after " + _attempts + " conflicting attempts"));
+      return;
+    }
+    final long window = Math.min(MAX_BACKOFF_NANOS, BASE_BACKOFF_NANOS << Math.min(_attempts, 20));
+    Delayer.INSTANCE.schedule(new Runnable() {
+      public void run() { submit(); }
+    }, ThreadLocalRandom.current().nextLong(window), TimeUnit.NANOSECONDS);
+  }
+
+  private void submit() {
+    try {
+      _executor.execute(this);
+    } catch (Throwable t) {   // Rejected, typically because it shut down
+      _future.completeExceptionally(t);
+    }
+  }
+
+  // One read-apply-commit round; false if somebody else wrote in between.
+  private boolean attempt() {
+    final TypeV cur = _map.get(_key);
+    final TypeV next = _fn.apply(cur);
+    final boolean won = _map.commitUpdate(_key, cur, next);
+    if (won) _future.complete(next);
+    return won;
+  }
+
+  // Hands delayed attempts back to their executors.  It only ever runs that
+  // hand-off, so a single daemon thread serves every map.
+  private static final class Delayer {
+    static final ScheduledExecutorService INSTANCE;
+    static {
+      final ScheduledThreadPoolExecutor s = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+        public Thread newThread(final Runnable r) {
+          final Thread t = new Thread(r, "occ-map-update-backoff");
+          t.setDaemon(true);
+          return t;
+        }
+      });
+      s.setRemoveOnCancelPolicy(true);
+      INSTANCE = s;
+    }
+  }
+}
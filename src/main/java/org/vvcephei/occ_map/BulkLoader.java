@@ -0,0 +1,213 @@
+package org.vvcephei.occ_map;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Fills an {@link OCCHashMap} with many entries at once, for restores and
+ * initial population.  Entries are {@link #add added} to a buffer, then
+ * {@link #load} builds a table of its final size in one go and puts it in
+ * place of the map's, replacing whatever the map held.
+ * <p/>
+ * Putting the same entries one at a time into a small map pays for every
+ * intermediate table: the probes of each, and the copy to the next.  The
+ * loader allocates the final table up front and writes its slots directly,
+ * outside the resize and copy protocol.  It hashes the keys on several
+ * threads, partitions them by the range of the table their home slots fall
+ * in, and has each thread write one range; probes cross into the next
+ * range only near its start, so threads seldom meet.  Readers see the old
+ * table until the new one is complete.
+ * <p/>
+ * Writes to the map during {@link #load} are lost with the old table, so
+ * it is meant for a map nothing else is using yet.  A key added twice keeps
+ * its later version.  Maps with snapshots enabled cannot be bulk loaded.
+ * A loader is used by one thread at a time, and may be reused.
+ */
+public final class BulkLoader<TypeK, TypeV extends Versioned> {
+  private static final int MIN_PER_THREAD = 1 << 12; // Fewer entries than this are not worth a thread
+
+  private final OCCHashMap<TypeK, TypeV> _map;
+  private final int _expected;
+  private final int _threads;
+  private Object[] _keys;
+  private Object[] _vals;
+  private int _n;
+
+  /**
+   * A loader for about <tt>expected</tt> entries, on as many threads as
+   * there are processors.  More may be added, at the cost of growing the
+   * buffer.
+   */
+  public BulkLoader(final OCCHashMap<TypeK, TypeV> map, final int expected) {
+    this(map, expected, Runtime.getRuntime().availableProcessors());
+  }
+
+  /** A loader for about <tt>expected</tt> entries, on up to <tt>threads</tt> threads. */
+  public BulkLoader(final OCCHashMap<TypeK, TypeV> map, final int expected, final int threads) {
+    if (map == null) throw new NullPointerException();
+    if (expected < 0 || threads < 1) throw new IllegalArgumentException();
+    _map = map;
+    _expected = expected;
+    _threads = threads;
+    _keys = new Object[expected];
+    _vals = new Object[expected];
+  }
+
+  /**
+   * @throws NullPointerException if the key or value is null
+   */
+  public void add(final TypeK key, final TypeV val) {
+    if (val == null) throw new NullPointerException();
+    addRaw(key, val);
+  }
+
+  // Add a value as the table holds it, which may be a versioned removal
+  void addRaw(final Object key, final Object val) {
+    if (key == null) throw new NullPointerException();
+    if (_n == _keys.length) {
+      final int len = Math.max(16, _n + (_n >> 1));
+      _keys = Arrays.copyOf(_keys, len);
+      _vals = Arrays.copyOf(_vals, len);
+    }
+    _keys[_n] = key;
+    _vals[_n++] = val;
+  }
+
+  /** The number of entries added since the last load. */
+  public int size() {
+    return _n;
+  }
+
+  /**
+   * Replace the map's contents with the entries added, and empty the
+   * buffer.
+   *
+   * @throws IllegalStateException if the map has snapshots enabled
+   */
+  public void load() {
+    final int n = _n;
+    final Object[] keys = _keys, vals = _vals;
+    final Object[] kvs = _map.bulkTable(Math.max(n, _expected));
+    final int log2 = Integer.numberOfTrailingZeros(OCCHashMap.bulkLen(kvs));
+    final int T = Math.max(1, Math.min(_threads, n / MIN_PER_THREAD));
+
+    // Hash each slice of the input, counting the keys it has per range
+    final int[] hashes = new int[n];
+    final int[][] counts = new int[T][T];
+    parallel(T, new Task() {
+      void run(final int t) {
+        final int[] C = counts[t];
+        for (int i = lo(t, T, n); i < lo(t + 1, T, n); i++) {
+          final int h = _map.bulkHash(kvs, keys[i]);
+          hashes[i] = h;
+          C[range(h, log2, T)]++;
+        }
+      }
+    });
+
+    // Where each slice's keys of each range go: ranges in order, and the
+    // slices in order within a range
+    final int[] start = new int[T + 1];
+    final int[][] next = new int[T][T];
+    for (int p = 0, at = 0; p < T; p++) {
+      start[p] = at;
+      for (int t = 0; t < T; t++) {
+        next[t][p] = at;
+        at += counts[t][p];
+      }
+    }
+    start[T] = n;
+    final int[] order = new int[n];
+    parallel(T, new Task() {
+      void run(final int t) {
+        final int[] at = next[t];
+        for (int i = lo(t, T, n); i < lo(t + 1, T, n); i++) order[at[range(hashes[i], log2, T)]++] = i;
+      }
+    });
+
+    // Each thread writes the keys of one range
+    final long[][] added = new long[T][2];
+    final List<List<Integer>> over = new ArrayList<List<Integer>>();
+    for (int p = 0; p < T; p++) over.add(new ArrayList<Integer>());
+    parallel(T, new Task() {
+      void run(final int p) {
+        for (int j = start[p]; j < start[p + 1]; j++) {
+          final int i = order[j];
+          if (!_map.bulkPut(kvs, keys[i], hashes[i], vals[i], added[p])) over.get(p).add(i);
+        }
+      }
+    });
+    long slots = 0, live = 0;
+    for (final long[] A : added) {
+      slots += A[0];
+      live += A[1];
+    }
+    _map.bulkPublish(kvs, slots, live);
+
+    // Keys past the reprobe limit (only for badly colliding hashes) go in
+    // the ordinary way, which may resize
+    for (final List<Integer> L : over)
+      for (final int i : L) _map.bulkOverflow(keys[i], vals[i]);
+
+    Arrays.fill(keys, 0, n, null);
+    Arrays.fill(vals, 0, n, null);
+    _n = 0;
+  }
+
+  // Slice t of [0,n), for T slices
+  private static int lo(final int t, final int T, final int n) {
+    return (int) ((long) n * t / T);
+  }
+
+  // Which of T ranges of the table a key's home slot falls in
+  private static int range(final int h, final int log2, final int T) {
+    return (int) ((((long) h & ((1L << log2) - 1)) * T) >>> log2);
+  }
+
+  // --- threads -------------------------------------------------------------
+  private abstract static class Task {
+    abstract void run(int t);
+  }
+
+  // Run the task for 0..T-1, each on its own thread (0 on this one), and
+  // rethrow the first failure.
+  private static void parallel(final int T, final Task task) {
+    final Throwable[] failed = new Throwable[T];
+    final Thread[] threads = new Thread[T];
+    for (int t = 1; t < T; t++) {
+      final int u = t;
+      threads[t] = new Thread("OCCHashMap-bulk-load-" + t) {
+        public void run() {
+          try {
+            task.run(u);
+          } catch (Throwable e) {
+            failed[u] = e;
+          }
+        }
+      };
+      threads[t].start();
+    }
+    try {
+      task.run(0);
+    } catch (Throwable e) {
+      failed[0] = e;
+    }
+    boolean interrupted = false;
+    for (int t = 1; t < T; t++)
+      while (true) {
+        try {
+          threads[t].join();
+          break;
+        } catch (InterruptedException e) {
+          interrupted = true;   // Finish anyway: the table is half written
+        }
+      }
+    if (interrupted) Thread.currentThread().interrupt();
+    for (final Throwable e : failed) {
+      if (e instanceof RuntimeException) throw (RuntimeException) e;
+      if (e instanceof Error) throw (Error) e;
+      if (e != null) throw new IllegalStateException(e);
+    }
+  }
+}
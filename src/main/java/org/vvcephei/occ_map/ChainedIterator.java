@@ -0,0 +1,39 @@
+package org.vvcephei.occ_map;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * One iterator after the other, as for walking every shard of a {@link
+ * ShardedOCCMap}.  {@code remove} goes to the iterator that returned the
+ * last element.
+ */
+final class ChainedIterator<T> implements Iterator<T> {
+  private final Iterator<? extends T>[] _parts;
+  private int _cur;
+  private Iterator<? extends T> _last;
+
+  ChainedIterator(final Iterator<? extends T>[] parts) {
+    _parts = parts;
+  }
+
+  public boolean hasNext() {
+    while (_cur < _parts.length) {
+      if (_parts[_cur].hasNext()) return true;
+      _cur++;
+    }
+    return false;
+  }
+
+  public T next() {
+    if (!hasNext()) throw new NoSuchElementException();
+    _last = _parts[_cur];
+    return _last.next();
+  }
+
+  public void remove() {
+    if (_last == null) throw new IllegalStateException();
+    _last.remove();
+    _last = null;
+  }
+}
@@ -0,0 +1,192 @@
+package org.vvcephei.occ_map;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.io.StreamCorruptedException;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The checkpoints of one {@link OCCHashMap}, backing
+ * {@link OCCHashMap#checkpoint} and {@link OCCHashMap#incrementalCheckpoint}:
+ * which keys were written since the last one, and the stream format.
+ *
+ * <p>Writers add each key they commit to the current epoch's key set, keyed
+ * by key rather than slot, so it survives resizes.  A checkpoint swaps in a
+ * fresh epoch and writes the keys of the old one.  A writer that added its
+ * key to an epoch already swapped out, possibly after the checkpoint read
+ * it, adds it to the current epoch as well: so every write is in the
+ * checkpoint that read its value or in the next one.
+ *
+ * <p>A checkpoint is a header (magic, base id, sequence number, and whether
+ * it replaces the whole map) and then key/value pairs, as by
+ * {@link java.io.ObjectOutputStream}, ended by a null key.  A value of null
+ * means the key was removed; a {@link Removed} that it was removed with a
+ * version.  A base checkpoint is sequence 0 of a fresh base id; each
+ * incremental one takes the next sequence number of the same base.
+ *
+ * <p>An online checkpoint ({@link OCCHashMap#onlineCheckpoint}) has a header
+ * of its own magic alone, then two runs of pairs: what its scan of the table
+ * read, and the change stream, the commits logged from before the scan
+ * began until after it ended.  Each pair there has the version it was
+ * committed at, so the two merge by version into the map as it was when
+ * the log closed.  Writers enter the {@link Log} before they commit and
+ * leave it once logged, and closing it waits for those still in, so the
+ * log holds exactly the commits from the start mark to the end mark.
+ */
+final class Checkpoint {
+  private static final int MAGIC = 0x4F43434B;        // "OCCK"
+  private static final int ONLINE_MAGIC = 0x4F43434F; // "OCCO"
+
+  // Keys written in one epoch; _all if the map was cleared in it.
+  private static final class Epoch {
+    final Set<Object> _keys = ConcurrentHashMap.newKeySet();
+    volatile boolean _all;
+  }
+
+  final long _base = new Random().nextLong();
+  int _seq;                     // Of the last checkpoint written; under the lock on this
+  private volatile Epoch _epoch = new Epoch();
+
+  // --- the commit path -----------------------------------------------------
+  // Record a committed write of the key (its side key).
+  void dirty( final Object key ) {
+    final Epoch E = _epoch;
+    E._keys.add(key);
+    final Epoch F = _epoch;
+    if( F != E ) F._keys.add(key); // Swapped meanwhile: the next one must see it
+  }
+
+  // Record that the whole map changed at once.
+  void dirtyAll() {
+    final Epoch E = _epoch;
+    E._all = true;
+    final Epoch F = _epoch;
+    if( F != E ) F._all = true;
+  }
+
+  // --- checkpoints ---------------------------------------------------------
+  // Start a new epoch, returning the keys written in the old one; null if
+  // the map was cleared in it, so that only a whole one will do.  Callers
+  // hold the lock on this, so checkpoints are numbered in the order written;
+  // one that fails calls dirtyAll, and the next takes its number.
+  Set<Object> next() {
+    final Epoch E = _epoch;
+    _epoch = new Epoch();
+    return E._all ? null : E._keys;
+  }
+
+  // A removal with a version, which stale puts must still lose to; or, if
+  // _plain, an unversioned removal of the value of that version.
+  static final class Removed implements Serializable {
+    private static final long serialVersionUID = 1L;
+    final long _version;
+    final boolean _plain;
+    Removed( final long version, final boolean plain ) { _version = version; _plain = plain; }
+  }
+
+  // Of two values an online checkpoint has for a key, is the first the
+  // later?  By version, and a plain removal comes after the value it removed.
+  static boolean later( final Object a, final Object b ) {
+    final long va = version(a), vb = version(b);
+    return va > vb || (va == vb && plain(a) && !plain(b));
+  }
+  private static long version( final Object V ) {
+    return V instanceof Removed ? ((Removed)V)._version : ((Versioned)V).getVersion();
+  }
+  static boolean plain( final Object V ) { return V instanceof Removed && ((Removed)V)._plain; }
+
+  static ObjectOutputStream writer( final WritableByteChannel ch, final long base, final int seq, final boolean whole ) throws IOException {
+    final ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(Channels.newOutputStream(ch)));
+    out.writeInt(MAGIC);
+    out.writeLong(base);
+    out.writeInt(seq);
+    out.writeBoolean(whole);
+    return out;
+  }
+
+  static ObjectOutputStream onlineWriter( final WritableByteChannel ch ) throws IOException {
+    final ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(Channels.newOutputStream(ch)));
+    out.writeInt(ONLINE_MAGIC);
+    return out;
+  }
+
+  // --- online checkpoints --------------------------------------------------
+  // The change stream of a running online checkpoint.  A writer enters just
+  // before the CAS (or status flip) that commits, logs the commit after it,
+  // and leaves.  Sealing turns new writers away and waits for those in to
+  // leave; a writer turned away waits too, and then commits unlogged.  So
+  // no commit is left half-way across the end mark: every one before it is
+  // logged, and none after it.
+  static final class Log {
+    private static final int SEALED = Integer.MIN_VALUE;
+    final ConcurrentLinkedQueue<Object[]> _pairs = new ConcurrentLinkedQueue<Object[]>();
+    private final AtomicInteger _writers = new AtomicInteger(); // Writers in, and the SEALED bit
+
+    // Enter the log, or return false once it is sealed and empty of writers.
+    boolean enter() {
+      int u;
+      do {
+        u = _writers.get();
+        if( u < 0 ) {
+          while( _writers.get() != SEALED ) Thread.yield(); // Let the end mark settle
+          return false;
+        }
+      } while( !_writers.compareAndSet(u,u+1) );
+      return true;
+    }
+
+    void leave() { _writers.decrementAndGet(); }
+
+    void add( final Object key, final Object val ) { _pairs.add(new Object[]{key,val}); }
+
+    // The end mark: turn new writers away, and wait for those in to leave.
+    void seal() {
+      int u;
+      do u = _writers.get(); while( !_writers.compareAndSet(u,u|SEALED) );
+      while( _writers.get() != SEALED ) Thread.yield();
+    }
+  }
+
+  // --- restore -------------------------------------------------------------
+  // A checkpoint being read: the header, then the pairs through readPair.
+  // An online one has no base, sequence or wholeness.
+  static final class Reader {
+    final ObjectInputStream _in;
+    final long _base;
+    final int _seq;
+    final boolean _whole;
+    Object _key, _val;
+
+    Reader( final ReadableByteChannel ch, final boolean online ) throws IOException {
+      _in = new ObjectInputStream(new BufferedInputStream(Channels.newInputStream(ch)));
+      if( _in.readInt() != (online ? ONLINE_MAGIC : MAGIC) )
+        throw new StreamCorruptedException("Not an OCCHashMap "+(online ? "online " : "")+"checkpoint");
+      _base = online ? 0 : _in.readLong();
+      _seq = online ? 0 : _in.readInt();
+      _whole = online || _in.readBoolean();
+    }
+
+    // Read the next pair into _key and _val; false at the end of a run.
+    boolean readPair() throws IOException {
+      try {
+        _key = _in.readObject();
+        if( _key == null ) return false;
+        _val = _in.readObject();
+        return true;
+      } catch( ClassNotFoundException e ) {
+        throw new IOException("Cannot read a checkpointed entry", e);
+      }
+    }
+  }
+}
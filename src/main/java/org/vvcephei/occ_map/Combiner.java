@@ -0,0 +1,147 @@
+package org.vvcephei.occ_map;
+
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+
+/**
+ * Flat combining for one hot key, used by {@link OCCHashMap#update} once
+ * updates of the key keep losing their CAS.
+ * <p/>
+ * Instead of racing for the value slot, each writer pushes its update
+ * function onto this key's publication list and then either waits or
+ * becomes the combiner.  The combiner takes the whole list, applies the
+ * functions one after the other to the key's value - each one bumping the
+ * version once, as it would alone - and commits the result with a single
+ * CAS.  Then it hands every writer its own result.  One CAS per batch
+ * replaces one CAS, mostly failed, per writer.
+ * <p/>
+ * The combiner commits with an ordinary version check, so writers still
+ * going straight to the map stay correct: the combiner just applies its
+ * batch again.  A combiner that keeps finding nobody else in its batch
+ * retires this record, sending the key back to the plain CAS path.
+ * <p/>
+ * Writers waiting on a combiner park.  A combiner wakes the writers it
+ * served, and on leaving wakes the newest writer still pending, which then
+ * combines the next batch.
+ */
+final class Combiner<TypeK, TypeV extends Versioned> {
+  // Lone batches in a row before the key goes back to the plain path.
+  private static final int RETIRE_AFTER = 64;
+
+  private static final class Node {
+    final Function _fn;
+    final Thread _thread = Thread.currentThread();
+    Node _next;               // Older node; written before the node is published
+    Object _result;           // Plain fields, published by the volatile _done
+    Throwable _error;
+    volatile boolean _done;
+    Node(final Function fn) { _fn = fn; }
+  }
+
+  private final OCCHashMap<TypeK, TypeV> _map;
+  private final TypeK _key;
+  private final Object _side;   // _key as filed in the map's combiners
+
+  // Publication list, newest first
+  private volatile Node _pending;
+  private static final AtomicReferenceFieldUpdater<Combiner, Node> _pendingUpdater =
+    AtomicReferenceFieldUpdater.newUpdater(Combiner.class, Node.class, "_pending");
+  // 1 while some thread is combining
+  private volatile int _busy;
+  private static final AtomicIntegerFieldUpdater<Combiner> _busyUpdater =
+    AtomicIntegerFieldUpdater.newUpdater(Combiner.class, "_busy");
+  private int _lonely;          // Guarded by _busy
+
+  Combiner(final OCCHashMap<TypeK, TypeV> map, final TypeK key, final Object side) {
+    _map = map;
+    _key = key;
+    _side = side;
+  }
+
+  // Publish the function and return its result once some combiner, maybe
+  // this thread, has applied it.
+  TypeV apply(final Function<? super TypeV, ? extends TypeV> fn) {
+    final Node N = new Node(fn);
+    do N._next = _pending;
+    while (!_pendingUpdater.compareAndSet(this, N._next, N));
+    while (!N._done) {
+      if (_busy == 0 && _busyUpdater.compareAndSet(this, 0, 1)) {
+        try {
+          combine();
+        } finally {
+          _busy = 0;
+          // A writer that pushed after our batch was taken, and found us
+          // busy, is parked: wake one to combine.  One that pushes after
+          // this read finds _busy clear.
+          final Node P = _pending;
+          if (P != null) LockSupport.unpark(P._thread);
+        }
+      } else {
+        LockSupport.park(this); // Our combiner is at work, and will wake us
+      }
+    }
+    if (N._error instanceof RuntimeException) throw (RuntimeException) N._error;
+    if (N._error instanceof Error) throw (Error) N._error;
+    if (N._error != null) throw new RuntimeException(N._error);
+    return (TypeV) N._result;
+  }
+
+  private void combine() {
+    Node batch = _pendingUpdater.getAndSet(this, null);
+    if (batch == null) return;
+    // Oldest first, as they arrived
+    int n = 0;
+    for (Node N = batch; N != null; N = N._next) n++;
+    final Node[] nodes = new Node[n];
+    for (Node N = batch; N != null; N = N._next) nodes[--n] = N;
+
+    while (true) {
+      final TypeV cur;
+      try {
+        cur = _map.get(_key);
+      } catch (Throwable t) {   // Nothing applied yet: the batch fails together
+        fail(nodes, t);
+        break;
+      }
+      TypeV val = cur;
+      boolean applied = false;
+      for (final Node N : nodes) {
+        N._result = null;
+        N._error = null;
+        try {
+          final TypeV next = (TypeV) N._fn.apply(val);
+          if (next != null && val != null && next.getVersion() <= val.getVersion())
+            throw new VersionConflictException(_key, val.getVersion(), next.getVersion());
+          N._result = val = next;
+          applied = true;
+        } catch (Throwable t) { // Only this update fails; the rest go on without it
+          N._error = t;
+        }
+      }
+      if (!applied) break;      // Every update failed: nothing to commit
+      try {
+        if (_map.commitUpdate(_key, cur, val)) break; // The one CAS
+      } catch (Throwable t) {   // The commit itself threw: the batch fails together
+        fail(nodes, t);
+        break;
+      }
+    }
+    final Thread self = Thread.currentThread();
+    for (final Node N : nodes) {
+      N._done = true;
+      if (N._thread != self) LockSupport.unpark(N._thread);
+    }
+
+    if (nodes.length > 1) _lonely = 0;
+    else if (++_lonely >= RETIRE_AFTER) _map.retire(_side, this);
+  }
+
+  private static void fail(final Node[] nodes, final Throwable t) {
+    for (final Node N : nodes) {
+      N._result = null;
+      N._error = t;
+    }
+  }
+}
@@ -8,7 +8,7 @@ package org.vvcephei.occ_map;
 import sun.misc.Unsafe;
 
 import java.io.Serializable;
-import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 /**
@@ -51,7 +51,7 @@ public class ConcurrentAutoTable implements Serializable {
    *  Rather more expensive than a simple store, in order to remain atomic.
    */
   public void set( long x ) {
-    CAT newcat = new CAT(null,4,x);
+    CAT newcat = new CAT(null,1,x);
     // Spin until CAS works
     while( !CAS_cat(_cat,newcat) );
   }
@@ -88,7 +88,7 @@ public class ConcurrentAutoTable implements Serializable {
    * Return the internal counter striping factor.  Useful for diagnosing
    * performance problems.
    */
-  public int internal_size() { return _cat._t.length; }
+  public int internal_size() { return _cat._cells; }
 
   // Only add 'x' to some slot in table, hinted at by 'hash', if bits under
   // the mask are all zero.  The sum can overflow or 'x' can contain bits in
@@ -96,30 +96,67 @@ public class ConcurrentAutoTable implements Serializable {
   // it succeeds or bits are found under the mask.  Returned value is the old
   // value - which WILL have zero under the mask on success and WILL NOT have
   // zero under the mask for failure.
-  private long add_if_mask( long x, long mask ) { return _cat.add_if_mask(x,mask,hash(),this); }
+  private long add_if_mask( long x, long mask ) { return _cat.add_if_mask(x,mask,this); }
 
   // The underlying array of concurrently updated long counters
-  private volatile CAT _cat = new CAT(null,4/*Start Small, Think Big!*/,0L);
+  private volatile CAT _cat = new CAT(null,1/*Start Small, Think Big!*/,0L);
   private static final AtomicReferenceFieldUpdater<ConcurrentAutoTable,CAT> _catUpdater =
     AtomicReferenceFieldUpdater.newUpdater(ConcurrentAutoTable.class, CAT.class, "_cat");
   private boolean CAS_cat( CAT oldcat, CAT newcat ) { return _catUpdater.compareAndSet(this,oldcat,newcat); }
 
-  // Hash spreader
-  private static final int hash() {
-    int h = System.identityHashCode(Thread.currentThread());
-    // You would think that System.identityHashCode on the current thread
-    // would be a good hash fcn, but actually on SunOS 5.8 it is pretty lousy
-    // in the low bits.
-    h ^= (h>>>20) ^ (h>>>12);   // Bit spreader, borrowed from Doug Lea
-    h ^= (h>>> 7) ^ (h>>> 4);
-    return h<<2;                // Pad out cache lines.  The goal is to avoid cache-line contention
+  // --- probe ---------------------------------------------------------------
+  // Which cell a thread counts in.  We share the per-thread probe the JDK
+  // keeps for its own striped counters (LongAdder, ConcurrentHashMap): a
+  // plain field of the Thread, so reading it is as cheap as it gets and
+  // moving a thread to another cell after a collision is a plain store.
+  // Without it we fall back to a fixed hash of the thread's identity.
+  private static final Unsafe _unsafe = UtilUnsafe.getUnsafe();
+  private static final long PROBE;
+  static {
+    long off = -1;
+    try { off = _unsafe.objectFieldOffset(Thread.class.getDeclaredField("threadLocalRandomProbe")); }
+    catch( Exception e ) { }
+    PROBE = off;
+  }
+  private static int probe() {
+    if( PROBE == -1 ) {
+      int h = System.identityHashCode(Thread.currentThread());
+      // You would think that System.identityHashCode on the current thread
+      // would be a good hash fcn, but actually on SunOS 5.8 it is pretty lousy
+      // in the low bits.
+      h ^= (h>>>20) ^ (h>>>12);   // Bit spreader, borrowed from Doug Lea
+      h ^= (h>>> 7) ^ (h>>> 4);
+      return h;
+    }
+    int h = _unsafe.getInt(Thread.currentThread(),PROBE);
+    if( h == 0 ) {              // Not yet seeded; this seeds it
+      ThreadLocalRandom.current();
+      h = _unsafe.getInt(Thread.currentThread(),PROBE);
+    }
+    return h;
+  }
+  // Move the current thread to another cell (xorshift step)
+  private static int advance_probe( int h ) {
+    if( PROBE == -1 ) return h+1;
+    h ^= h << 13;
+    h ^= h >>> 17;
+    h ^= h << 5;
+    _unsafe.putInt(Thread.currentThread(),PROBE,h);
+    return h;
+  }
+
+  // More cells than CPUs cannot lower contention any further
+  private static final int MAX_CELLS;
+  static {
+    int n = 1;
+    while( n < Runtime.getRuntime().availableProcessors() ) n <<= 1;
+    MAX_CELLS = n;
   }
 
   // --- CAT -----------------------------------------------------------------
   private static class CAT implements Serializable {
 
     // Unsafe crud: get a function which will CAS arrays
-    private static final Unsafe _unsafe = UtilUnsafe.getUnsafe();
     private static final int _Lbase  = _unsafe.arrayBaseOffset(long[].class);
     private static final int _Lscale = _unsafe.arrayIndexScale(long[].class);
     private static long rawIndex(long[] ary, int i) {
@@ -130,93 +167,88 @@ public class ConcurrentAutoTable implements Serializable {
       return _unsafe.compareAndSwapLong( A, rawIndex(A,idx), old, nnn );
     }
 
-    volatile long _resizers;    // count of threads attempting a resize
-    static private final AtomicLongFieldUpdater<CAT> _resizerUpdater =
-      AtomicLongFieldUpdater.newUpdater(CAT.class, "_resizers");
+    // Cells are spread PAD longs apart, and the first one starts PAD longs
+    // in, so that no two cells - and no cell and the array header - share a
+    // cache line.  128 bytes also defeats adjacent-line prefetch.  A lone
+    // cell has nobody to share with and is not padded at all: most counters
+    // never see contention and stay this small.
+    private static final int LOG_PAD = 4;
+    private static final int PAD = 1<<LOG_PAD;
 
     private final CAT _next;
-    private volatile long _sum_cache;
     private volatile long _fuzzy_sum_cache;
     private volatile long _fuzzy_time;
     private static final int MAX_SPIN=2;
-    private long[] _t;            // Power-of-2 array of longs
+    final int _cells;             // Power-of-2 count of counting cells
+    private final int _shift;     // log2 of the spacing between cells
+    private final int _base;      // Index of the first cell
+    private final long[] _t;      // The cells, plus padding
 
     CAT( CAT next, int sz, long init ) {
       _next = next;
-      _sum_cache = Long.MIN_VALUE;
-      _t = new long[sz];
-      _t[0] = init;
+      _cells = sz;
+      _shift = sz == 1 ? 0 : LOG_PAD;
+      _base  = sz == 1 ? 0 : PAD;
+      _t = new long[_base + (sz<<_shift)];
+      _t[_base] = init;
     }
-
-    // Only add 'x' to some slot in table, hinted at by 'hash', if bits under
-    // the mask are all zero.  The sum can overflow or 'x' can contain bits in
-    // the mask.  Value is CAS'd so no counts are lost.  The CAS is attempted
-    // ONCE.
-    public long add_if_mask( long x, long mask, int hash, ConcurrentAutoTable master ) {
-      long[] t = _t;
-      int idx = hash & (t.length-1);
+    private int cell( int h ) { return _base + ((h & (_cells-1))<<_shift); }
+
+    // Only add 'x' to some slot in table, hinted at by the thread's probe, if
+    // bits under the mask are all zero.  The sum can overflow or 'x' can
+    // contain bits in the mask.  Value is CAS'd so no counts are lost.  Each
+    // failed CAS moves this thread to another cell, so threads that collide
+    // once spread out for good; repeated failures grow the table.  Nothing
+    // shared is written except the one cell.
+    public long add_if_mask( long x, long mask, ConcurrentAutoTable master ) {
+      final long[] t = _t;
+      int h = probe();
+      int idx = cell(h);
       // Peel loop; try once fast
       long old = t[idx];
-      boolean ok = CAS( t, idx, old&~mask, old+x );
-      if( _sum_cache != Long.MIN_VALUE )
-        _sum_cache = Long.MIN_VALUE; // Blow out cache
-      if( ok ) return old;      // Got it
       if( (old&mask) != 0 ) return old; // Failed for bit-set under mask
-      // Try harder
+      if( CAS( t, idx, old, old+x ) ) return old; // Got it
+      // Try harder, elsewhere
       int cnt=0;
       while( true ) {
+        h = advance_probe(h);
+        idx = cell(h);
         old = t[idx];
         if( (old&mask) != 0 ) return old; // Failed for bit-set under mask
         if( CAS( t, idx, old, old+x ) ) break; // Got it!
-        cnt++;
-      }
-      if( cnt < MAX_SPIN ) return old; // Allowable spin loop count
-      if( t.length >= 1024*1024 ) return old; // too big already
-
-      // Too much contention; double array size in an effort to reduce contention
-      long r = _resizers;
-      int newbytes = (t.length<<1)<<3/*word to bytes*/;
-      while( !_resizerUpdater.compareAndSet(this,r,r+newbytes) )
-        r = _resizers;
-      r += newbytes;
-      if( master._cat != this ) return old; // Already doubled, don't bother
-      if( (r>>17) != 0 ) {      // Already too much allocation attempts?
-        // TODO - use a wait with timeout, so we'll wakeup as soon as the new
-        // table is ready, or after the timeout in any case.  Annoyingly, this
-        // breaks the non-blocking property - so for now we just briefly sleep.
-        //synchronized( this ) { wait(8*megs); }         // Timeout - we always wakeup
-        try { Thread.sleep(r >> 17); } catch( InterruptedException e ) { }
-        if( master._cat != this ) return old;
+        if( ++cnt == MAX_SPIN ) grow(master); // Too much contention
       }
-
-      CAT newcat = new CAT(this,t.length*2,0);
-      // Take 1 stab at updating the CAT with the new larger size.  If this
-      // fails, we assume some other thread already expanded the CAT - so we
-      // do not need to retry until it succeeds.
-      master.CAS_cat(this,newcat);
       return old;
     }
 
+    // Double the cells in an effort to reduce contention.  Counts already
+    // made stay where they are: the new CAT chains to this one.  We take 1
+    // stab at installing it; if that fails some other thread already
+    // expanded the CAT, and we do not need to retry.  Nobody waits.
+    private void grow( ConcurrentAutoTable master ) {
+      if( _cells >= MAX_CELLS ) return; // Big enough already
+      if( master._cat != this ) return; // Already doubled, don't bother
+      master.CAS_cat(this,new CAT(this,_cells<<1,0));
+    }
 
     // Return the current sum of all things in the table, stripping off mask
     // before the add.  Writers can be updating the table furiously, so the
-    // sum is only locally accurate.
+    // sum is only locally accurate.  Not cached: a cache would have to be
+    // invalidated by every writer, which is exactly the shared write that
+    // striping exists to avoid.
     public long sum( long mask ) {
-      long sum = _sum_cache;
-      if( sum != Long.MIN_VALUE ) return sum;
-      sum = _next == null ? 0 : _next.sum(mask); // Recursively get cached sum
-      long[] t = _t;
-      for( int i=0; i<t.length; i++ )
-        sum += t[i]&(~mask);
-      _sum_cache = sum;         // Cache includes recursive counts
+      long sum = _next == null ? 0 : _next.sum(mask); // Recursively get older counts
+      final long[] t = _t;
+      for( int i=0; i<_cells; i++ )
+        sum += t[_base+(i<<_shift)]&(~mask);
       return sum;
     }
 
     // Fast fuzzy version.  Used a cached value until it gets old, then re-up
-    // the cache.
+    // the cache.  Only readers write the cache.
     public long estimate_sum( long mask ) {
       // For short tables, just do the work
-      if( _t.length <= 64 ) return sum(mask);
+      if( _cells <= 64 ) return sum(mask);
       // For bigger tables, periodically freshen a cached value
       long millis = System.currentTimeMillis();
       if( _fuzzy_time != millis ) { // Time marches on?
@@ -229,52 +261,47 @@ public class ConcurrentAutoTable implements Serializable {
     // Update all table slots with CAS.
     public void all_or ( long mask ) {
       long[] t = _t;
-      for( int i=0; i<t.length; i++ ) {
+      for( int i=0; i<_cells; i++ ) {
+        final int idx = _base+(i<<_shift);
         boolean done = false;
         while( !done ) {
-          long old = t[i];
-          done = CAS(t,i, old, old|mask );
+          long old = t[idx];
+          done = CAS(t,idx, old, old|mask );
         }
       }
       if( _next != null ) _next.all_or(mask);
-      if( _sum_cache != Long.MIN_VALUE )
-        _sum_cache = Long.MIN_VALUE; // Blow out cache
     }
 
     public void all_and( long mask ) {
       long[] t = _t;
-      for( int i=0; i<t.length; i++ ) {
+      for( int i=0; i<_cells; i++ ) {
+        final int idx = _base+(i<<_shift);
         boolean done = false;
         while( !done ) {
-          long old = t[i];
-          done = CAS(t,i, old, old&mask );
+          long old = t[idx];
+          done = CAS(t,idx, old, old&mask );
         }
       }
       if( _next != null ) _next.all_and(mask);
-      if( _sum_cache != Long.MIN_VALUE )
-        _sum_cache = Long.MIN_VALUE; // Blow out cache
     }
 
     // Set/stomp all table slots.  No CAS.
     public void all_set( long val ) {
       long[] t = _t;
-      for( int i=0; i<t.length; i++ )
-        t[i] = val;
+      for( int i=0; i<_cells; i++ )
+        t[_base+(i<<_shift)] = val;
       if( _next != null ) _next.all_set(val);
-      if( _sum_cache != Long.MIN_VALUE )
-        _sum_cache = Long.MIN_VALUE; // Blow out cache
     }
 
     String toString( long mask ) { return Long.toString(sum(mask)); }
 
     public void print() {
       long[] t = _t;
-      System.out.print("[sum="+_sum_cache+","+t[0]);
-      for( int i=1; i<t.length; i++ )
-        System.out.print(","+t[i]);
+      System.out.print("["+t[_base]);
+      for( int i=1; i<_cells; i++ )
+        System.out.print(","+t[_base+(i<<_shift)]);
       System.out.print("]");
       if( _next != null ) _next.print();
     }
   }
 }
-
@@ -0,0 +1,36 @@
+package org.vvcephei.occ_map;
+
+import java.io.Serializable;
+
+/**
+ * Merges a value put into an {@link OCCHashMap} with the newer value it
+ * would have lost to, for values that combine rather than replace each
+ * other: counters, set unions and other CRDT-style state.  Install one with
+ * {@link OCCHashMap#setConflictResolver}.
+ * <p/>
+ * When a {@code put} carries a version no greater than the value in the
+ * map, the map calls {@link #merge} and installs the result in place of the
+ * put value, retrying inside the map if yet another write gets there
+ * first.  The put then succeeds instead of throwing a {@link
+ * VersionConflictException}.
+ * <p/>
+ * Resolvers are called concurrently and possibly several times per put, so
+ * they must be thread-safe and free of side effects.  They are serialized
+ * along with the map.
+ *
+ * @param <V> the type of values this resolver handles
+ */
+public interface ConflictResolver<V extends Versioned> extends Serializable {
+
+  /**
+   * Combine the incoming value with the existing one.
+   *
+   * @param existing the value in the map, whose version is no less than
+   *                 {@code incoming}'s
+   * @param incoming the value that was put
+   * @return the value to store instead, with a version greater than {@code
+   *         existing}'s (a put of anything older still fails with a {@link
+   *         VersionConflictException})
+   */
+  V merge(V existing, V incoming);
+}
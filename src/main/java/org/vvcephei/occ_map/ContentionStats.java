@@ -0,0 +1,58 @@
+package org.vvcephei.occ_map;
+
+/**
+ * How much {@link OCCHashMap#update} calls have had to fight for their keys
+ * since {@link OCCHashMap#enableEscalation escalation} was enabled, as
+ * returned by {@link OCCHashMap#contentionStats}.  The counts are gathered
+ * without stopping updaters, so they are only approximately simultaneous.
+ */
+public final class ContentionStats {
+  private final long conflicts;
+  private final long escalations;
+  private final long leasedUpdates;
+  private final long maxConflicts;
+
+  ContentionStats(final long conflicts, final long escalations, final long leasedUpdates, final long maxConflicts) {
+    this.conflicts = conflicts;
+    this.escalations = escalations;
+    this.leasedUpdates = leasedUpdates;
+    this.maxConflicts = maxConflicts;
+  }
+
+  /**
+   * @return CAS races lost by updates, each of which cost a retry.
+   */
+  public long getConflicts() {
+    return conflicts;
+  }
+
+  /**
+   * @return Updates that lost as many races in a row as the escalation
+   * threshold - updates that were starving - and took a lease on their key.
+   */
+  public long getEscalations() {
+    return escalations;
+  }
+
+  /**
+   * @return Updates run under a lease, whether they escalated themselves or
+   * found their key already leased.
+   */
+  public long getLeasedUpdates() {
+    return leasedUpdates;
+  }
+
+  /**
+   * @return The most races lost by any single update: the worst starvation
+   * seen.
+   */
+  public long getMaxConflicts() {
+    return maxConflicts;
+  }
+
+  @Override
+  public String toString() {
+    return "ContentionStats{conflicts=" + conflicts + ", escalations=" + escalations
+        + ", leasedUpdates=" + leasedUpdates + ", maxConflicts=" + maxConflicts + "}";
+  }
+}
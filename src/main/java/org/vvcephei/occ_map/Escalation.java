@@ -0,0 +1,102 @@
+package org.vvcephei.occ_map;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * Pessimistic fallback for {@link OCCHashMap#update} on keys where updaters
+ * starve, enabled with {@link OCCHashMap#enableEscalation}.
+ * <p/>
+ * An update races for its key with a CAS as usual.  One that loses {@code
+ * threshold} races in a row takes a lease on the key: a fair lock, from a
+ * striped array, that queues the key's updaters and so hands them the key
+ * in turn.  The lease stays in force for a short while after each grant,
+ * and keeps being extended while updaters queue for it, so that the key's
+ * other updaters go straight to the queue instead of racing first.  Once
+ * nobody has needed it for that long, the key is lock-free again.  Updates
+ * of keys that never starve only ever read one array element.
+ * <p/>
+ * Keys share stripes, so a cold key that shares one with a leased key is
+ * serialized along with it while the lease lasts.
+ */
+final class Escalation {
+  private final int _threshold;
+  private final long _leaseNanos;
+  private final ReentrantLock[] _locks;
+  // nanoTime until which each stripe's lease is in force; 0 if never leased
+  private final AtomicLongArray _until;
+
+  private final Counter _conflicts = new Counter();
+  private final Counter _escalations = new Counter();
+  private final Counter _leased = new Counter();
+  private final AtomicLong _maxConflicts = new AtomicLong();
+
+  Escalation(final int threshold, final long leaseNanos) {
+    if (threshold < 1) throw new IllegalArgumentException("conflicts: " + threshold);
+    _threshold = threshold;
+    _leaseNanos = leaseNanos;
+    int stripes = 16;
+    while (stripes < (Runtime.getRuntime().availableProcessors() << 2)) stripes <<= 1;
+    _locks = new ReentrantLock[stripes];
+    for (int i = 0; i < stripes; i++) _locks[i] = new ReentrantLock(true);
+    _until = new AtomicLongArray(stripes);
+  }
+
+  <TypeK, TypeV extends Versioned> TypeV update(final OCCHashMap<TypeK, TypeV> map, final TypeK key,
+                                                final Function<? super TypeV, ? extends TypeV> fn) {
+    int h = map.sideKey(key).hashCode() * 0x9E3779B9;
+    final int stripe = (h ^ (h >>> 16)) & (_locks.length - 1);
+    int lost = 0;
+    if (!leased(stripe)) {
+      for (; lost < _threshold; lost++) {
+        final TypeV cur = map.get(key);
+        final TypeV next = fn.apply(cur);
+        if (map.commitUpdate(key, cur, next)) {
+          done(lost);
+          return next;
+        }
+        _conflicts.add(1);
+      }
+      _escalations.add(1);
+      extend(stripe);
+    }
+    final ReentrantLock lock = _locks[stripe];
+    lock.lock();
+    try {
+      _leased.add(1);
+      while (true) {            // Only writers outside update() can beat us now
+        final TypeV cur = map.get(key);
+        final TypeV next = fn.apply(cur);
+        if (map.commitUpdate(key, cur, next)) {
+          done(lost);
+          return next;
+        }
+        _conflicts.add(1);
+        lost++;
+      }
+    } finally {
+      if (lock.hasQueuedThreads()) extend(stripe); // Still contended
+      lock.unlock();
+    }
+  }
+
+  private boolean leased(final int stripe) {
+    final long until = _until.get(stripe);
+    return until != 0 && System.nanoTime() - until < 0;
+  }
+
+  private void extend(final int stripe) {
+    _until.set(stripe, System.nanoTime() + _leaseNanos);
+  }
+
+  private void done(final int lost) {
+    long max;
+    while (lost > (max = _maxConflicts.get()) && !_maxConflicts.compareAndSet(max, lost)) ;
+  }
+
+  ContentionStats stats() {
+    return new ContentionStats(_conflicts.get(), _escalations.get(), _leased.get(), _maxConflicts.get());
+  }
+}
@@ -0,0 +1,305 @@
+package org.vvcephei.occ_map;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * An immutable, read-optimized copy of an {@link OCCHashMap}, made with
+ * {@link OCCHashMap#freeze}.  For readers of a map that changes seldom,
+ * and can be re-frozen and swapped in through a {@link Holder} when it does.
+ * <p/>
+ * Keys and values sit in flat arrays, indexed by a minimal perfect hash
+ * built for exactly these keys (hash and displace: each key hashes to a
+ * bucket, and each bucket stores the displacement that sends its keys to
+ * free slots).  A lookup is two hashes, one displacement read and one key
+ * compare: no reprobes, no volatile reads.  The keys' hashes are kept too,
+ * so that a miss seldom loads a key.  Versions are kept apart in a
+ * {@code long[]}, so {@link #getVersion} never touches the value.
+ * <p/>
+ * Keys whose hash codes are exactly equal cannot be told apart by any
+ * displacement; all but one of them go to a small overflow list that
+ * misses also scan.  That list is empty unless hash codes collide.
+ */
+public final class FrozenMap<TypeK, TypeV extends Versioned> extends AbstractMap<TypeK, TypeV> {
+  private static final int BUCKET_LOAD = 4;       // Keys per bucket, on average
+  private static final int MAX_TRIES = 1 << 16;   // Displacements tried per bucket
+
+  private final KeyStrategy<Object> _strategy;    // null for the keys' own methods
+  private final int[] _disp;    // Per bucket: displacement, or ~slot for a bucket of one
+  private final int[] _hashes;  // Spread hash per slot: most misses stop here
+  private final Object[] _keys;
+  private final Object[] _vals;
+  private final long[] _versions;
+  private final int _n;         // Slots in the perfect hash; the rest of the arrays overflow
+  private final int _size;
+
+  FrozenMap(final List<? extends Map.Entry<? extends TypeK, ? extends TypeV>> entries,
+            final KeyStrategy<Object> strategy) {
+    _strategy = strategy;
+    final int size = entries.size();
+    final int[] hashes = new int[size];
+    for (int i = 0; i < size; i++) hashes[i] = spread(hash(entries.get(i).getKey()));
+
+    // Entries with a hash seen already go to the overflow: sort by hash,
+    // then index, and keep the first of each run.
+    final long[] byHash = new long[size];
+    for (int i = 0; i < size; i++) byHash[i] = ((long) hashes[i] << 32) | i;
+    Arrays.sort(byHash);
+    final boolean[] over = new boolean[size];
+    int overflow = 0;
+    for (int i = 1; i < size; i++)
+      if ((int) (byHash[i] >> 32) == (int) (byHash[i - 1] >> 32)) {
+        over[(int) byHash[i]] = true;
+        overflow++;
+      }
+
+    // Group the rest by bucket (a counting sort), then order the buckets
+    // biggest first (another one).
+    final int nb = Math.max(1, (size + BUCKET_LOAD - 1) / BUCKET_LOAD);
+    final int[] start = new int[nb + 1];
+    for (int i = 0; i < size; i++) if (!over[i]) start[reduce(hashes[i], nb) + 1]++;
+    int maxLoad = 0;
+    for (int b = 0; b < nb; b++) {
+      maxLoad = Math.max(maxLoad, start[b + 1]);
+      start[b + 1] += start[b];
+    }
+    final int[] members = new int[size - overflow];
+    final int[] fill = Arrays.copyOf(start, nb);
+    for (int i = 0; i < size; i++) if (!over[i]) members[fill[reduce(hashes[i], nb)]++] = i;
+    final int[] byLoad = new int[nb];
+    final int[] loadStart = new int[maxLoad + 2];
+    for (int b = 0; b < nb; b++) loadStart[maxLoad - (start[b + 1] - start[b]) + 1]++;
+    for (int l = 0; l <= maxLoad; l++) loadStart[l + 1] += loadStart[l];
+    for (int b = 0; b < nb; b++) byLoad[loadStart[maxLoad - (start[b + 1] - start[b])]++] = b;
+
+    // Place the buckets.  A bucket of one takes the lowest free slot
+    // directly.  A bigger bucket that no displacement fits goes to the
+    // overflow (never seen, but cheap to allow for), leaving its slots empty.
+    final int n = size - overflow;
+    _n = n;
+    _disp = new int[nb];
+    final int[] slotOf = new int[size];
+    final boolean[] taken = new boolean[n];
+    final int[] slots = new int[maxLoad];
+    int free = 0;                 // Lowest slot possibly free
+    for (final int b : byLoad) {
+      final int lo = start[b], hi = start[b + 1];
+      if (lo == hi) break;        // Empty buckets are last
+      if (hi - lo == 1) {
+        while (taken[free]) free++;
+        taken[free] = true;
+        slotOf[members[lo]] = free;
+        _disp[b] = ~free;
+      } else if (!place(members, lo, hi, hashes, taken, slots, slotOf, b)) {
+        for (int i = lo; i < hi; i++) over[members[i]] = true;
+        overflow += hi - lo;
+      }
+    }
+
+    // Lay out the arrays: perfect-hash slots first, then the overflow.
+    _size = size;
+    final int len = n + overflow;
+    _hashes = new int[len];
+    _keys = new Object[len];
+    _vals = new Object[len];
+    _versions = new long[len];
+    int o = n;
+    for (int e = 0; e < size; e++) {
+      final int slot = over[e] ? o++ : slotOf[e];
+      final Map.Entry<? extends TypeK, ? extends TypeV> E = entries.get(e);
+      _hashes[slot] = hashes[e];
+      _keys[slot] = E.getKey();
+      _vals[slot] = E.getValue();
+      _versions[slot] = E.getValue().getVersion();
+    }
+  }
+
+  static <TypeK, TypeV extends Versioned> FrozenMap<TypeK, TypeV> of(final Map<TypeK, TypeV> view,
+                                                                     final KeyStrategy<Object> strategy) {
+    final List<Map.Entry<TypeK, TypeV>> entries = new ArrayList<Map.Entry<TypeK, TypeV>>();
+    for (final Map.Entry<TypeK, TypeV> e : view.entrySet())
+      entries.add(new SimpleImmutableEntry<TypeK, TypeV>(e.getKey(), e.getValue()));
+    return new FrozenMap<TypeK, TypeV>(entries, strategy);
+  }
+
+  // Find the first displacement that sends every key of the bucket to a
+  // free slot, and take those slots.
+  private boolean place(final int[] members, final int lo, final int hi, final int[] hashes, final boolean[] taken,
+                        final int[] slots, final int[] slotOf, final int b) {
+    next:
+    for (int d = 1; d <= MAX_TRIES; d++) {
+      for (int i = lo; i < hi; i++) {
+        final int s = reduce(mix(hashes[members[i]], d), _n);
+        if (taken[s]) continue next;
+        for (int j = lo; j < i; j++) if (slots[j - lo] == s) continue next;
+        slots[i - lo] = s;
+      }
+      for (int i = lo; i < hi; i++) {
+        taken[slots[i - lo]] = true;
+        slotOf[members[i]] = slots[i - lo];
+      }
+      _disp[b] = d;
+      return true;
+    }
+    return false;
+  }
+
+  // --- hashing -------------------------------------------------------------
+  private int hash(final Object key) {
+    return _strategy == null ? key.hashCode() : _strategy.hashCode(key);
+  }
+
+  // MurmurHash3's finalizer
+  private static int spread(int h) {
+    h ^= h >>> 16;
+    h *= 0x85EBCA6B;
+    h ^= h >>> 13;
+    h *= 0xC2B2AE35;
+    return h ^ (h >>> 16);
+  }
+
+  private static int mix(final int h, final int d) {
+    return spread(h ^ (d * 0x9E3779B9));
+  }
+
+  // Map a well-mixed hash onto [0,n) by multiply and shift
+  private static int reduce(final int h, final int n) {
+    return (int) (((h & 0xFFFFFFFFL) * n) >>> 32);
+  }
+
+  // The key's slot, or -1 if absent
+  private int slot(final Object key) {
+    final int h = spread(hash(key));
+    if (_n > 0) {
+      final int d = _disp[reduce(h, _disp.length)];
+      final int s = d < 0 ? ~d : reduce(mix(h, d), _n);
+      if (_hashes[s] == h && keyeq(_keys[s], key)) return s;
+    }
+    for (int s = _n; s < _keys.length; s++)
+      if (_hashes[s] == h && keyeq(_keys[s], key)) return s;
+    return -1;
+  }
+
+  private boolean keyeq(final Object K, final Object key) {
+    return K == key || (K != null && (_strategy == null ? key.equals(K) : _strategy.equals(key, K)));
+  }
+
+  // --- reads ---------------------------------------------------------------
+
+  /**
+   * @throws NullPointerException if the specified key is null
+   */
+  @Override
+  public TypeV get(final Object key) {
+    final int s = slot(key);
+    return s < 0 ? null : (TypeV) _vals[s];
+  }
+
+  /**
+   * @throws NullPointerException if the specified key is null
+   */
+  @Override
+  public boolean containsKey(final Object key) {
+    return slot(key) >= 0;
+  }
+
+  /**
+   * The version of the key's value, read without touching the value, or -1
+   * if the key is absent.
+   *
+   * @throws NullPointerException if the specified key is null
+   */
+  public long getVersion(final Object key) {
+    final int s = slot(key);
+    return s < 0 ? -1 : _versions[s];
+  }
+
+  @Override
+  public int size() {
+    return _size;
+  }
+
+  @Override
+  public Set<Map.Entry<TypeK, TypeV>> entrySet() {
+    return new AbstractSet<Map.Entry<TypeK, TypeV>>() {
+      @Override
+      public Iterator<Map.Entry<TypeK, TypeV>> iterator() {
+        return new Iterator<Map.Entry<TypeK, TypeV>>() {
+          private int _i = skip(0);
+
+          // Slots left empty by a bucket that overflowed hold no key
+          private int skip(int i) {
+            while (i < _keys.length && _keys[i] == null) i++;
+            return i;
+          }
+
+          public boolean hasNext() {
+            return _i < _keys.length;
+          }
+
+          public Map.Entry<TypeK, TypeV> next() {
+            if (_i >= _keys.length) throw new NoSuchElementException();
+            final int i = _i;
+            _i = skip(i + 1);
+            return new SimpleImmutableEntry<TypeK, TypeV>((TypeK) _keys[i], (TypeV) _vals[i]);
+          }
+
+          public void remove() {
+            throw new UnsupportedOperationException();
+          }
+        };
+      }
+
+      @Override
+      public int size() {
+        return _size;
+      }
+    };
+  }
+
+  // --- Holder --------------------------------------------------------------
+
+  /**
+   * A frozen map that can be replaced, whole and atomically, while readers
+   * keep reading: each lookup sees either the old map or the new one.
+   */
+  public static final class Holder<TypeK, TypeV extends Versioned> {
+    private static final AtomicReferenceFieldUpdater<Holder, FrozenMap> _mapUpdater =
+        AtomicReferenceFieldUpdater.newUpdater(Holder.class, FrozenMap.class, "_map");
+    private volatile FrozenMap<TypeK, TypeV> _map;
+
+    public Holder(final FrozenMap<TypeK, TypeV> map) {
+      if (map == null) throw new NullPointerException();
+      _map = map;
+    }
+
+    /** The current map. */
+    public FrozenMap<TypeK, TypeV> map() {
+      return _map;
+    }
+
+    /** Look the key up in the current map. */
+    public TypeV get(final Object key) {
+      return _map.get(key);
+    }
+
+    /** Put in a new map, returning the one it replaces. */
+    public FrozenMap<TypeK, TypeV> swap(final FrozenMap<TypeK, TypeV> map) {
+      if (map == null) throw new NullPointerException();
+      return _mapUpdater.getAndSet(this, map);
+    }
+
+    /** {@link OCCHashMap#freeze Freeze} the map and swap the result in. */
+    public FrozenMap<TypeK, TypeV> refresh(final OCCHashMap<TypeK, TypeV> from) {
+      return swap(from.freeze());
+    }
+  }
+}
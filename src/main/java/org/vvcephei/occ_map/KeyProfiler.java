@@ -0,0 +1,200 @@
+package org.vvcephei.occ_map;
+
+import java.lang.management.ManagementFactory;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Sampling profiler of which keys an {@link OCCHashMap} spends its effort
+ * on, attached with {@link OCCHashMap#enableProfiling}.  It tracks, per key:
+ * <ul>
+ * <li>writes committed,</li>
+ * <li>conflicts: writes that lost a race or failed a version check,</li>
+ * <li>reprobes: how far past its first slot each write found the key.</li>
+ * </ul>
+ * One in {@code sampleRate} of these events is counted, into a count-min
+ * sketch per measure, and the keys with the highest estimates are kept in
+ * a small heavy-hitters list.  Everything is lock-free and of fixed size,
+ * whatever the number of keys, and reads never touch the profiler.
+ * Reported counts are scaled back up by the sample rate, so they estimate
+ * the true totals; count-min estimates may overcount, never undercount.
+ * <p/>
+ * The results are available here and, once {@link #registerMBean
+ * registered}, over JMX.
+ */
+public final class KeyProfiler implements KeyProfilerMXBean {
+  private static final int DEPTH = 4;
+  private static final int WIDTH_LOG = 11;
+  private static final int TOP = 32;  // Heavy hitters kept per measure
+
+  static final int WRITES = 0, CONFLICTS = 1, REPROBES = 2;
+
+  private final OCCHashMap<?, ?> _map;
+  private final int _rate;
+  private final Sketch[] _sketches = {new Sketch(), new Sketch(), new Sketch()};
+
+  KeyProfiler(final OCCHashMap<?, ?> map, final int sampleRate) {
+    if (sampleRate < 1) throw new IllegalArgumentException("sampleRate: " + sampleRate);
+    _map = map;
+    _rate = sampleRate;
+  }
+
+  // --- sampling ------------------------------------------------------------
+  // Called by the map with the user's key.  Returns at once for all but one
+  // in _rate events.
+  void sample(final int measure, final Object key, final long amount) {
+    if (amount <= 0 || (_rate > 1 && ThreadLocalRandom.current().nextInt(_rate) != 0)) return;
+    final Object side = _map.sideKey(key);
+    _sketches[measure].add(side, side.hashCode(), amount);
+  }
+
+  // --- results -------------------------------------------------------------
+
+  /** A key and its estimated count. */
+  public static final class HotKey extends SimpleImmutableEntry<Object, Long> {
+    private static final long serialVersionUID = 1L;
+    HotKey(final Object key, final long count) { super(key, count); }
+    public String toString() { return getKey() + "=" + getValue(); }
+  }
+
+  /** Up to {@code n} keys with the most writes, hottest first. */
+  public List<HotKey> topWrites(final int n) { return _sketches[WRITES].top(n); }
+
+  /** Up to {@code n} keys with the most conflicts, worst first. */
+  public List<HotKey> topConflicts(final int n) { return _sketches[CONFLICTS].top(n); }
+
+  /** Up to {@code n} keys with the longest total probe sequences, worst first. */
+  public List<HotKey> topReprobes(final int n) { return _sketches[REPROBES].top(n); }
+
+  /** Estimated writes of the key, hot or not. */
+  public long estimateWrites(final Object key) { return estimate(WRITES, key); }
+
+  /** Estimated conflicts of the key, hot or not. */
+  public long estimateConflicts(final Object key) { return estimate(CONFLICTS, key); }
+
+  private long estimate(final int measure, final Object key) {
+    final Object side = _map.sideKey(key);
+    return _sketches[measure].estimate(side.hashCode()) * _rate;
+  }
+
+  public int getSampleRate() { return _rate; }
+
+  public String[] getTopWrites() { return strings(topWrites(TOP)); }
+
+  public String[] getTopConflicts() { return strings(topConflicts(TOP)); }
+
+  public String[] getTopReprobes() { return strings(topReprobes(TOP)); }
+
+  public void reset() {
+    for (final Sketch S : _sketches) S.clear();
+  }
+
+  /**
+   * Register this profiler with the platform MBean server.
+   *
+   * @param name the object name, such as {@code "org.vvcephei.occ_map:type=KeyProfiler,name=orders"}
+   * @throws JMException if the name is malformed or already taken
+   */
+  public void registerMBean(final String name) throws JMException {
+    ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(name));
+  }
+
+  private static String[] strings(final List<HotKey> keys) {
+    final String[] res = new String[keys.size()];
+    for (int i = 0; i < res.length; i++) res[i] = keys.get(i).toString();
+    return res;
+  }
+
+  // --- Sketch --------------------------------------------------------------
+  // A count-min sketch plus the keys with the highest estimates seen.  The
+  // heavy-hitters slots hold immutable entries replaced by CAS; a race may
+  // leave a key in two slots, which top() merges.
+  private final class Sketch {
+    private final AtomicLongArray _counts = new AtomicLongArray(DEPTH << WIDTH_LOG);
+    private final AtomicReferenceArray<Hitter> _top = new AtomicReferenceArray<Hitter>(TOP);
+
+    void add(final Object side, final int h, final long amount) {
+      long est = Long.MAX_VALUE;
+      for (int row = 0; row < DEPTH; row++)
+        est = Math.min(est, _counts.addAndGet(cell(row, h), amount));
+      offer(side, est);
+    }
+
+    long estimate(final int h) {
+      long est = Long.MAX_VALUE;
+      for (int row = 0; row < DEPTH; row++)
+        est = Math.min(est, _counts.get(cell(row, h)));
+      return est;
+    }
+
+    // Keep the key if it now beats the coldest heavy hitter.
+    private void offer(final Object side, final long est) {
+      int min = 0;
+      long minCount = Long.MAX_VALUE;
+      Hitter coldest = null;
+      for (int i = 0; i < TOP; i++) {
+        final Hitter H = _top.get(i);
+        if (H != null && H._key.equals(side)) { // Already a heavy hitter
+          if (H._count < est) _top.compareAndSet(i, H, new Hitter(side, est));
+          return;
+        }
+        final long c = H == null ? -1 : H._count; // Empty slots go first
+        if (c < minCount) {
+          min = i;
+          minCount = c;
+          coldest = H;
+        }
+      }
+      if (minCount < est) _top.compareAndSet(min, coldest, new Hitter(side, est));
+    }
+
+    List<HotKey> top(final int n) {
+      final Map<Object, Long> merged = new HashMap<Object, Long>();
+      for (int i = 0; i < TOP; i++) {
+        final Hitter H = _top.get(i);
+        if (H == null) continue;
+        final Long c = merged.get(H._key);
+        if (c == null || c < H._count) merged.put(H._key, H._count);
+      }
+      final List<HotKey> res = new ArrayList<HotKey>();
+      for (final Map.Entry<Object, Long> e : merged.entrySet())
+        res.add(new HotKey(OCCHashMap.unwrap(e.getKey()), e.getValue() * _rate));
+      Collections.sort(res, new Comparator<HotKey>() {
+        public int compare(final HotKey a, final HotKey b) { return Long.compare(b.getValue(), a.getValue()); }
+      });
+      return res.size() > n ? new ArrayList<HotKey>(res.subList(0, n)) : res;
+    }
+
+    void clear() {
+      for (int i = 0; i < _counts.length(); i++) _counts.set(i, 0);
+      for (int i = 0; i < TOP; i++) _top.set(i, null);
+    }
+  }
+
+  private static final class Hitter {
+    final Object _key;
+    final long _count;
+    Hitter(final Object key, final long count) { _key = key; _count = count; }
+  }
+
+  // Row 'row' of the sketch, column from an independent-enough mix of h.
+  private static int cell(final int row, final int h) {
+    int x = h * 0x9E3779B9 + row * 0x7F4A7C15;
+    x ^= x >>> 16;
+    x *= 0x85EBCA6B;
+    x ^= x >>> 13;
+    x *= 0xC2B2AE35;
+    x ^= x >>> 16;
+    return (row << WIDTH_LOG) | (x >>> (32 - WIDTH_LOG));
+  }
+}
@@ -0,0 +1,23 @@
+package org.vvcephei.occ_map;
+
+/**
+ * JMX view of a {@link KeyProfiler}.  Keys are shown with their {@code
+ * toString}, each followed by its estimated count.
+ */
+public interface KeyProfilerMXBean {
+
+  /** One in how many operations is sampled. */
+  int getSampleRate();
+
+  /** Keys with the most writes, hottest first, as {@code "key=count"}. */
+  String[] getTopWrites();
+
+  /** Keys with the most conflicts, worst first, as {@code "key=count"}. */
+  String[] getTopConflicts();
+
+  /** Keys with the longest total probe sequences, as {@code "key=count"}. */
+  String[] getTopReprobes();
+
+  /** Forget everything sampled so far. */
+  void reset();
+}
@@ -0,0 +1,54 @@
+package org.vvcephei.occ_map;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * How an {@link OCCHashMap} hashes and compares its keys, in place of the
+ * keys' own {@code hashCode} and {@code equals}.  Pass one to the map's
+ * constructor to use keys with expensive hash codes (hash a cheaper part
+ * of the key instead), keys where identity is enough, or {@code byte[]}
+ * keys compared by content.
+ * <p/>
+ * The map still spreads whatever {@link #hashCode} returns, so a strategy
+ * only needs to be consistent with its own {@link #equals}, not well mixed.
+ * Strategies are called concurrently and must be thread-safe; they are
+ * serialized along with the map.
+ *
+ * @param <K> the type of keys this strategy handles
+ */
+public interface KeyStrategy<K> extends Serializable {
+
+  /** Hash code of the key, consistent with {@link #equals}. */
+  int hashCode(K key);
+
+  /** Whether the two keys denote the same mapping.  Never called with null. */
+  boolean equals(K a, K b);
+
+  /**
+   * The keys' own {@code hashCode} and {@code equals}.  This is what maps
+   * built without a strategy do, along a path with no strategy call at all.
+   */
+  KeyStrategy<Object> EQUALS = new KeyStrategy<Object>() {
+    private static final long serialVersionUID = 1L;
+    public int hashCode(final Object key) { return key.hashCode(); }
+    public boolean equals(final Object a, final Object b) { return a.equals(b); }
+    private Object readResolve() { return EQUALS; }
+  };
+
+  /** Reference identity, as in {@link java.util.IdentityHashMap}. */
+  KeyStrategy<Object> IDENTITY = new KeyStrategy<Object>() {
+    private static final long serialVersionUID = 1L;
+    public int hashCode(final Object key) { return System.identityHashCode(key); }
+    public boolean equals(final Object a, final Object b) { return a == b; }
+    private Object readResolve() { return IDENTITY; }
+  };
+
+  /** Content of {@code byte[]} keys.  The arrays must not change while mapped. */
+  KeyStrategy<byte[]> BYTE_ARRAY = new KeyStrategy<byte[]>() {
+    private static final long serialVersionUID = 1L;
+    public int hashCode(final byte[] key) { return Arrays.hashCode(key); }
+    public boolean equals(final byte[] a, final byte[] b) { return Arrays.equals(a, b); }
+    private Object readResolve() { return BYTE_ARRAY; }
+  };
+}
@@ -6,13 +6,28 @@
 package org.vvcephei.occ_map;
 import sun.misc.Unsafe;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
 import java.lang.reflect.Field;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 import java.util.concurrent.atomic.AtomicLongFieldUpdater;
 import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.function.Function;
 
 /**
  * A lock-free alternate implementation of {@link java.util.concurrent.ConcurrentHashMap}
@@ -86,6 +101,8 @@ public class OCCHashMap<TypeK, TypeV extends Versioned>
   private static final Unsafe _unsafe = UtilUnsafe.getUnsafe();
   private static final int _Obase  = _unsafe.arrayBaseOffset(Object[].class);
   private static final int _Oscale = _unsafe.arrayIndexScale(Object[].class);
+  private static final int _Ibase  = _unsafe.arrayBaseOffset(int[].class);
+  private static final int _Iscale = _unsafe.arrayIndexScale(int[].class);
   private static long rawIndex(final Object[] ary, final int idx) {
     assert idx >= 0 && idx < ary.length;
     return _Obase + idx * _Oscale;
@@ -104,16 +121,115 @@ public class OCCHashMap<TypeK, TypeV extends Versioned>
   }
 
   // --- Adding a 'prime' bit onto Values via wrapping with a junk wrapper class
-  private static final class Prime {
-    final Object _V;
+  // Table copies re-use one box for many slots (see copy_slot), so _V may
+  // change once the box leaves a slot; volatile, to order that change after
+  // the slot's last CAS.
+  private static class Prime {
+    volatile Object _V;
     Prime( Object V ) { _V = V; }
     static Object unbox( Object V ) { return V instanceof Prime ? ((Prime)V)._V : V; }
   }
 
+  // --- Claim ---------------------------------------------------------------
+  // A Value slot in the middle of changing on behalf of a writer.  Being a
+  // Prime, it costs 'get' nothing: only a Prime'd value gets a second look.
+  // Nobody ever waits on a Claim; they 'settle' it instead, CAS'ing the slot
+  // to its outcome.
+  private static abstract class Claim extends Prime {
+    Claim( Object old ) { super(old); }
+    // The value this slot holds right now, decided so that the answer
+    // cannot change afterwards.
+    abstract Object outcome( OCCHashMap topmap, Object key );
+  }
+
+  // --- Intent --------------------------------------------------------------
+  // A Value slot claimed by a committing Transaction.  It reads as its old
+  // value (the Prime'd _V) until the transaction commits and as its new value
+  // after, so the single CAS on the transaction's status flips all of its
+  // slots at once.  Settling an Intent aborts the transaction if it is still
+  // undecided.
+  private static final class Intent extends Claim {
+    final Transaction _txn;
+    final Object _new;          // TOMBSTONE to delete; _V for a key only read
+    Intent( Transaction txn, Object old, Object nnn ) { super(old); _txn = txn; _new = nnn; }
+    // The value this slot holds right now.  Deciding aborts an undecided
+    // transaction, so that the answer cannot change afterwards.
+    Object resolve( boolean decide ) {
+      int st = _txn.status();
+      if( st == Transaction.ACTIVE && decide ) st = _txn.decide(Transaction.ABORTED);
+      return st == Transaction.COMMITTED ? _new : _V;
+    }
+    Object outcome( OCCHashMap topmap, Object key ) { return resolve(true); }
+    // An Intent replaces exactly the value the transaction read: no
+    // 'equals', and an absent read matches no versioned delete.
+    boolean matches( Object V ) { return V == _V || (V == null && _V == TOMBSTONE); }
+  }
+
+  // --- Pending -------------------------------------------------------------
+  // A write in a snapshot-mode table, published in two steps so that open
+  // Snapshots can keep the value it replaces.  The first thread to settle it
+  // decides which snapshots were open: that read of the snapshot list is the
+  // linearization point of the write.  Every settler then preserves the old
+  // value in each of those snapshots before CAS'ing in the new value, so no
+  // snapshot taken earlier can see the new value, and no reader can see the
+  // old value once a later snapshot exists.
+  private static final class Pending extends Claim {
+    final Object _new;
+    volatile Snapshot[] _open;  // Snapshots open at the write; null until decided
+    private static final AtomicReferenceFieldUpdater<Pending,Snapshot[]> _openUpdater =
+      AtomicReferenceFieldUpdater.newUpdater(Pending.class, Snapshot[].class, "_open");
+    Pending( Object old, Object nnn ) { super(old); _new = nnn; }
+    Object outcome( OCCHashMap topmap, Object key ) {
+      Snapshot[] open = _open;
+      if( open == null ) {
+        final SnapshotRegistry reg = topmap._registry;
+        _openUpdater.compareAndSet(this,null,reg == null ? SnapshotRegistry.NONE : reg.open());
+        open = _open;
+      }
+      for( final Snapshot S : open )
+        S.preserve(key, _V == null ? TOMBSTONE : _V);
+      return _new;
+    }
+  }
+
+  // --- settle --------------------------------------------------------------
+  // Replace any Claim in slot idx by its outcome.  Returns the Value slot
+  // contents, which are no longer a Claim (but might be a copy Prime).
+  private static Object settle( final OCCHashMap topmap, final Object[] kvs, final int idx, Object V ) {
+    while( V instanceof Claim ) {
+      final Claim C = (Claim)V;
+      final Object R = C.outcome(topmap,key(kvs,idx));
+      if( CAS_val(kvs,idx,C,R) ) {
+        // Installing an Intent left the size alone; account for it now.  A
+        // Pending always settles to its new value, so its writer already did.
+        // An Intent settling to the value it read (a key only read, or an
+        // aborted transaction) changed nothing, and tells nobody.
+        if( C instanceof Intent && R != C._V ) {
+          final boolean was = !isTomb(C._V), is = !isTomb(R);
+          if( !was &&  is ) chm(kvs)._size.add( 1);
+          if(  was && !is ) chm(kvs)._size.add(-1);
+          topmap.wake(key(kvs,idx),R);
+          topmap.committed(key(kvs,idx)); // txnCommit logged it
+        }
+        return R;
+      }
+      V = val(kvs,idx);         // Lost the race; look again
+    }
+    return V;
+  }
+
   // --- hash ----------------------------------------------------------------
-  // Helper function to spread lousy hashCodes
-  private static final int hash(final Object key) {
-    int h = key.hashCode();     // The real hashCode call
+  // Helper function to spread lousy hashCodes.  Maps without a KeyStrategy
+  // pay one null check for the option, and the hashCode call site stays as
+  // it always was.  The seed is the hashing table's; unseeded tables pass
+  // null and pay one more null check.
+  private static final int hash(final OCCHashMap topmap, final Object key, final Seed seed) {
+    final KeyStrategy ks = topmap._strategy;
+    int h;
+    if( seed != null ) h = seed.hash(ks,key);
+    else if( ks == null ) h = key.hashCode(); // The real hashCode call
+    else if( key == null ) throw new NullPointerException(); // Strategies might take null
+    else h = ks.hashCode(key);
     // Spread bits to regularize both segment and index locations,
     // using variant of single-word Wang/Jenkins hash.
     h += (h <<  15) ^ 0xffffcd7d;
@@ -124,11 +240,45 @@ public class OCCHashMap<TypeK, TypeV extends Versioned>
     return h ^ (h >>> 16);
   }
 
+  // The key's hash in a table created by a resize of 'chm'.  Only a resize
+  // that changed the seed makes it differ from the old table's.
+  private static final int hashIn(final OCCHashMap topmap, final CHM chm, final Object[] newkvs, final Object key, final int fullhash) {
+    final Seed seed = chm(newkvs)._seed;
+    return seed == chm._seed ? fullhash : hash(topmap,key,seed);
+  }
+
+  // --- Seed ----------------------------------------------------------------
+  // Secret per-table hashing key, for maps with hash seeding enabled.
+  // String keys (and byte[] keys under KeyStrategy.BYTE_ARRAY) are hashed by
+  // content with SipHash, so hashCode collisions - which are easy to find for
+  // Strings - do not survive.  Other keys only have the seed mixed in ahead
+  // of the spreader: that scatters keys whose hashCodes merely share the low
+  // bits, but keys with equal hashCodes still collide whatever the seed.
+  private static final class Seed {
+    private static final java.security.SecureRandom RANDOM = new java.security.SecureRandom();
+    final long _k0, _k1;
+    final int _spread;
+    private Seed() {
+      _k0 = RANDOM.nextLong();
+      _k1 = RANDOM.nextLong();
+      _spread = (int)(_k0 ^ (_k1 >>> 32));
+    }
+    int hash( final KeyStrategy ks, final Object key ) {
+      if( ks == null && key instanceof String )
+        return SipHash.hash(_k0,_k1,(String)key);
+      if( ks == KeyStrategy.BYTE_ARRAY && key instanceof byte[] )
+        return SipHash.hash(_k0,_k1,(byte[])key);
+      if( key == null ) throw new NullPointerException();
+      return (ks == null ? key.hashCode() : ks.hashCode(key)) ^ _spread;
+    }
+  }
+
   // --- The Hash Table --------------------
   // Slot 0 is always used for a 'CHM' entry below to hold the interesting
   // bits of the hash table.  Slot 1 holds full hashes as an array of ints.
   // Slots {2,3}, {4,5}, etc hold {Key,Value} pairs.  The entire hash table
-  // can be atomically replaced by CASing the _kvs field.
+  // can be atomically replaced by CASing the _kvs field.  Tables larger than
+  // one chunk are laid out differently; see "chunked tables" below.
   //
   // Why is CHM buried inside the _kvs Object array, instead of the other way
   // around?  The CHM info is used during resize events and updates, but not
@@ -137,13 +287,22 @@ public class OCCHashMap<TypeK, TypeV extends Versioned>
   // CHM to reach the _kvs array.
   private transient Object[] _kvs;
   private static final CHM   chm   (Object[] kvs) { return (CHM  )kvs[0]; }
-  private static final int[] hashes(Object[] kvs) { return (int[])kvs[1]; }
   // Number of K,V pairs in the table
-  private static final int len(Object[] kvs) { return (kvs.length-2)>>1; }
+  private static final int len(Object[] kvs) {
+    return flat(kvs) ? (kvs.length-2)>>1 : (kvs.length-3)<<CHUNK_LOG;
+  }
 
   // Time since last resize
   private transient long _last_resize_milli;
 
+  // How long a versioned delete must keep blocking stale puts before a table
+  // copy may drop it.
+  private volatile long _tombstone_horizon_milli = DEFAULT_TOMBSTONE_HORIZON_MILLI;
+
+  // Merges puts that lose on version instead of failing them; null to fail.
+  private volatile ConflictResolver<Versioned> _resolver;
+  private static final long DEFAULT_TOMBSTONE_HORIZON_MILLI = 60*1000;
+
   // --- Minimum table size ----------------
   // Pick size 8 K/V pairs, which turns into (8*2+2)*4+12 = 84 bytes on a
   // standard 32-bit HotSpot, and (8*2+2)*8+12 = 156 bytes on 64-bit Azul.
@@ -157,6 +316,13 @@ public class OCCHashMap<TypeK, TypeV extends Versioned>
   // Match-Any-not-null - putIfMatch does updates only if it find a real old
   // value.
   private static final Object MATCH_ANY = new Object(); // Sentinel
+  // Match-Version - putIfMatch does updates only if it finds a real old value
+  // at exactly this version.  Compares version numbers only, never 'equals'.
+  private static final class MatchVersion {
+    final long _version;
+    MatchVersion( long version ) { _version = version; }
+    boolean matches( Object V ) { return V instanceof Versioned && !isTomb(V) && ((Versioned)V).getVersion() == _version; }
+  }
   // This K/V pair has been deleted (but the Key slot is forever claimed).
   // The same Key can be reinserted with a new value later.
   private static final Object TOMBSTONE = new Object();
@@ -165,6 +331,21 @@ public class OCCHashMap<TypeK, TypeV extends Versioned>
   // updates can happen to the old table (and since the K/V pair was deleted
   // nothing was copied to the new table).
   private static final Prime TOMBPRIME = new Prime(TOMBSTONE);
+  // A TOMBSTONE that remembers the version it deleted.  It reads as absent
+  // everywhere TOMBSTONE does, but being Versioned it keeps the OCC check
+  // in putIfMatch rejecting stale puts of the deleted key.  Stamped with its
+  // birth time so a table copy can drop it once it passes the horizon.
+  private static final class VTombstone implements Versioned {
+    final long _version;
+    final long _milli;
+    VTombstone( long version, long milli ) { _version = version; _milli = milli; }
+    public long getVersion() { return _version; }
+    public String toString() { return "tombstone@v"+_version; }
+  }
+  private static boolean isTomb( Object V ) { return V == TOMBSTONE || V instanceof VTombstone; }
+  // A deleted key kept by a table copy because an open Snapshot might still
+  // read it.  Versioned below every real version, and expired at birth.
+  private static final VTombstone DEAD = new VTombstone(Long.MIN_VALUE,0);
 
   // --- key,val -------------------------------------------------------------
   // Access K,V for a given idx
@@ -173,13 +354,102 @@ public class OCCHashMap<TypeK, TypeV extends Versioned>
   // field only once, and share that read across all key/val calls - lest the
   // _kvs field move out from under us and back-to-back key & val calls refer
   // to different _kvs arrays.
-  private static final Object key(Object[] kvs,int idx) { return kvs[(idx<<1)+2]; }
-  private static final Object val(Object[] kvs,int idx) { return kvs[(idx<<1)+3]; }
+  private static final Object key(Object[] kvs,int idx) { return flat(kvs) ? kvs[(idx<<1)+2] : chunk_get(kvs,idx,0); }
+  private static final Object val(Object[] kvs,int idx) { return flat(kvs) ? kvs[(idx<<1)+3] : chunk_get(kvs,idx,1); }
   private static final boolean CAS_key( Object[] kvs, int idx, Object old, Object key ) {
-    return _unsafe.compareAndSwapObject( kvs, rawIndex(kvs,(idx<<1)+2), old, key );
+    if( flat(kvs) ) return _unsafe.compareAndSwapObject( kvs, rawIndex(kvs,(idx<<1)+2), old, key );
+    final Object[] c = make_chunk(kvs,idx);
+    return _unsafe.compareAndSwapObject( c, rawIndex(c,(idx&CHUNK_MASK)<<1), old, key );
   }
   private static final boolean CAS_val( Object[] kvs, int idx, Object old, Object val ) {
-    return _unsafe.compareAndSwapObject( kvs, rawIndex(kvs,(idx<<1)+3), old, val );
+    if( flat(kvs) ) return _unsafe.compareAndSwapObject( kvs, rawIndex(kvs,(idx<<1)+3), old, val );
+    final Object[] c = chunk(kvs,idx); // Exists: its key was read first
+    return _unsafe.compareAndSwapObject( c, rawIndex(c,((idx&CHUNK_MASK)<<1)+1), old, val );
+  }
+  // The memoized full hash of slot idx; 0 if not memoized yet.
+  private static final int hash_at( Object[] kvs, int idx ) {
+    return flat(kvs) ? ((int[])kvs[1])[idx] : chunk_hash(kvs,idx);
+  }
+  // Only by the thread that claimed the key slot.  A chunk killed since
+  // has no hashes left to memoize into.
+  private static final void set_hash( Object[] kvs, int idx, int fullhash ) {
+    if( flat(kvs) ) { ((int[])kvs[1])[idx] = fullhash; return; }
+    final int[] hs = ((int[][])kvs[1])[idx>>>CHUNK_LOG];
+    if( hs != null ) hs[idx&CHUNK_MASK] = fullhash;
+  }
+
+  // --- chunked tables ------------------------------------------------------
+  // A table of more than CHUNK K/V pairs is a spine of chunks instead of one
+  // array, so that no allocation grows past a few hundred KB - far below
+  // G1's humongous-object threshold - however big the map.  The spine holds
+  // the CHM in slot 0, a spine of hash chunks in slot 1, one K/V chunk per
+  // slot from slot 2 on, and a pad slot that gives it an odd length; flat
+  // tables always have an even length, which is how the accessors tell the
+  // two apart.  Hash and K/V chunks are addressed like a flat table's arrays
+  // of CHUNK pairs, without the two header slots.
+  //
+  // A table is allocated a chunk at a time: the spines up front, each chunk
+  // when a key is first claimed in it (hashes first, so that whoever sees
+  // the K/V chunk finds its hashes).  A table copy frees the old table a
+  // chunk at a time too: each chunk it is done with is swapped for the
+  // shared dead chunk, whose keys and values read exactly like copied-out
+  // slots, and chunks never written to are retired that way whole.  Readers
+  // of a dead chunk see TOMBSTONE keys and move on to the new table.
+  private static final int CHUNK_LOG = 14;
+  private static final int CHUNK = 1<<CHUNK_LOG;
+  private static final int CHUNK_MASK = CHUNK-1;
+  private static final boolean flat( Object[] kvs ) { return (kvs.length&1) == 0; }
+  private static final Object[] chunk( Object[] kvs, int idx ) { return (Object[])kvs[(idx>>>CHUNK_LOG)+2]; }
+  // Probes read chunks through Unsafe: a bounds check or cast would load the
+  // chunk's header, one more cache line per probe, which in a table too big
+  // for the cache is rarely still there.
+  private static final Object chunk_get( Object[] kvs, int idx, int kv ) {
+    final Object c = _unsafe.getObject(kvs,rawIndex(kvs,(idx>>>CHUNK_LOG)+2));
+    return c == null ? null : _unsafe.getObject(c,_Obase+(((idx&CHUNK_MASK)<<1)+kv)*_Oscale);
+  }
+  private static final int chunk_hash( Object[] kvs, int idx ) {
+    final Object hs = _unsafe.getObject(kvs[1],_Obase+(idx>>>CHUNK_LOG)*_Oscale);
+    return hs == null ? 0 : _unsafe.getInt(hs,_Ibase+(idx&CHUNK_MASK)*_Iscale);
+  }
+  private static final Object[] make_chunk( Object[] kvs, int idx ) {
+    final int[][] hss = (int[][])kvs[1];
+    final int c = idx>>>CHUNK_LOG;
+    if( kvs[c+2] == null ) {
+      if( hss[c] == null )
+        _unsafe.compareAndSwapObject(hss,rawIndex(hss,c),null,new int[CHUNK]);
+      _unsafe.compareAndSwapObject(kvs,rawIndex(kvs,c+2),null,new Object[CHUNK<<1]);
+    }
+    return (Object[])kvs[c+2];  // Ours, the racing winner's, or dead
+  }
+  // Swap chunk c of an old table for the dead chunk, if it still is
+  // 'expect' (null for a chunk never written), and drop its hashes.
+  private static final boolean kill_chunk( Object[] kvs, int c, Object expect ) {
+    if( !_unsafe.compareAndSwapObject(kvs,rawIndex(kvs,c+2),expect,DeadChunk.KVS) ) return false;
+    final Object[] hss = (Object[])kvs[1];
+    _unsafe.putObjectVolatile(hss,rawIndex(hss,c),null);
+    return true;
+  }
+  // A fresh table of 1<<log2 K/V pairs, with no CHM yet.
+  private static final Object[] new_table( int log2 ) {
+    if( log2 <= CHUNK_LOG ) {   // Flat: double size for K,V pairs, add 1 for CHM and 1 for hashes
+      final Object[] kvs = new Object[((1<<log2)<<1)+2];
+      kvs[1] = new int[1<<log2];
+      return kvs;
+    }
+    final Object[] kvs = new Object[(1<<(log2-CHUNK_LOG))+3];
+    kvs[1] = new int[1<<(log2-CHUNK_LOG)][];
+    return kvs;
+  }
+  // A chunk of an old table that the copy is done with, or that nothing was
+  // ever put in: every key TOMBSTONE, every value TOMBPRIME.
+  private static final class DeadChunk {
+    static final Object[] KVS = new Object[CHUNK<<1];
+    static {
+      for( int i=0; i<CHUNK; i++ ) {
+        KVS[(i<<1)  ] = TOMBSTONE;
+        KVS[(i<<1)+1] = TOMBPRIME;
+      }
+    }
   }
 
 
@@ -228,6 +498,64 @@ public class OCCHashMap<TypeK, TypeV extends Versioned>
     }
   }
 
+  // Superseded values, kept only when history is enabled.  Read on the
+  // commit path; 'get' never looks at it.
+  private transient volatile VersionHistory _history;
+
+  // Callers blocked in awaitVersion; null until the first one.
+  private transient volatile VersionWaiters _waiters;
+  private static final AtomicReferenceFieldUpdater<OCCHashMap,VersionWaiters> _waitersUpdater =
+    AtomicReferenceFieldUpdater.newUpdater(OCCHashMap.class, VersionWaiters.class, "_waiters");
+
+  // Open Snapshots, copied on write; null until snapshots are enabled.
+  private transient volatile SnapshotRegistry _registry;
+  private static final AtomicReferenceFieldUpdater<OCCHashMap,SnapshotRegistry> _registryUpdater =
+    AtomicReferenceFieldUpdater.newUpdater(OCCHashMap.class, SnapshotRegistry.class, "_registry");
+
+  // How values are held, when not strongly; see enableWeakValues.
+  private transient volatile ValueRefs _valueRefs;
+  private static final AtomicReferenceFieldUpdater<OCCHashMap,ValueRefs> _valueRefsUpdater =
+    AtomicReferenceFieldUpdater.newUpdater(OCCHashMap.class, ValueRefs.class, "_valueRefs");
+
+  // The cold tier values spill to; null until spilling is enabled.
+  private transient volatile SegmentStore _spill;
+  private static final AtomicReferenceFieldUpdater<OCCHashMap,SegmentStore> _spillUpdater =
+    AtomicReferenceFieldUpdater.newUpdater(OCCHashMap.class, SegmentStore.class, "_spill");
+
+  // Keys written since the last checkpoint; null until the first one.
+  private transient volatile Checkpoint _checkpoint;
+
+  // The commits logged while an online checkpoint runs; else null.
+  private transient volatile Checkpoint.Log _changeLog;
+  private static final AtomicReferenceFieldUpdater<OCCHashMap,Checkpoint.Log> _changeLogUpdater =
+    AtomicReferenceFieldUpdater.newUpdater(OCCHashMap.class, Checkpoint.Log.class, "_changeLog");
+
+  // How keys hash and compare; null for their own hashCode and equals
+  private final KeyStrategy<Object> _strategy;
+
+  // Whether new tables get a random Seed; see enableHashSeeding.
+  private volatile boolean _seeded;
+
+  // The key to use in the side tables (history, transactions, snapshots).
+  // They are plain hash maps, so under a KeyStrategy the key is wrapped to
+  // hash and compare the same way as in the table.
+  final Object sideKey( final Object key ) {
+    return _strategy == null ? key : new SideKey(key,_strategy);
+  }
+  static Object unwrap( final Object sideKey ) {
+    return sideKey instanceof SideKey ? ((SideKey)sideKey)._key : sideKey;
+  }
+  private static final class SideKey {
+    final Object _key;
+    final KeyStrategy<Object> _ks;
+    SideKey( Object key, KeyStrategy<Object> ks ) {
+      if( key == null ) throw new NullPointerException();
+      _key = key; _ks = ks;
+    }
+    public int hashCode() { return _ks.hashCode(_key); }
+    public boolean equals( Object o ) { return o instanceof SideKey && _ks.equals(_key,((SideKey)o)._key); }
+  }
+
   // Count of reprobes
   private transient Counter _reprobes = new Counter();
   /** Get and clear the current count of reprobes.  Reprobes happen on key
@@ -237,6 +565,23 @@ public class OCCHashMap<TypeK, TypeV extends Versioned>
    *  or since the table was created.   */
   public long reprobes() { long r = _reprobes.get(); _reprobes = new Counter(); return r; }
 
+  /** Length of the longest probe sequence in the current table: how many
+   *  slots past its first choice the farthest-displaced key sits.  A
+   *  debugging aid for judging how well keys hash; it walks the whole table.
+   *  @return the longest probe sequence, 0 if every key is in its first slot */
+  public int longestProbe() {
+    final Object[] kvs = _kvs;
+    final int len = len(kvs);
+    final Seed seed = chm(kvs)._seed;
+    int max = 0;
+    for( int i=0; i<len; i++ ) {
+      final Object K = key(kvs,i);
+      if( K == null || K == TOMBSTONE ) continue;
+      max = Math.max(max,(i - hash(this,K,seed)) & (len-1));
+    }
+    return max;
+  }
+
 
   // --- reprobe_limit -----------------------------------------------------
   // Heuristic to decide if we have reprobed toooo many times.  Running over
@@ -259,21 +604,71 @@ public class OCCHashMap<TypeK, TypeV extends Versioned>
    *  appropriate size.  Large numbers here when used with a small count of
    *  elements will sacrifice space for a small amount of time gained.  The
    *  initial size will be rounded up internally to the next larger power of 2. */
-  public OCCHashMap( final int initial_sz ) { initialize(initial_sz); }
+  public OCCHashMap( final int initial_sz ) { this(initial_sz,null); }
+
+  /** Create a new OCCHashMap with default minimum size, hashing and
+   *  comparing keys with the given strategy instead of their own
+   *  <tt>hashCode</tt> and <tt>equals</tt>.
+   *  @param strategy the key strategy, or null for the keys' own methods */
+  public OCCHashMap( final KeyStrategy<? super TypeK> strategy ) { this(MIN_SIZE,strategy); }
+
+  /** Create a new OCCHashMap with initial room for the given number of
+   *  elements, hashing and comparing keys with the given strategy.
+   *  @param strategy the key strategy, or null for the keys' own methods */
+  public OCCHashMap( final int initial_sz, final KeyStrategy<? super TypeK> strategy ) {
+    _strategy = strategy == KeyStrategy.EQUALS ? null : (KeyStrategy<Object>)strategy;
+    initialize(initial_sz);
+  }
   private final void initialize( int initial_sz ) {
     if( initial_sz < 0 ) throw new IllegalArgumentException();
     int i;                      // Convert to next largest power-of-2
     if( initial_sz > 1024*1024 ) initial_sz = 1024*1024;
     for( i=MIN_SIZE_LOG; (1<<i) < (initial_sz<<2); i++ ) ;
-    // Double size for K,V pairs, add 1 for CHM and 1 for hashes
-    _kvs = new Object[((1<<i)<<1)+2];
-    _kvs[0] = new CHM(new Counter()); // CHM in slot 0
-    _kvs[1] = new int[1<<i];          // Matching hash entries
+    _kvs = new_table(i);
+    _kvs[0] = new CHM(new Counter(),false,_seeded ? new Seed() : null); // CHM in slot 0
     _last_resize_milli = System.currentTimeMillis();
   }
   // Version for subclassed readObject calls, to be called after the defaultReadObject
   protected final void initialize() { initialize(MIN_SIZE); }
 
+  /** Hash keys under a secret random seed, so that keys chosen to collide
+   *  cannot crowd into one probe sequence.  String keys (and {@code byte[]}
+   *  keys under {@link KeyStrategy#BYTE_ARRAY}) are then hashed by content
+   *  with SipHash instead of their {@code hashCode}, which makes String
+   *  lookups somewhat slower.  Other keys get the seed mixed into their
+   *  {@code hashCode}; keys whose hashCodes are equal keep colliding.
+   *  <p>Each table has its own seed.  Should a long probe sequence turn up in
+   *  a sparsely filled table anyway, the resize it triggers picks a new seed.
+   *  Enabling copies the table once; later calls do nothing. */
+  public void enableHashSeeding() {
+    _seeded = true;
+    recopy();
+  }
+
+  /** Set how long a deletion made by {@link #remove(Object,long)} keeps
+   *  rejecting stale puts.  Versioned deletes older than this are dropped
+   *  (and their keys forgotten) by the next table resize; younger ones are
+   *  copied along like live values.  Defaults to one minute.
+   *  @param millis the horizon in milliseconds; zero purges on every resize */
+  public void setTombstoneHorizon( final long millis ) {
+    if( millis < 0 ) throw new IllegalArgumentException();
+    _tombstone_horizon_milli = millis;
+  }
+
+  /** Merge conflicting puts instead of failing them.  When a {@link #put}
+   *  carries a version no greater than the value it would replace, the map
+   *  stores <tt>resolver.merge(existing, incoming)</tt> instead, and retries
+   *  the merge itself if another write slips in, rather than throwing a
+   *  {@link VersionConflictException} for the caller to re-read and retry.
+   *  Conditional writes ({@link #putIfAbsent}, {@link #replace}, {@link
+   *  #putIfVersion}, ...), transactions and versioned deletes keep failing
+   *  on conflict, and a value deleted by {@link #remove(Object,long)} is not
+   *  merged with.
+   *  @param resolver the resolver, or null to throw on conflict again */
+  public void setConflictResolver( final ConflictResolver<? super TypeV> resolver ) {
+    _resolver = (ConflictResolver<Versioned>)resolver;
+  }
+
   // --- wrappers ------------------------------------------------------------
 
   /** Returns the number of key-value mappings in this map.
@@ -329,6 +724,22 @@ public class OCCHashMap<TypeK, TypeV extends Versioned>
   @Override
   public TypeV   remove     ( Object key )            { return putIfMatch( key,TOMBSTONE, NO_MATCH_OLD); }
 
+  /** Removes the key at the given version.  Unlike {@link #remove(Object)},
+   *  the deletion keeps its version in the table, so a delayed writer still
+   *  holding an older version cannot re-create the key: any later put with
+   *  a version no greater than <tt>version</tt> fails with a {@link
+   *  VersionConflictException}, exactly as if the value were still there.
+   *  Versioned deletes are purged by table resizes once they are older than
+   *  the {@link #setTombstoneHorizon tombstone horizon}.
+   *  @return the previous value associated with <tt>key</tt>, or
+   *         <tt>null</tt> if there was no mapping for <tt>key</tt>
+   *  @throws NullPointerException if the specified key is null
+   *  @throws VersionConflictException if the key is mapped at a version no
+   *         less than <tt>version</tt> */
+  public TypeV   remove     ( Object key, long version ) {
+    return putIfMatch( key, new VTombstone(version,System.currentTimeMillis()), NO_MATCH_OLD);
+  }
+
   /** Atomically do a {@link #remove(Object)} if-and-only-if the key is mapped
    *  to a value which is <code>equals</code> to the given value.
    *  @throws NullPointerException if the specified key or value is null */
@@ -350,8 +761,232 @@ public class OCCHashMap<TypeK, TypeV extends Versioned>
 	  return (oldValue == null) ? out == oldValue : oldValue.equals(out);
   }
 
+  /** Atomically do a <code>put(key,val)</code> if-and-only-if the key is
+   *  mapped to a value whose version is exactly <tt>expectedVersion</tt>.
+   *  This is the optimistic commit of a read-modify-write without holding on
+   *  to the value read: only version numbers are compared, and the values'
+   *  <code>equals</code> is never called.
+   *  @return <tt>true</tt> if the value was replaced, <tt>false</tt> if the
+   *          key is not mapped or is mapped at a different version
+   *  @throws NullPointerException if the specified key or value is null
+   *  @throws VersionConflictException if <tt>val</tt>'s version is no
+   *          greater than <tt>expectedVersion</tt> */
+  public boolean putIfVersion( TypeK key, TypeV val, long expectedVersion ) {
+    final TypeV out = putIfMatch(key, val, new MatchVersion(expectedVersion));
+    return out != null && out.getVersion() == expectedVersion;
+  }
+
+  /** Atomically replace the key's value with <tt>fn</tt> applied to it,
+   *  without blocking the calling thread.  Each attempt runs on
+   *  <tt>executor</tt>: it reads the key, applies the function to the value
+   *  (null if absent) and commits only if nothing was written in between.
+   *  An attempt that loses that race is retried after a randomized,
+   *  exponentially growing backoff - on a timer, never by spinning or
+   *  sleeping a thread - up to {@value #DEFAULT_UPDATE_ATTEMPTS} attempts.
+   *  <p>The function may run more than once and must not have side effects.
+   *  It returns the new value, with a greater version than the one it was
+   *  given, or null to remove the key.
+   *  @return a future of the value committed (null if the key was removed).
+   *          It completes exceptionally with a {@link
+   *          java.util.ConcurrentModificationException} once every attempt
+   *          has lost, and with whatever the function or the commit threw
+   *          (such as a {@link VersionConflictException}) otherwise.
+   *  @throws NullPointerException if any argument is null */
+  public CompletableFuture<TypeV> updateAsync( final TypeK key, final Function<? super TypeV,? extends TypeV> fn, final Executor executor ) {
+    return updateAsync(key,fn,executor,DEFAULT_UPDATE_ATTEMPTS);
+  }
+
+  /** As {@link #updateAsync(Object,Function,Executor)}, giving up after
+   *  <tt>maxAttempts</tt> attempts.
+   *  @throws IllegalArgumentException if <tt>maxAttempts</tt> is not positive */
+  public CompletableFuture<TypeV> updateAsync( final TypeK key, final Function<? super TypeV,? extends TypeV> fn, final Executor executor, final int maxAttempts ) {
+    if( key == null || fn == null || executor == null ) throw new NullPointerException();
+    if( maxAttempts < 1 ) throw new IllegalArgumentException("maxAttempts: "+maxAttempts);
+    final AsyncUpdate<TypeK,TypeV> U = new AsyncUpdate<TypeK,TypeV>(this,key,fn,executor,maxAttempts);
+    U.start();
+    return U._future;
+  }
+  /** Attempts made by {@link #updateAsync(Object,Function,Executor)}. */
+  public static final int DEFAULT_UPDATE_ATTEMPTS = 32;
+
+  // --- update --------------------------------------------------------------
+  /** Atomically replace the key's value with <tt>fn</tt> applied to it.  The
+   *  function gets the current value (null if absent) and returns the new
+   *  one, with a greater version, or null to remove the key.  It may run
+   *  more than once and must not have side effects.
+   *  <p>Updates race for the key with a CAS, like any write.  On a key so
+   *  hot that updates keep losing that race, they switch to flat combining:
+   *  each publishes its function and one thread applies the whole batch in
+   *  order, committing it with a single CAS.  The switch is automatic, per
+   *  key, and undone once the key cools down.  With {@link #enableEscalation
+   *  escalation} enabled, starving updates take a lease on their key
+   *  instead.
+   *  @return the value committed, or null if the key was removed
+   *  @throws NullPointerException if the key or function is null
+   *  @throws VersionConflictException if the function returns a version no
+   *          greater than the one it was given */
+  public TypeV update( final TypeK key, final Function<? super TypeV,? extends TypeV> fn ) {
+    if( key == null || fn == null ) throw new NullPointerException();
+    final Escalation escalation = _escalation;
+    if( escalation != null ) return escalation.update(this,key,fn);
+    final ConcurrentMap<Object,Combiner> combiners = _combiners;
+    final Combiner C = combiners == null ? null : combiners.get(sideKey(key));
+    if( C != null ) return (TypeV)C.apply(fn);
+    for( int lost = 0; lost < COMBINE_AFTER; lost++ ) {
+      final TypeV cur = get(key);
+      final TypeV next = fn.apply(cur);
+      if( commitUpdate(key,cur,next) ) return next;
+    }
+    return (TypeV)combiner(key).apply(fn); // Too hot to keep racing
+  }
+  // CAS races an update may lose before it moves its key to combining.
+  private static final int COMBINE_AFTER = 4;
+
+  // --- profiling -----------------------------------------------------------
+  // Sampling profiler of hot keys; null unless enabled.  Only the commit
+  // and conflict paths of writes look at it.
+  private transient volatile KeyProfiler _profiler;
+
+  /** Start sampling which keys take the writes, the conflicts and the
+   *  longest probe sequences, into a fixed-size {@link KeyProfiler}.  One in
+   *  <tt>sampleRate</tt> events is counted; {@link #get} is never sampled.
+   *  Calling this again starts over with a new profiler.
+   *  @param sampleRate 1 to count every event, higher to count fewer
+   *  @return the profiler, to query or to {@link KeyProfiler#registerMBean
+   *          register} with JMX
+   *  @throws IllegalArgumentException if <tt>sampleRate</tt> is not positive */
+  public KeyProfiler enableProfiling( final int sampleRate ) {
+    final KeyProfiler profiler = new KeyProfiler(this,sampleRate);
+    _profiler = profiler;
+    return profiler;
+  }
+
+  /** Stop profiling; the last profiler keeps what it has sampled. */
+  public void disableProfiling() { _profiler = null; }
+
+  /** The current profiler, or null if profiling is not enabled. */
+  public KeyProfiler profiler() { return _profiler; }
+
+  private void profile( final int measure, final Object key, final long amount ) {
+    final KeyProfiler profiler = _profiler;
+    if( profiler != null ) profiler.sample(measure,key,amount);
+  }
+
+  // Leases for starving updates; null unless escalation is enabled.
+  private transient volatile Escalation _escalation;
+
+  /** Make {@link #update} fair on contended keys.  OCC alone lets an
+   *  unlucky updater lose the race for a hot key again and again.  Once an
+   *  update has lost <tt>conflicts</tt> races in a row, it takes a short
+   *  lease on the key instead: a fair lock that hands the key to its queued
+   *  updaters in turn.  The lease lasts a millisecond past the last time
+   *  anyone queued for it, and while it lasts the key's other updates queue
+   *  too; then the key is back to lock-free.  Keys that never starve stay
+   *  lock-free throughout.  Leases are striped, so an update of a cold key
+   *  can briefly queue behind a leased key that shares its stripe.
+   *  <p>This replaces the combining that {@link #update} falls back to
+   *  otherwise.  Plain writes ({@link #put}, {@link #putIfVersion}, ...)
+   *  never take leases.  Calling this again resets {@link #contentionStats}.
+   *  @param conflicts races an update may lose before taking a lease
+   *  @throws IllegalArgumentException if <tt>conflicts</tt> is not positive */
+  public void enableEscalation( final int conflicts ) {
+    _escalation = new Escalation(conflicts,LEASE_NANOS);
+  }
+  private static final long LEASE_NANOS = 1000*1000;
+
+  /** Conflict, escalation and starvation counts of {@link #update} since
+   *  {@link #enableEscalation escalation} was enabled.
+   *  @throws IllegalStateException if escalation is not enabled */
+  public ContentionStats contentionStats() {
+    final Escalation escalation = _escalation;
+    if( escalation == null ) throw new IllegalStateException("Escalation is not enabled on this map");
+    return escalation.stats();
+  }
+
+  // Keys currently combining, by side key; null until the first one.
+  private transient volatile ConcurrentMap<Object,Combiner> _combiners;
+  private static final AtomicReferenceFieldUpdater<OCCHashMap,ConcurrentMap> _combinersUpdater =
+    AtomicReferenceFieldUpdater.newUpdater(OCCHashMap.class, ConcurrentMap.class, "_combiners");
+
+  private Combiner combiner( final TypeK key ) {
+    if( _combiners == null )
+      _combinersUpdater.compareAndSet(this,null,new java.util.concurrent.ConcurrentHashMap<Object,Combiner>());
+    final Object side = sideKey(key);
+    final Combiner C = new Combiner<TypeK,TypeV>(this,key,side);
+    final Combiner prev = _combiners.putIfAbsent(side,C);
+    return prev == null ? C : prev;
+  }
+  // A combiner that went idle; its pending writers finish by themselves.
+  final void retire( final Object side, final Combiner C ) { _combiners.remove(side,C); }
+
+  // Commit an update: 'next' replaces 'cur', read earlier from the key,
+  // unless the key moved on since.  Either may be null for absent.
+  final boolean commitUpdate( final Object key, final TypeV cur, final TypeV next ) {
+    final boolean won;
+    if( next == null ) won = cur == null || remove(key,cur);
+    else if( cur == null ) won = putIfAbsent((TypeK)key,next) == null;
+    else won = putIfVersion((TypeK)key,next,cur.getVersion());
+    if( !won ) profile(KeyProfiler.CONFLICTS,key,1);
+    return won;
+  }
+
+  // --- awaitVersion --------------------------------------------------------
+  /** Wait until the key holds a version of at least <tt>minVersion</tt>,
+   *  for instance to read a write another thread is known to have made.
+   *  Returns at once if it already does.  The waiting thread is parked
+   *  until a write of a high enough version wakes it, with no polling, so
+   *  virtual threads unmount while they wait.  A {@link #remove(Object,long)
+   *  versioned delete} at a high enough version also ends the wait.
+   *  @return the key's value at the version reached, or null if that version
+   *          deleted it
+   *  @throws NullPointerException if the specified key is null
+   *  @throws TimeoutException if the version was not reached in time
+   *  @throws InterruptedException if interrupted while waiting */
+  public TypeV awaitVersion( final Object key, final long minVersion, final long timeout, final TimeUnit unit )
+    throws InterruptedException, TimeoutException {
+    final CompletableFuture<TypeV> F = awaitVersionAsync(key,minVersion);
+    try {
+      return F.get(timeout,unit);
+    } catch( ExecutionException e ) { // Never completed exceptionally, but by cancel below
+      throw new AssertionError(e);
+    } finally {
+      F.cancel(false);          // No longer waiting, if not already done
+    }
+  }
+
+  /** A future completing as soon as the key holds a version of at least
+   *  <tt>minVersion</tt>, with the value at that version (null if that
+   *  version deleted it); see {@link #awaitVersion}.  It is completed by the
+   *  writer's thread, so dependent actions that must not run there should be
+   *  attached with an executor.  It never times out on its own: cancel it
+   *  to stop waiting.
+   *  @throws NullPointerException if the specified key is null */
+  public CompletableFuture<TypeV> awaitVersionAsync( final Object key, final long minVersion ) {
+    if( key == null ) throw new NullPointerException();
+    VersionWaiters waiters = _waiters;
+    if( waiters == null ) {
+      _waitersUpdater.compareAndSet(this,null,new VersionWaiters());
+      waiters = _waiters;
+    }
+    final CompletableFuture<Object> F = waiters.add(sideKey(key),minVersion);
+    // Filed first, then read: a write we miss here will find the waiter.
+    final Object raw = getRaw(key);
+    if( raw instanceof Versioned && ((Versioned)raw).getVersion() >= minVersion )
+      F.complete(isTomb(raw) ? null : raw);
+    return (CompletableFuture<TypeV>)(CompletableFuture)F;
+  }
+
+  // Hand a newly committed value to whoever awaits its version.  Without
+  // waiters this costs the commit path one volatile read.
+  private void wake( final Object key, final Object val ) {
+    final VersionWaiters waiters = _waiters;
+    if( waiters != null && !waiters.isEmpty() && val instanceof Versioned )
+      waiters.wake(sideKey(key),(Versioned)val,isTomb(val) ? null : val);
+  }
+
   private final TypeV putIfMatch( Object key, Object newVal, Object oldVal ) {
     if (oldVal == null || newVal == null) throw new NullPointerException();
+    if( _valueRefs != null ) drainValueRefs();
     final Object res = putIfMatch( this, _kvs, key, newVal, oldVal );
     assert !(res instanceof Prime);
     assert res != null;
@@ -363,7 +998,7 @@ public class OCCHashMap<TypeK, TypeV extends Versioned>
           ((Versioned)((VersionConflictResult)res).putVal).getVersion()
       );
     }
-    return res == TOMBSTONE ? null : (TypeV)res;
+    return isTomb(res) ? null : (TypeV)res;
   }
 
 
@@ -379,9 +1014,88 @@ public class OCCHashMap<TypeK, TypeV extends Versioned>
   /** Removes all of the mappings from this map. */
   @Override
   public void clear() {         // Smack a new empty table down
-    Object[] newkvs = new OCCHashMap(MIN_SIZE)._kvs;
-    while( !CAS_kvs(_kvs,newkvs) ) // Spin until the clear works
+    if( _registry != null ) {   // Unless Snapshots must see each removal
+      for( TypeK K : keySet() ) remove(K);
+    } else {
+      Object[] newkvs = new OCCHashMap(MIN_SIZE)._kvs;
+      if( _seeded ) newkvs[0] = new CHM(chm(newkvs)._size,false,new Seed());
+      while( !CAS_kvs(_kvs,newkvs) ) // Spin until the clear works
+        ;
+    }
+    final VersionHistory history = _history;
+    if( history != null ) history.clear();
+    final Checkpoint cp = _checkpoint;
+    if( cp != null ) cp.dirtyAll();
+  }
+
+  // --- bulk load -----------------------------------------------------------
+  // The BulkLoader's way in: it fills a table of its own, sized up front,
+  // and puts it in place of the map's in one go, so none of the resize and
+  // copy protocol applies.
+
+  // A table for 'expected' keys, of the size the constructor would pick
+  // (without its cap) and of the map's kind.
+  final Object[] bulkTable( final int expected ) {
+    if( _registry != null ) throw new IllegalStateException("Snapshots must see every write; bulk loads bypass them");
+    int log2;
+    for( log2=MIN_SIZE_LOG; (1L<<log2) < ((long)expected<<2) && log2 < 30; log2++ ) ;
+    final Object[] kvs = new_table(log2);
+    kvs[0] = new CHM(new Counter(),false,_seeded ? new Seed() : null);
+    return kvs;
+  }
+  static int bulkLen( final Object[] kvs ) { return len(kvs); }
+  final int bulkHash( final Object[] kvs, final Object key ) { return hash(this,key,chm(kvs)._seed); }
+
+  // Write the pair into a table nobody reads yet.  Loaders of other hash
+  // ranges may probe into the same slots near the ends of their ranges, so
+  // keys are still claimed by CAS; a key comes to one loader only, so its
+  // value is plain to write.  A key added twice keeps the later version.
+  // Counts new keys in counts[0] and live values in counts[1].  False if
+  // past the reprobe limit: the caller must put it the ordinary way.
+  final boolean bulkPut( final Object[] kvs, final Object key, final int fullhash, final Object val, final long[] counts ) {
+    final int len = len(kvs);
+    final ValueRefs refs = _valueRefs;
+    final Object sv = (refs != null && !isTomb(val)) ? refs.wrap(key,val) : val;
+    int idx = fullhash & (len-1);
+    for( int reprobe_cnt=0; reprobe_cnt < reprobe_limit(len); reprobe_cnt++, idx = (idx+1)&(len-1) ) {
+      Object K = key(kvs,idx);
+      if( K == null ) {
+        if( CAS_key(kvs,idx,null,key) ) {
+          set_hash(kvs,idx,fullhash);
+          CAS_val(kvs,idx,null,sv);
+          counts[0]++;
+          if( !isTomb(val) ) counts[1]++;
+          return true;
+        }
+        K = key(kvs,idx);       // Lost to a neighbouring range's key
+      }
+      if( keyeq(K,key,_strategy,hash_at(kvs,idx),fullhash) ) {
+        final Object V = val(kvs,idx);
+        if( ((Versioned)sv).getVersion() > ((Versioned)V).getVersion() ) {
+          CAS_val(kvs,idx,V,sv);
+          counts[1] += (isTomb(val) ? 0 : 1) - (isTomb(V) ? 0 : 1);
+        }
+        return true;
+      }
+    }
+    return false;
+  }
+
+  // A put for a key bulkPut could not place; an older duplicate loses quietly.
+  final void bulkOverflow( final Object key, final Object val ) { putIfMatch(this,_kvs,key,val,NO_MATCH_OLD); }
+
+  // Put the loaded table in place of the map's, whatever that held.
+  final void bulkPublish( final Object[] kvs, final long slots, final long live ) {
+    final CHM chm = chm(kvs);
+    chm._slots.add(slots);
+    chm._size.add(live);
+    _last_resize_milli = System.currentTimeMillis();
+    while( !CAS_kvs(_kvs,kvs) ) // Spin until the swap works
       ;
+    final VersionHistory history = _history;
+    if( history != null ) history.clear();
+    final Checkpoint cp = _checkpoint;
+    if( cp != null ) cp.dirtyAll();
   }
 
   /** Returns <tt>true</tt> if this Map maps one or more keys to the specified
@@ -422,12 +1136,18 @@ public class OCCHashMap<TypeK, TypeV extends Versioned>
       // structure is undergoing rapid change.  If I just clone the _kvs
       // field, the CHM in _kvs[0] won't be in sync.
       //
-      // Wipe out the cloned array (it was shallow anyways).
+      // Wipe out the cloned array (it was shallow anyways).  Wipe it with a
+      // fresh table, not key by key: the shallow copy still shares ours.
+      t._registry = null;
+      if( _valueRefs != null ) t._valueRefs = new ValueRefs(_valueRefs._soft); // Its own queue
+      t._spill = null;          // The clone holds its values in memory
       t.clear();
+      // The clone takes its own snapshots, not ours
+      if( _registry != null ) t.enableSnapshots();
       // Now copy sanely
       for( TypeK K : keySet() ) {
-        final TypeV V = get(K);  // Do an official 'get'
-        t.put(K,V);
+        final TypeV V = peek(K); // Do an official 'get', leaving cold values cold
+        if( V != null ) t.put(K,V);
       }
       return t;
     } catch (CloneNotSupportedException e) {
@@ -469,16 +1189,819 @@ public class OCCHashMap<TypeK, TypeV extends Versioned>
     }
   }
 
+  // --- transactions --------------------------------------------------------
+  /** Start a multi-key transaction against this map.  Reads through the
+   *  transaction record the version they saw, writes are buffered, and
+   *  {@link Transaction#commit} applies all writes atomically if-and-only-if
+   *  nothing the transaction read has changed since.  Commit never blocks
+   *  and never makes other operations wait: a conflicting commit, single-key
+   *  update or table resize aborts a transaction that is still committing.
+   *  @return a new transaction, to be used by one thread at a time
+   *  @throws IllegalStateException if values are weakly or softly held, or
+   *          spilling is enabled */
+  public Transaction<TypeK,TypeV> begin() {
+    if( _valueRefs != null ) throw new IllegalStateException("Transactions need strongly held values");
+    if( _spill != null ) throw new IllegalStateException("Transactions need values in memory");
+    return new Transaction<TypeK,TypeV>(this);
+  }
+
+  // Read for transactions and snapshots.  Returns the raw value: null if
+  // absent, possibly a VTombstone (whose version still guards against stale
+  // writes).
+  final Object getRaw( final Object key ) {
+    final Object[] kvs = _kvs;
+    final Object V = read_through(key,get_impl(this,kvs,key,hash(this,key,chm(kvs)._seed)));
+    return V == TOMBSTONE ? null : V; // A cleared value reference
+  }
+  static boolean isLive( final Object raw ) { return raw != null && !isTomb(raw); }
+
+  // --- txnCommit -----------------------------------------------------------
+  // Install an Intent on every key read, expecting exactly the value read;
+  // a failed install means the read set is stale.  Once every Intent is in,
+  // nothing read can change without aborting us first, so flipping the
+  // status to COMMITTED is the linearization point of the whole transaction.
+  // Keys are visited in hash order so that two transactions contending for
+  // the same keys meet on the first one.
+  final boolean txnCommit( final Transaction txn, final Map<Object,Object> reads, final Map<Object,Object> writes ) {
+    final Object[] sides = reads.keySet().toArray();
+    final Object[] keys = new Object[sides.length];
+    final int[] hs = new int[keys.length];
+    for( int i=0; i<keys.length; i++ ) hs[i] = hash(this,keys[i] = unwrap(sides[i]),null);
+    sortByHash(keys,sides,hs);
+
+    final Intent[] intents = new Intent[keys.length];
+    int n = 0;
+    for( ; n<keys.length; n++ ) {
+      if( txn.status() != Transaction.ACTIVE ) break; // Somebody aborted us
+      final Object key = keys[n], side = sides[n];
+      final Object raw = reads.get(side);
+      final Object exp = raw == null ? TOMBSTONE : raw;
+      final Object nnn = writes.containsKey(side)
+        ? (writes.get(side) == null ? TOMBSTONE : writes.get(side))
+        : exp;
+      final Intent I = new Intent(txn,exp,nnn);
+      if( putIfMatch(this,_kvs,key,I,exp) != exp ) break; // Read set is stale
+      intents[n] = I;
+    }
+    // Open snapshots keep the values we are about to replace.  Any snapshot
+    // taken after this point reads our keys only by aborting us first (see
+    // get_impl), or else after we committed.
+    final SnapshotRegistry reg = _registry;
+    final Snapshot[] open = reg == null ? null : reg.open();
+    if( n == keys.length && open != null )
+      for( final Snapshot S : open )
+        for( int i=0; i<n; i++ )
+          if( intents[i]._new != intents[i]._V )
+            S.preserve(keys[i],intents[i]._V);
+    // A running online checkpoint logs the commit, and cannot close between
+    // our status flip and the logging (see Checkpoint.Log).
+    final Checkpoint.Log log = n == keys.length ? enterLog() : null;
+    try {
+      txn.decide(n == keys.length ? Transaction.COMMITTED : Transaction.ABORTED);
+      if( log != null && txn.status() == Transaction.COMMITTED )
+        for( int i=0; i<n; i++ )
+          if( intents[i]._new != intents[i]._V )
+            logCommit(log,keys[i],intents[i]._V,intents[i]._new);
+    } finally {
+      if( log != null ) log.leave();
+    }
+    // Decided either way; now replace our Intents by their outcome.  Any
+    // Intent already settled by somebody else is left alone.
+    for( int i=0; i<n; i++ )
+      putIfMatch(this,_kvs,keys[i],intents[i].resolve(false),intents[i]);
+    return txn.status() == Transaction.COMMITTED;
+  }
+
+  private static void sortByHash( final Object[] keys, final Object[] sides, final int[] hs ) {
+    for( int i=1; i<keys.length; i++ ) // Insertion sort: transactions are small
+      for( int j=i; j>0 && hs[j-1] > hs[j]; j-- ) {
+        final int h = hs[j]; hs[j] = hs[j-1]; hs[j-1] = h;
+        final Object k = keys[j]; keys[j] = keys[j-1]; keys[j-1] = k;
+        final Object s = sides[j]; sides[j] = sides[j-1]; sides[j-1] = s;
+      }
+  }
+
+  // --- value references ----------------------------------------------------
+  /** Hold values written from now on through weak references, so that the
+   *  garbage collector may reclaim any value nothing else refers to.  A
+   *  reclaimed value reads as absent, and a put over it succeeds whatever
+   *  its version; a live one is version-checked as ever.  The entries of
+   *  reclaimed values are removed, through the ordinary compare-and-set, by
+   *  later writes to the map (see {@link #drainValueRefs}); until then they
+   *  still count towards {@link #size}.
+   *  <p>Not compatible with snapshots or transactions, which need the very
+   *  values they read.
+   *  @throws IllegalStateException if snapshots or spilling are enabled, or
+   *          values are already softly held */
+  public void enableWeakValues() { enableValueRefs(false); }
+
+  /** As {@link #enableWeakValues}, but through soft references: values are
+   *  reclaimed only when memory runs short, least recently used first.
+   *  @throws IllegalStateException if snapshots or spilling are enabled, or
+   *          values are already weakly held */
+  public void enableSoftValues() { enableValueRefs(true); }
+
+  private void enableValueRefs( final boolean soft ) {
+    if( _registry != null ) throw new IllegalStateException("Snapshots need strongly held values");
+    if( _spill != null ) throw new IllegalStateException("Values already spill to disk");
+    _valueRefsUpdater.compareAndSet(this,null,new ValueRefs(soft));
+    if( _valueRefs._soft != soft ) throw new IllegalStateException("Values are already "+(soft ? "weakly" : "softly")+" held");
+  }
+
+  /** Remove every entry whose weakly or softly held value has been
+   *  reclaimed since the last drain.  Writes do this too, so only a map
+   *  that is no longer written needs calling it.
+   *  @return the number of entries removed */
+  public int drainValueRefs() {
+    final ValueRefs refs = _valueRefs;
+    if( refs == null ) return 0;
+    int n = 0;
+    Reference<?> R;
+    while( (R = refs._queue.poll()) != null ) // Remove it only if still there
+      if( putIfMatch(this,_kvs,((ValueRef)R).key(),TOMBSTONE,R) == R ) n++;
+    return n;
+  }
+
+  // The reference mode, and the queue the collector puts cleared ones on
+  private static final class ValueRefs {
+    final boolean _soft;
+    final ReferenceQueue<Object> _queue = new ReferenceQueue<Object>();
+    ValueRefs( final boolean soft ) { _soft = soft; }
+    Object wrap( final Object key, final Object val ) {
+      final long version = ((Versioned)val).getVersion();
+      return _soft ? new SoftValue(key,val,version,_queue) : new WeakValue(key,val,version,_queue);
+    }
+  }
+
+  // A value held by reference.  It keeps the value's version, so a cleared
+  // one still has one; and its key, for the drain.
+  private interface ValueRef extends Versioned { Object key(); }
+  private static final class WeakValue extends WeakReference<Object> implements ValueRef {
+    private final Object _key;
+    private final long _version;
+    WeakValue( Object key, Object val, long version, ReferenceQueue<Object> q ) { super(val,q); _key = key; _version = version; }
+    public Object key() { return _key; }
+    public long getVersion() { return _version; }
+  }
+  private static final class SoftValue extends SoftReference<Object> implements ValueRef {
+    private final Object _key;
+    private final long _version;
+    SoftValue( Object key, Object val, long version, ReferenceQueue<Object> q ) { super(val,q); _key = key; _version = version; }
+    public Object key() { return _key; }
+    public long getVersion() { return _version; }
+  }
+
+  // The value behind a value reference, TOMBSTONE once cleared; any other
+  // slot content as it is.  A plain class check first: user values are
+  // seldom References, so this is one cheap test on maps without the mode.
+  private static Object deref( final Object V ) {
+    if( !(V instanceof Reference) || !(V instanceof ValueRef) ) return V;
+    final Object U = ((Reference)V).get();
+    return U == null ? TOMBSTONE : U;
+  }
+
+  // --- spilling ------------------------------------------------------------
+  /** Let cold values spill to disk, in append-only segment files of about
+   *  <tt>segmentBytes</tt> each under <tt>dir</tt>.  Each call to
+   *  {@link #spillCold} moves to disk the values not read or written since
+   *  the call before; the entry keeps its key and, in place of its value, a
+   *  pointer to it that has its version.  A {@link #get} of a spilled key
+   *  reads the value back and keeps it in memory again.  Writes are
+   *  version-checked against spilled values as against any other, and any
+   *  write replaces a spilled value with the new one in memory.  Segments
+   *  left mostly dead by such writes are compacted in the background.
+   *  {@link #disableSpill} brings every value back and deletes the files.
+   *  <p>Values must be {@link Serializable}; one read back from disk is a
+   *  deserialized copy, not the object put.  Not compatible with snapshots,
+   *  transactions, or weakly and softly held values, which all need the very
+   *  objects in the table.  Later calls do nothing.
+   *  @throws IOException if the directory or the first segment cannot be
+   *          created
+   *  @throws IllegalStateException if snapshots are enabled, or values are
+   *          weakly or softly held */
+  public void enableSpill( final File dir, final long segmentBytes ) throws IOException {
+    if( _registry != null ) throw new IllegalStateException("Snapshots need values in memory");
+    if( _valueRefs != null ) throw new IllegalStateException("Values are weakly or softly held");
+    if( _spill != null ) return;
+    final SegmentStore store = new SegmentStore(dir,segmentBytes);
+    if( !_spillUpdater.compareAndSet(this,null,store) ) store.close();
+  }
+
+  /** Stop spilling: read every spilled value back into memory, then close
+   *  and delete the segment files.  Waits for a running {@link #spillCold}
+   *  or compaction to finish; gets and writes go on meanwhile.  Does nothing
+   *  if spilling is not enabled.
+   *  @throws java.io.UncheckedIOException if a value cannot be read back */
+  public void disableSpill() {
+    final SegmentStore store = _spill;
+    if( store == null ) return;
+    synchronized( store ) {
+      if( !_spillUpdater.compareAndSet(this,store,null) ) return;
+      // Unwrap every spilled or marked value in the top table, until a whole
+      // pass finds no table-copy started, which might have carried a
+      // pointer past us.
+      while( true ) {
+        final Object[] kvs = _kvs;
+        final CHM chm = chm(kvs);
+        if( chm._newkvs != null ) {
+          chm.help_copy_impl(this,kvs,true);
+          continue;
+        }
+        for( int idx=0; idx<len(kvs); idx++ ) {
+          Object V = val(kvs,idx);
+          while( V instanceof SegmentStore.Tiered && !CAS_val(kvs,idx,V,((SegmentStore.Tiered)V).value()) )
+            V = val(kvs,idx);
+        }
+        if( _kvs == kvs && chm._newkvs == null ) break;
+      }
+      store.close();
+    }
+  }
+
+  /** Advance the clock that finds cold values: spill the values marked at
+   *  the previous call, unless they were read or written since, and mark
+   *  every other value in memory.  Meant to be called periodically; a value
+   *  untouched for a whole period is spilled at the end of the next one.
+   *  Does nothing while the table is being resized, as its slots are on the
+   *  move.  Starts a background compaction of the segments, if none is
+   *  running.
+   *  @return the number of values spilled
+   *  @throws java.io.UncheckedIOException if a value cannot be written
+   *  @throws IllegalStateException if spilling is not enabled */
+  public int spillCold() {
+    final SegmentStore store = _spill;
+    if( store == null ) throw new IllegalStateException("Spilling is not enabled on this map");
+    int n = 0;
+    // Under the store's monitor, every record appended is pointed at from
+    // the table (or dead) before a compaction counts a segment's live bytes.
+    synchronized( store ) {
+      if( _spill != store ) throw new IllegalStateException("Spilling is not enabled on this map");
+      final Object[] kvs = _kvs;
+      if( chm(kvs)._newkvs == null ) {
+        for( int idx=0; idx<len(kvs); idx++ ) {
+          final Object K = key(kvs,idx);
+          if( K == null || K == TOMBSTONE ) continue;
+          final Object V = val(kvs,idx);
+          if( V instanceof Cold ) {      // Untouched since marked: spill it
+            final Cold C = (Cold)V;      // (a failed CAS leaves dead bytes behind)
+            if( CAS_val(kvs,idx,C,store.append(C._V,C.getVersion())) ) n++;
+          } else if( V != null && !isTomb(V) && !(V instanceof Prime) && !(V instanceof Claim) &&
+                     !(V instanceof SegmentStore.Tiered) )
+            CAS_val(kvs,idx,V,new Cold(V)); // Touching it unmarks it
+        }
+      }
+      store.compactLater(this);
+    }
+    return n;
+  }
+
+  final SegmentStore spillStore() { return _spill; }
+
+  // A value marked by spillCold, still in memory
+  private static final class Cold extends SegmentStore.Tiered {
+    final Object _V;
+    Cold( Object V ) { _V = V; }
+    public long getVersion() { return ((Versioned)_V).getVersion(); }
+    Object value() { return _V; }
+  }
+
+  // The value in or behind a slot's content, leaving it in its tier: a
+  // spilled one is read back, re-reading the slot if compaction moved it.
+  private Object read_through( final Object key, Object R ) {
+    while( R instanceof SegmentStore.Tiered ) {
+      final Object U = ((SegmentStore.Tiered)R).value();
+      if( U != null ) return U;
+      final Object[] kvs = _kvs;
+      R = moved(key,R,get_impl(this,kvs,key,hash(this,key,chm(kvs)._seed)));
+    }
+    return deref(R);
+  }
+
+  // The slot's content re-read after a spilled value's segment was found
+  // retired.  Compaction re-points a slot before retiring, so finding the
+  // same pointer again means the value is gone; re-reading would spin.
+  private static Object moved( final Object key, final Object R, final Object again ) {
+    if( again == R )
+      throw new IllegalStateException("The spilled value of key["+key+"] is lost: its segment was deleted");
+    return again;
+  }
+
+  // As read_through, but the value read goes back in memory, unmarked,
+  // unless the slot was written meanwhile.
+  private Object warm( final Object key, Object R ) {
+    while( true ) {
+      final Object U = ((SegmentStore.Tiered)R).value();
+      if( U != null ) {
+        swap_raw(key,R,U);
+        return U;
+      }
+      final Object[] kvs = _kvs;
+      R = moved(key,R,get_impl(this,kvs,key,hash(this,key,chm(kvs)._seed)));
+      if( !(R instanceof SegmentStore.Tiered) ) return deref(R);
+    }
+  }
+
+  // CAS the key's value in the top table from exactly 'expect' to 'update',
+  // bypassing every check of putIfMatch: for moves between tiers, which
+  // change how a value is held and nothing else.  Fails, harmlessly, if
+  // the slot has been written or the table is being copied.
+  private boolean swap_raw( final Object key, final Object expect, final Object update ) {
+    final Object[] kvs = _kvs;
+    final int len = len(kvs);
+    final int fullhash = hash(this,key,chm(kvs)._seed);
+    int idx = fullhash & (len-1);
+    for( int reprobe_cnt=0; reprobe_cnt < reprobe_limit(len); reprobe_cnt++, idx = (idx+1)&(len-1) ) {
+      final int h = hash_at(kvs,idx);
+      if( h != 0 && h != fullhash ) continue;
+      final Object K = key(kvs,idx);
+      if( K == null || K == TOMBSTONE ) return false;
+      if( keyeq(K,key,_strategy,h,fullhash) ) return CAS_val(kvs,idx,expect,update);
+    }
+    return false;
+  }
+
+  // Compact the store: move the records still pointed at out of segments
+  // that are at most half live, then delete those segments.  Only pointers
+  // in the top table are moved, so if a resize began meanwhile, or a
+  // pointer changed under us, the segments are kept for the next round.
+  // Runs under the store's monitor, so no spillCold is mid-way, and does
+  // nothing once spilling is disabled.
+  final void compactSpill( final SegmentStore store ) {
+    synchronized( store ) {
+      if( _spill == store ) compact(store);
+    }
+  }
+
+  private void compact( final SegmentStore store ) {
+    final Object[] kvs = _kvs;
+    if( chm(kvs)._newkvs != null ) return;
+    final Map<SegmentStore.Segment,Long> live = new HashMap<SegmentStore.Segment,Long>();
+    for( int idx=0; idx<len(kvs); idx++ ) {
+      final Object V = val(kvs,idx);
+      if( V instanceof SegmentStore.Spilled ) {
+        final SegmentStore.Spilled S = (SegmentStore.Spilled)V;
+        final Long L = live.get(S._seg);
+        live.put(S._seg,(L == null ? 0 : L)+S.size());
+      }
+    }
+    final Set<SegmentStore.Segment> victims = store.victims(live);
+    if( victims.isEmpty() ) return;
+    boolean moved = true;
+    try {
+      for( int idx=0; idx<len(kvs); idx++ ) {
+        final Object V = val(kvs,idx);
+        if( !(V instanceof SegmentStore.Spilled) || !victims.contains(((SegmentStore.Spilled)V)._seg) ) continue;
+        final SegmentStore.Spilled S = store.move((SegmentStore.Spilled)V);
+        if( S == null || !CAS_val(kvs,idx,V,S) ) moved = false;
+      }
+    } catch( IOException e ) {
+      moved = false;            // Try again next round
+    }
+    if( moved && _kvs == kvs && chm(kvs)._newkvs == null )
+      for( SegmentStore.Segment S : victims ) store.retire(S);
+  }
+
+  // --- checkpoints ---------------------------------------------------------
+  /** Write every entry to the channel, as a base checkpoint, and start
+   *  tracking the keys written from now on for
+   *  {@link #incrementalCheckpoint}.  Writers keep going meanwhile, so the
+   *  base alone need not be one point in time; a write it misses, or sees
+   *  only in part, is in the next incremental checkpoint.  Versioned
+   *  removals are written too, so that they still reject stale puts once
+   *  restored.  A new base starts a new chain of incremental checkpoints.
+   *  Keys and values must be {@link Serializable}.
+   *  @return the number of entries written */
+  public int checkpoint( final WritableByteChannel ch ) throws IOException {
+    final Checkpoint cp = new Checkpoint();
+    _checkpoint = cp;           // Writes from here on go in the first increment
+    synchronized( cp ) {
+      return writePairs(Checkpoint.writer(ch,cp._base,0,true),rawKeys(),false);
+    }
+  }
+
+  /** Write the entries written since the last checkpoint, base or
+   *  incremental, to the channel: their values now, or their removal.
+   *  Tracking costs writers one volatile read, and a concurrent set add per
+   *  commit once a base checkpoint has been taken.  After a {@link #clear},
+   *  or a failure to write the last one, an incremental checkpoint holds
+   *  the whole map.
+   *  @return the number of entries written
+   *  @throws IllegalStateException if no base checkpoint was taken */
+  public int incrementalCheckpoint( final WritableByteChannel ch ) throws IOException {
+    final Checkpoint cp = _checkpoint;
+    if( cp == null ) throw new IllegalStateException("No base checkpoint was taken of this map");
+    synchronized( cp ) {
+      final Set<Object> keys = cp.next();
+      try {
+        final int n = keys == null
+          ? writePairs(Checkpoint.writer(ch,cp._base,cp._seq+1,true),rawKeys(),false)
+          : writePairs(Checkpoint.writer(ch,cp._base,cp._seq+1,false),keys.iterator(),true);
+        cp._seq++;
+        return n;
+      } catch( IOException e ) {
+        cp.dirtyAll();          // Those keys are lost to the next one
+        throw e;
+      }
+    }
+  }
+
+  // Write the keys' entries as pairs.  Absent ones are written as removed
+  // if asked, else skipped.
+  private int writePairs( final ObjectOutputStream out, final Iterator<Object> keys, final boolean absent ) throws IOException {
+    int n = 0;
+    while( keys.hasNext() ) {
+      final Object K = unwrap(keys.next());
+      final Object R = getRaw(K);
+      if( R == null && !absent ) continue;
+      out.writeObject(K);
+      out.writeObject(R instanceof VTombstone ? new Checkpoint.Removed(((VTombstone)R)._version,false) : R);
+      n++;
+    }
+    out.writeObject(null);
+    out.flush();
+    return n;
+  }
+
+  /** Replace the contents of this map with those of a base checkpoint and
+   *  the incremental checkpoints taken after it, in order.  Entries are
+   *  restored as checkpointed, whatever their versions, so this is meant
+   *  for a map nothing else is using yet.
+   *  @throws java.io.StreamCorruptedException if the channels do not hold
+   *          a base checkpoint and its increments, in order */
+  public void restore( final ReadableByteChannel base, final ReadableByteChannel... increments ) throws IOException {
+    final Checkpoint.Reader B = new Checkpoint.Reader(base,false);
+    if( B._seq != 0 ) throw new java.io.StreamCorruptedException("Not a base checkpoint: increment "+B._seq);
+    restorePairs(B);
+    int seq = 0;
+    for( final ReadableByteChannel ch : increments ) {
+      final Checkpoint.Reader D = new Checkpoint.Reader(ch,false);
+      if( D._base != B._base || D._seq != ++seq )
+        throw new java.io.StreamCorruptedException("Expected increment "+seq+" of the base, got "+D._seq+(D._base != B._base ? " of another" : ""));
+      restorePairs(D);
+    }
+  }
+
+  // Apply one checkpoint: a whole one is bulk loaded in place of the map.
+  private void restorePairs( final Checkpoint.Reader R ) throws IOException {
+    final BulkLoader<TypeK,TypeV> loader = R._whole ? new BulkLoader<TypeK,TypeV>(this,0) : null;
+    while( R.readPair() ) {
+      final Object K = R._key, V = R._val;
+      final Object U = V instanceof Checkpoint.Removed
+        ? new VTombstone(((Checkpoint.Removed)V)._version,System.currentTimeMillis()) : V;
+      if( loader != null ) { loader.addRaw(K,U); continue; }
+      // The checkpoint wins: clear the way for whatever version it has
+      putIfMatch(this,_kvs,K,TOMBSTONE,NO_MATCH_OLD);
+      if( U != null ) putIfMatch(this,_kvs,K,U,NO_MATCH_OLD);
+    }
+    if( loader != null ) loader.load();
+  }
+
+  /** Write a checkpoint of the map as it was at one point in time, without
+   *  stopping writers.  From the call on, every commit is also logged;
+   *  the executor scans the table, writing each entry with its version,
+   *  and then closes the log and writes it after the scan.  The scan may
+   *  see some commits and miss others, but every one it could have missed
+   *  is in the log, and {@link #restoreOnline} merges the two by version
+   *  into the map as it was when the log closed.  The scan starts with a
+   *  copy of the table, which aborts any transaction then committing, and
+   *  closing the log waits for the commits already under way.  The log is
+   *  held in memory for the length of the scan.  Keys and values must be
+   *  {@link Serializable}.
+   *  <p>A key removed with {@link #remove(Object)} and put back at a lower
+   *  version than it had during the scan may restore as removed; versioned
+   *  removals ({@link #remove(Object,long)}) have no such limit.
+   *  @return a future of the number of entries and logged commits written
+   *  @throws IllegalStateException if an online checkpoint is running */
+  public CompletableFuture<Integer> onlineCheckpoint( final WritableByteChannel ch, final Executor executor ) {
+    final Checkpoint.Log log = new Checkpoint.Log();
+    // The start mark: commits from here on are logged
+    if( !_changeLogUpdater.compareAndSet(this,null,log) )
+      throw new IllegalStateException("An online checkpoint is already running");
+    final CompletableFuture<Integer> F = new CompletableFuture<Integer>();
+    try {
+      executor.execute(new Runnable() {
+        public void run() {
+          try {
+            F.complete(writeOnline(ch,log));
+          } catch( Throwable t ) {
+            F.completeExceptionally(t);
+          } finally {
+            _changeLogUpdater.compareAndSet(OCCHashMap.this,log,null);
+          }
+        }
+      });
+    } catch( RuntimeException e ) { // Rejected: never started
+      _changeLogUpdater.compareAndSet(this,log,null);
+      throw e;
+    }
+    return F;
+  }
+
+  private int writeOnline( final WritableByteChannel ch, final Checkpoint.Log log ) throws IOException {
+    final ObjectOutputStream out = Checkpoint.onlineWriter(ch);
+    // A writer that looked for the log before the start mark commits
+    // unlogged.  So copy the table once, in a copy begun after the mark:
+    // such a write lands before the copy reaches its slot, and the scan of
+    // the new table sees it, or fails on the box and retries, logged.  An
+    // undecided transaction is aborted by the copy.
+    while( true ) {
+      final Object[] topkvs = _kvs;
+      final CHM topchm = chm(topkvs);
+      final boolean fresh = topchm._newkvs == null; // Else the copy may predate the mark
+      topchm.resize(this,topkvs);
+      topchm.help_copy_impl(this,topkvs,true);
+      if( fresh ) break;
+    }
+    int n = writePairs(out,rawKeys(),false);
+    // The end mark: every commit before it is in the log, none after it.
+    log.seal();
+    _changeLogUpdater.compareAndSet(this,log,null);
+    for( final Object[] C : log._pairs ) {
+      out.writeObject(C[0]);
+      out.writeObject(C[1]);
+      n++;
+    }
+    out.writeObject(null);
+    out.flush();
+    return n;
+  }
+
+  /** Replace the contents of this map with an {@link #onlineCheckpoint}:
+   *  its scan, and then the commits it logged, each applied if it is later
+   *  than the key's value so far.  Meant for a map nothing else is using
+   *  yet.
+   *  @throws java.io.StreamCorruptedException if the channel does not hold
+   *          an online checkpoint */
+  public void restoreOnline( final ReadableByteChannel ch ) throws IOException {
+    final Checkpoint.Reader R = new Checkpoint.Reader(ch,true);
+    final Map<Object,Object[]> merged = new HashMap<Object,Object[]>();
+    while( R.readPair() )       // The scan: one pair a key
+      merged.put(sideKey(R._key),new Object[]{R._key,R._val});
+    while( R.readPair() ) {     // The log: the later version wins
+      final Object side = sideKey(R._key);
+      final Object[] W = merged.get(side);
+      if( W == null || Checkpoint.later(R._val,W[1]) ) merged.put(side,new Object[]{R._key,R._val});
+    }
+    final BulkLoader<TypeK,TypeV> loader = new BulkLoader<TypeK,TypeV>(this,merged.size());
+    for( final Object[] W : merged.values() ) {
+      final Object V = W[1];
+      if( Checkpoint.plain(V) ) continue;
+      loader.addRaw(W[0],V instanceof Checkpoint.Removed
+                    ? new VTombstone(((Checkpoint.Removed)V)._version,System.currentTimeMillis()) : V);
+    }
+    loader.load();              // In place of whatever the map held
+  }
+
+  // Note a committed write of the key for the next incremental checkpoint.
+  // Without one this costs the commit path a volatile read.
+  private void committed( final Object key ) {
+    final Checkpoint cp = _checkpoint;
+    if( cp != null ) cp.dirty(sideKey(key));
+  }
+
+  // The running online checkpoint's log, entered, for a writer about to
+  // commit; it must leave once the commit is logged, or has failed.  Null
+  // if none is running or it is closing.  Without one this costs the
+  // commit path a volatile read.
+  private Checkpoint.Log enterLog() {
+    final Checkpoint.Log log = _changeLog;
+    return log != null && log.enter() ? log : null;
+  }
+
+  // Log a committed write, of val over old, for an online checkpoint
+  private static void logCommit( final Checkpoint.Log log, final Object key, final Object old, final Object val ) {
+    if( val instanceof VTombstone )
+      log.add(key,new Checkpoint.Removed(((VTombstone)val)._version,false));
+    else if( !isTomb(val) )
+      log.add(key,val);
+    else if( old instanceof Versioned && !isTomb(old) ) // What a plain remove removed
+      log.add(key,new Checkpoint.Removed(((Versioned)old).getVersion(),true));
+  }
+
+  // --- history -------------------------------------------------------------
+  /** Start keeping superseded values so that earlier versions of an entry
+   *  can be read with {@link #getAsOf} and {@link #history}.  At most
+   *  <tt>maxVersions</tt> superseded values are kept per key, and a
+   *  superseded value is reclaimed as soon as no reader registered with
+   *  {@link #registerReader} could still read it (with no registered
+   *  readers, none is kept).  Writers pay for the bookkeeping; {@link #get}
+   *  is unaffected.  Releasing a reader sweeps what it held on a background
+   *  daemon thread.  Calling this again replaces any history recorded so
+   *  far.
+   *  @param maxVersions bound on the superseded values kept per key
+   *  @throws IllegalArgumentException if <tt>maxVersions</tt> is not positive */
+  public void enableHistory( final int maxVersions ) { _history = new VersionHistory(maxVersions); }
+
+  /** Register a reader at the given read version.  Until it is released, no
+   *  value this reader could see through {@link #getAsOf} is reclaimed,
+   *  other than by the per-key bound given to {@link #enableHistory}.
+   *  Register before reading: versions reclaimed before registration are
+   *  not brought back.
+   *  @throws IllegalStateException if history is not enabled */
+  public ReadTimestamp registerReader( final long version ) { return enabledHistory().register(version); }
+
+  /** Reclaim every superseded value no registered reader can still see.
+   *  Writers already trim the chains of the keys they update, and releasing
+   *  a reader starts this sweep in the background; calling it directly
+   *  reclaims at once.
+   *  @throws IllegalStateException if history is not enabled */
+  public void pruneHistory() { enabledHistory().prune(); }
+
+  final VersionHistory versionHistory() { return _history; }
+
+  /** Returns the newest value of the key with a version no greater than
+   *  <tt>version</tt>, or {@code null} if there is none, either because the
+   *  key had no value then or because that value has been reclaimed.
+   *  Removals through {@link #remove(Object)} carry no version, so a key
+   *  removed that way still reads as its last value; a key removed through
+   *  {@link #remove(Object,long)} reads as absent from that version on.
+   *  @throws NullPointerException if the specified key is null
+   *  @throws IllegalStateException if history is not enabled */
+  public TypeV getAsOf( final Object key, final long version ) {
+    final VersionHistory history = enabledHistory();
+    // Read the table first: any value superseded before this read was
+    // recorded before it was superseded, so the chain read below sees it.
+    final Versioned V = (Versioned)getRaw(key);
+    if( V != null && V.getVersion() <= version ) return V instanceof VTombstone ? null : (TypeV)V;
+    final Versioned H = history.asOf(sideKey(key),version);
+    return H instanceof VTombstone ? null : (TypeV)H;
+  }
+
+  /** Returns the current value of the key followed by its retained
+   *  superseded values, newest first.
+   *  @throws NullPointerException if the specified key is null
+   *  @throws IllegalStateException if history is not enabled */
+  public List<TypeV> history( final Object key ) {
+    final VersionHistory history = enabledHistory();
+    final Versioned V = (Versioned)getRaw(key);
+    final List<Object> res = new ArrayList<Object>();
+    if( V != null ) res.add(V);
+    history.collect(sideKey(key), V == null ? Long.MAX_VALUE : V.getVersion(), res);
+    for( Iterator<Object> i = res.iterator(); i.hasNext(); )
+      if( i.next() instanceof VTombstone ) i.remove(); // Deletes are not values
+    return (List)res;
+  }
+
+  private VersionHistory enabledHistory() {
+    final VersionHistory history = _history;
+    if( history == null ) throw new IllegalStateException("History is not enabled on this map");
+    return history;
+  }
+
+  // --- snapshots -----------------------------------------------------------
+  /** Let this map take {@link #snapshot snapshots}.  From now on every write
+   *  is published in two steps (one more CAS) so that it can first hand the
+   *  value it replaces to any open snapshot, and {@link #clear} removes keys
+   *  one at a time.  Enabling copies the table once, so that no write can
+   *  still be under way in the old one-step fashion; later calls do nothing.
+   *  {@link #get} is unaffected. */
+  public void enableSnapshots() {
+    enableSnapshots(new SnapshotRegistry());
+  }
+
+  // Enable snapshots, taken from the given registry: the shards of a
+  // ShardedOCCMap share one, so one snapshot covers them all.
+  final void enableSnapshots( final SnapshotRegistry registry ) {
+    if( _valueRefs != null ) throw new IllegalStateException("Snapshots need strongly held values");
+    if( _spill != null ) throw new IllegalStateException("Snapshots need values in memory");
+    _registryUpdater.compareAndSet(this,null,registry);
+    recopy();
+  }
+
+  final SnapshotRegistry snapshotRegistry() { return _registry; }
+
+  // Copy the table until the top one was made with the map's current modes,
+  // so that nothing still goes through a table of the old kind.
+  private void recopy() {
+    while( true ) {
+      final Object[] topkvs = _kvs;
+      final CHM topchm = chm(topkvs);
+      if( topchm._twoPhase == (_registry != null) && (topchm._seed != null) == _seeded ) return;
+      topchm.resize(this,topkvs);
+      topchm.help_copy_impl(this,topkvs,true);
+    }
+  }
+
+  /** Take a point-in-time, read-only view of every entry in this map, in
+   *  constant time and without blocking writers.  Writers keep committing;
+   *  the first write to each key after the snapshot hands the snapshot the
+   *  value it replaces.  An open snapshot costs every write a little, so
+   *  {@link Snapshot#release release} it when done.
+   *  @throws IllegalStateException if snapshots are not enabled */
+  public Snapshot<TypeK,TypeV> snapshot() {
+    final SnapshotRegistry reg = _registry;
+    if( reg == null ) throw new IllegalStateException("Snapshots are not enabled on this map");
+    final Snapshot<TypeK,TypeV> S = new Snapshot<TypeK,TypeV>(new OCCHashMap[]{this},null,reg);
+    reg.add(S);                 // The point in time
+    return S;
+  }
+
+  /** Copy every entry into a new, immutable {@link FrozenMap}, for lookups
+   *  without reprobes or volatile reads.  With snapshots enabled the copy is
+   *  of one {@link #snapshot}; else it holds what an iterator would see.
+   *  Takes time and memory in proportion to the size of the map. */
+  public FrozenMap<TypeK,TypeV> freeze() {
+    if( _registry == null ) return FrozenMap.of(this,_strategy);
+    final Snapshot<TypeK,TypeV> S = snapshot();
+    try { return FrozenMap.of(S,_strategy); }
+    finally { S.release(); }
+  }
+
+  private boolean snapshotsOpen() {
+    final SnapshotRegistry reg = _registry;
+    return reg != null && reg.open().length > 0;
+  }
+
+  // Every key in the table, deleted or not.  While a snapshot is open, table
+  // copies keep deleted keys, so this covers every key it can read.
+  final Iterator<Object> rawKeys() {
+    return new KeyWalk();
+  }
+
+  // --- KeyWalk -------------------------------------------------------------
+  // Every key in the chain of tables starting at the top one, without
+  // helping any table-copy along: so starting a walk costs the same mid-copy
+  // as not.  First the slots of the top table, then the slots of each newer
+  // table whose key no older table holds.  A copy only moves a key into a
+  // newer table, never out of one, so every key present when the walk starts
+  // is visited exactly once; keys added later might or might not be.
+  //
+  // Chunks of a chunked table are pinned before they are walked, so that no
+  // copy frees them (and the keys walked there) under us.  A chunk already
+  // copied whole is skipped: its keys are all in the newer table.
+  private final class KeyWalk implements Iterator<Object> {
+    private final java.util.ArrayList<Object[]> _tables = new java.util.ArrayList<Object[]>(2);
+    private Object[] _kvs;      // Table being walked
+    private int _idx;           // Next slot to look at in it
+    private Object _next;       // Next key, or null at the end
+    KeyWalk() {
+      _kvs = OCCHashMap.this._kvs;
+      _next = advance();
+    }
+    private Object advance() {
+      while( true ) {
+        while( _idx < len(_kvs) ) {
+          if( !flat(_kvs) && (_idx&CHUNK_MASK) == 0 &&
+              !chm(_kvs).pin_chunk(_kvs,_idx>>>CHUNK_LOG) ) {
+            _idx += CHUNK;      // Copied already: look in the newer table
+            continue;
+          }
+          final Object K = key(_kvs,_idx++);
+          if( K != null && K != TOMBSTONE && !older(K) )
+            return K;
+        }
+        final Object[] newkvs = chm(_kvs)._newkvs;
+        if( newkvs == null ) return null;
+        _tables.add(_kvs);
+        _kvs = newkvs;
+        _idx = 0;
+      }
+    }
+    // Did a table walked already hold the key?
+    private boolean older( final Object key ) {
+      for( int i=0; i<_tables.size(); i++ )
+        if( holds(_tables.get(i),key) ) return true;
+      return false;
+    }
+    public boolean hasNext() { return _next != null; }
+    public Object next() {
+      final Object K = _next;
+      if( K == null ) throw new NoSuchElementException();
+      _next = advance();
+      return K;
+    }
+    public void remove() { throw new UnsupportedOperationException(); }
+  }
+
+  // Does a table KeyWalk walked hold a slot for the key, whatever its value?
+  // The probe is get's, except that the chunks the walk skipped are probed
+  // past: whatever they held, the walk did not see.
+  private final boolean holds( final Object[] kvs, final Object key ) {
+    final int len = len(kvs);
+    final CHM chm = chm(kvs);
+    final int fullhash = hash(this,key,chm._seed);
+    int idx = fullhash & (len-1);
+    for( int reprobe_cnt=0; reprobe_cnt < reprobe_limit(len); reprobe_cnt++, idx = (idx+1)&(len-1) ) {
+      if( !flat(kvs) && !chm.pinned(idx>>>CHUNK_LOG) ) continue;
+      final int h = hash_at(kvs,idx);
+      if( h != 0 && h != fullhash ) continue;
+      final Object K = key(kvs,idx);
+      if( K == null || K == TOMBSTONE ) return false;
+      if( keyeq(K,key,_strategy,h,fullhash) ) return true;
+    }
+    return false;
+  }
+
   // --- keyeq ---------------------------------------------------------------
   // Check for key equality.  Try direct pointer compare first, then see if
   // the hashes are unequal (fast negative test) and finally do the full-on
-  // 'equals' v-call.
-  private static boolean keyeq( Object K, Object key, int[] hashes, int hash, int fullhash ) {
+  // 'equals' v-call (or the KeyStrategy's, if the map has one).
+  private static boolean keyeq( Object K, Object key, KeyStrategy ks, int h, int fullhash ) {
     return
       K==key ||                 // Either keys match exactly OR
       // hash exists and matches?  hash can be zero during the install of a
       // new key/value pair.
-      ((hashes[hash] == 0 || hashes[hash] == fullhash) &&
+      ((h == 0 || h == fullhash) &&
        // Do not call the users' "equals()" call with a Tombstone, as this can
        // surprise poorly written "equals()" calls that throw exceptions
        // instead of simply returning false.
@@ -488,7 +2011,7 @@ public class OCCHashMap<TypeK, TypeV extends Versioned>
        // operands (since equals is commutative), but I'm making mega-morphic
        // v-calls in a reprobing loop and nailing down the 'this' argument
        // gives both the JIT and the hardware a chance to prefetch the call target.
-       key.equals(K));          // Finally do the hard match
+       (ks == null ? key.equals(K) : ks.equals(key,K))); // Finally do the hard match
   }
 
   // --- get -----------------------------------------------------------------
@@ -502,22 +2025,47 @@ public class OCCHashMap<TypeK, TypeV extends Versioned>
   // Never returns a Prime nor a Tombstone.
   @Override
   public TypeV get( Object key ) {
-    final int fullhash= hash (key); // throws NullPointerException if key is null
-    final Object V = get_impl(this,_kvs,key,fullhash);
+    final Object[] kvs = _kvs;
+    final int fullhash= hash (this,key,chm(kvs)._seed); // throws NullPointerException if key is null
+    final Object R = get_impl(this,kvs,key,fullhash);
+    final Object V = R instanceof SegmentStore.Tiered ? warm(key,R) : deref(R);
     assert !(V instanceof Prime); // Never return a Prime
-    return (TypeV)V;
+    return isTomb(V) ? null : (TypeV)V;
   }
 
+  // A get that leaves a spilled or cold value where it is: for walks over
+  // the whole map, which should not bring it all back in memory.
+  private TypeV peek( final Object key ) {
+    final Object[] kvs = _kvs;
+    final Object V = read_through(key,get_impl(this,kvs,key,hash(this,key,chm(kvs)._seed)));
+    return isTomb(V) ? null : (TypeV)V;
+  }
+
+  // Never returns a Prime nor a TOMBSTONE, but may return a VTombstone.
   private static final Object get_impl( final OCCHashMap topmap, final Object[] kvs, final Object key, final int fullhash ) {
     final int len     = len  (kvs); // Count of key/value pairs, reads kvs.length
     final CHM chm     = chm  (kvs); // The CHM, for a volatile read below; reads slot 0 of kvs
-    final int[] hashes=hashes(kvs); // The memoized hashes; reads slot 1 of kvs
+    final KeyStrategy ks = topmap._strategy;
 
     int idx = fullhash & (len-1); // First key hash
 
     // Main spin/reprobe loop, looking for a Key hit
     int reprobe_cnt=0;
     while( true ) {
+      // Probe the memoized hashes first.  They are dense (16 to a cache line,
+      // where a K/V pair takes 2 words) so a run of reprobes mostly stays in
+      // one line, and a slot holding some other key's hash is skipped without
+      // touching its (probably cold) key or value.  A zero hash is not yet
+      // memoized - or is an empty slot - and needs the full look.
+      final int h = hash_at(kvs,idx);
+      if( h != 0 && h != fullhash ) {
+        if( ++reprobe_cnt >= reprobe_limit(len) ) { // too many probes
+          final Object[] newkvs = chm._newkvs; // VOLATILE READ
+          return newkvs == null ? null : get_impl(topmap,topmap.help_copy(newkvs),key,hashIn(topmap,chm,newkvs,key,fullhash)); // Retry in the new table
+        }
+        idx = (idx+1)&(len-1);  // Reprobe by 1!
+        continue;
+      }
       // Probe table.  Each read of 'val' probably misses in cache in a big
       // table; hopefully the read of 'key' then hits in cache.
       final Object K = key(kvs,idx); // Get key   before volatile read, could be null
@@ -536,20 +2084,31 @@ public class OCCHashMap<TypeK, TypeV extends Versioned>
       final Object[] newkvs = chm._newkvs; // VOLATILE READ before key compare
 
       // Key-compare
-      if( keyeq(K,key,hashes,idx,fullhash) ) {
+      if( keyeq(K,key,ks,h,fullhash) ) {
         // Key hit!  Check for no table-copy-in-progress
         if( !(V instanceof Prime) ) // No copy?
           return (V == TOMBSTONE) ? null : V; // Return the value
+        if( V instanceof Claim ) { // Not a copy: a write is in flight
+          // A committing transaction reads as its old value, except under
+          // snapshots: there the read must not come after the snapshot
+          // while the commit comes before, so it aborts the commit instead.
+          final Object R = (V instanceof Intent && !chm._twoPhase)
+            ? ((Intent)V).resolve(false)
+            : settle(topmap,kvs,idx,V);
+          if( !(R instanceof Prime) )
+            return (R == TOMBSTONE) ? null : R;
+        }
         // Key hit - but slot is (possibly partially) copied to the new table.
         // Finish the copy & retry in the new table.
-        return get_impl(topmap,chm.copy_slot_and_check(topmap,kvs,idx,key),key,fullhash); // Retry in the new table
+        final Object[] nkvs = chm.copy_slot_and_check(topmap,kvs,idx,key);
+        return get_impl(topmap,nkvs,key,hashIn(topmap,chm,nkvs,key,fullhash)); // Retry in the new table
       }
       // get and put must have the same key lookup logic!  But only 'put'
       // needs to force a table-resize for a too-long key-reprobe sequence.
       // Check for too-many-reprobes on get - and flip to the new table.
       if( ++reprobe_cnt >= reprobe_limit(len) || // too many probes
           K == TOMBSTONE ) // found a TOMBSTONE key, means no more keys in this table
-        return newkvs == null ? null : get_impl(topmap,topmap.help_copy(newkvs),key,fullhash); // Retry in the new table
+        return newkvs == null ? null : get_impl(topmap,topmap.help_copy(newkvs),key,hashIn(topmap,chm,newkvs,key,fullhash)); // Retry in the new table
 
       idx = (idx+1)&(len-1);    // Reprobe by 1!  (could now prefetch)
     }
@@ -563,12 +2122,12 @@ public class OCCHashMap<TypeK, TypeV extends Versioned>
   // putIfMatch only returns a null if passed in an expected null.
   private static final Object putIfMatch( final OCCHashMap topmap, final Object[] kvs, final Object key, final Object putval, final Object expVal ) {
     assert putval != null;
-    assert !(putval instanceof Prime);
-    assert !(expVal instanceof Prime);
-    final int fullhash = hash  (key); // throws NullPointerException if key null
+    assert !(putval instanceof Prime) || putval instanceof Intent;
+    assert !(expVal instanceof Prime) || expVal instanceof Intent;
     final int len      = len   (kvs); // Count of key/value pairs, reads kvs.length
     final CHM chm      = chm   (kvs); // Reads kvs[0]
-    final int[] hashes = hashes(kvs); // Reads kvs[1], read before kvs[0]
+    final int fullhash = hash  (topmap,key,chm._seed); // throws NullPointerException if key null
+    final KeyStrategy ks = topmap._strategy;
     int idx = fullhash & (len-1);
 
     // ---
@@ -577,6 +2136,17 @@ public class OCCHashMap<TypeK, TypeV extends Versioned>
     Object K=null, V=null;
     Object[] newkvs=null;
     while( true ) {             // Spin till we get a Key slot
+      // Skip slots memoizing some other key's hash, as 'get' does
+      final int h = hash_at(kvs,idx);
+      if( h != 0 && h != fullhash ) {
+        if( ++reprobe_cnt >= reprobe_limit(len) ) { // too many probes
+          newkvs = chm.resize(topmap,kvs,true);
+          if( expVal != null ) topmap.help_copy(newkvs); // help along an existing copy
+          return putIfMatch(topmap,newkvs,key,putval,expVal);
+        }
+        idx = (idx+1)&(len-1);  // Reprobe!
+        continue;
+      }
       V = val(kvs,idx);         // Get old value (before volatile read below!)
       K = key(kvs,idx);         // Get current key
       if( K == null ) {         // Slot is free?
@@ -586,7 +2156,7 @@ public class OCCHashMap<TypeK, TypeV extends Versioned>
         // Claim the null key-slot
         if( CAS_key(kvs,idx, null, key ) ) { // Claim slot for Key
           chm._slots.add(1);      // Raise key-slots-used count
-          hashes[idx] = fullhash; // Memoize fullhash
+          set_hash(kvs,idx,fullhash); // Memoize fullhash
           break;                  // Got it!
         }
         // CAS to claim the key-slot failed.
@@ -613,7 +2183,7 @@ public class OCCHashMap<TypeK, TypeV extends Versioned>
       // Annoyingly this means we have to volatile-read before EACH key compare.
       newkvs = chm._newkvs;     // VOLATILE READ before key compare
 
-      if( keyeq(K,key,hashes,idx,fullhash) )
+      if( keyeq(K,key,ks,h,fullhash) )
         break;                  // Got it!
 
       // get and put must have the same key lookup logic!  Lest 'get' give
@@ -624,7 +2194,7 @@ public class OCCHashMap<TypeK, TypeV extends Versioned>
         // We simply must have a new table to do a 'put'.  At this point a
         // 'get' will also go to the new table (if any).  We do not need
         // to claim a key slot (indeed, we cannot find a free one to claim!).
-        newkvs = chm.resize(topmap,kvs);
+        newkvs = chm.resize(topmap,kvs,reprobe_cnt >= reprobe_limit(len));
         if( expVal != null ) topmap.help_copy(newkvs); // help along an existing copy
         return putIfMatch(topmap,newkvs,key,putval,expVal);
       }
@@ -637,6 +2207,7 @@ public class OCCHashMap<TypeK, TypeV extends Versioned>
     // never put a null, so Value slots monotonically move from null to
     // not-null (deleted Values use Tombstone).  Thus if 'V' is null we
     // fail this fast cutout and fall into the check for table-full.
+    if( V instanceof Claim ) V = settle(topmap,kvs,idx,V); // In-flight writes never make us wait
     if( putval == V ) return V; // Fast cutout for no-change
 
     // See if we want to move to a new table (to avoid high average re-probe
@@ -663,38 +2234,99 @@ public class OCCHashMap<TypeK, TypeV extends Versioned>
 
     // ---
     // We are finally prepared to update the existing table
+    final boolean intent = putval instanceof Intent;
     while( true ) {
       assert !(V instanceof Prime);
+      // Matches and version checks see the value behind a value reference,
+      // or read back from the cold tier (table-copy needs no value); the CAS
+      // still expects the slot's own content.
+      final Object U = V instanceof SegmentStore.Tiered && expVal != null ? ((SegmentStore.Tiered)V).value() : deref(V);
+      if( U == null && V != null ) { // Spilled, and compacted away since: read the slot again
+        V = moved(key,V,settle(topmap,kvs,idx,val(kvs,idx)));
+        if( V instanceof Prime )
+          return putIfMatch(topmap,chm.copy_slot_and_check(topmap,kvs,idx,expVal),key,putval,expVal);
+        continue;
+      }
 
       // Must match old, and we do not?  Then bail out now.  Note that either V
       // or expVal might be TOMBSTONE.  Also V can be null, if we've never
       // inserted a value before.  expVal can be null if we are called from
       // copy_slot.
 
-      if( expVal != NO_MATCH_OLD && // Do we care about expected-Value at all?
-          V != expVal &&            // No instant match already?
-          (expVal != MATCH_ANY || V == TOMBSTONE || V == null) &&
-          !(V==null && expVal == TOMBSTONE) &&    // Match on null/TOMBSTONE combo
-          (expVal == null || !expVal.equals(V)) ) // Expensive equals check at the last
-        return V;                                 // Do not update!
+      if( intent ? !((Intent)putval).matches(V) : // Transactions want the very value they read
+          expVal != NO_MATCH_OLD && // Do we care about expected-Value at all?
+          V != expVal && U != expVal && // No instant match already?
+          (expVal != MATCH_ANY || U == null || isTomb(U)) &&
+          !((U==null || isTomb(U)) && expVal == TOMBSTONE) && // Match on null/TOMBSTONE combo
+          (expVal == null ||
+           (expVal instanceof MatchVersion ? !((MatchVersion)expVal).matches(U) // Version-only check
+                                           : !expVal.equals(U))) ) // Expensive equals check at the last
+        return (U==null) ? TOMBSTONE : U;         // Do not update!
+
+      // A plain put that lost on version may be merged instead; the merge is
+      // redone against whatever value is there on every trip round the loop.
+      Object nv = putval;
+      if (U != null && putval instanceof Versioned && U instanceof Versioned && ((Versioned) putval).getVersion() <= ((Versioned) U).getVersion()) {
+        final ConflictResolver<Versioned> resolver = topmap._resolver;
+        if( resolver == null || expVal != NO_MATCH_OLD || isTomb(U) || isTomb(putval) ) {
+          topmap.profile(KeyProfiler.CONFLICTS,key,1);
+          return new VersionConflictResult(U, putval);
+        }
+        nv = resolver.merge((Versioned)U,(Versioned)putval);
+        if( nv == null ) throw new NullPointerException("ConflictResolver returned null");
+        if( ((Versioned) nv).getVersion() <= ((Versioned) U).getVersion() )
+          return new VersionConflictResult(U, nv);
+      }
 
-      if (V != null && putval instanceof Versioned && V instanceof Versioned && ((Versioned) putval).getVersion() <= ((Versioned) V).getVersion())
-        return new VersionConflictResult(V, putval);
+      // Record the value we are about to supersede before it can vanish
+      // from the table (never for table-copy, which supersedes nothing).
+      if( expVal != null && U instanceof Versioned ) {
+        final VersionHistory history = topmap._history;
+        if( history != null ) history.record(topmap.sideKey(key),(Versioned)U);
+      }
 
-      // Actually change the Value in the Key,Value pair
-      if( CAS_val(kvs, idx, V, putval ) ) {
+      // Actually change the Value in the Key,Value pair.  Under snapshots a
+      // write goes in as a Pending first (but table-copy writes nothing new).
+      // A value held by reference goes in wrapped.
+      final ValueRefs refs = topmap._valueRefs;
+      final Object sv = (refs != null && expVal != null && !intent && !isTomb(nv)) ? refs.wrap(key,nv) : nv;
+      final Object nnn = (chm._twoPhase && expVal != null && !intent) ? new Pending(V,sv) : sv;
+      // A running online checkpoint logs the write, and cannot close
+      // between our CAS and the logging (see Checkpoint.Log).
+      final Checkpoint.Log log = (expVal != null && !intent) ? topmap.enterLog() : null;
+      final boolean won;
+      try {
+        won = CAS_val(kvs, idx, V, nnn );
+        if( won ) {
+          if( nnn != nv ) settle(topmap,kvs,idx,nnn); // Publish it
+          if( log != null ) logCommit(log,key,U,nv);
+        }
+      } finally {
+        if( log != null ) log.leave();
+      }
+      if( won ) {
         // CAS succeeded - we did the update!
         // Both normal put's and table-copy calls putIfMatch, but table-copy
-        // does not (effectively) increase the number of live k/v pairs.
-        if( expVal != null ) {
+        // does not (effectively) increase the number of live k/v pairs, and
+        // an Intent changes nothing until it is settled.
+        if( expVal != null && !intent ) {
           // Adjust sizes - a striped counter
-          if(  (V == null || V == TOMBSTONE) && putval != TOMBSTONE ) chm._size.add( 1);
-          if( !(V == null || V == TOMBSTONE) && putval == TOMBSTONE ) chm._size.add(-1);
+          if(  (V == null || isTomb(V)) && !isTomb(nv) ) chm._size.add( 1);
+          if( !(V == null || isTomb(V)) &&  isTomb(nv) ) chm._size.add(-1);
+          topmap.wake(key,nv);
+          topmap.committed(key);
+          final KeyProfiler profiler = topmap._profiler;
+          if( profiler != null ) {
+            profiler.sample(KeyProfiler.WRITES,key,1);
+            profiler.sample(KeyProfiler.REPROBES,key,reprobe_cnt);
+          }
         }
-        return (V==null && expVal!=null) ? TOMBSTONE : V;
+        // What was replaced; the reference itself, to a caller expecting it
+        return (expVal == null || V == expVal) ? V : (V == null ? TOMBSTONE : U);
       }
       // Else CAS failed
-      V = val(kvs,idx);         // Get new value
+      if( expVal != null ) topmap.profile(KeyProfiler.CONFLICTS,key,1);
+      V = settle(topmap,kvs,idx,val(kvs,idx)); // Get new value
       // If a Prime'd value got installed, we need to re-run the put on the
       // new table.  Otherwise we lost the CAS to another racing put.
       // Simply retry from the start.
@@ -703,6 +2335,12 @@ public class OCCHashMap<TypeK, TypeV extends Versioned>
     }
   }
 
+  // A versioned delete old enough that a table copy should drop it
+  private final boolean expired( final Object V ) {
+    return V instanceof VTombstone &&
+      System.currentTimeMillis() - ((VTombstone)V)._milli >= _tombstone_horizon_milli;
+  }
+
   // --- help_copy ---------------------------------------------------------
   // Help along an existing resize operation.  This is just a fast cut-out
   // wrapper, to encourage inlining for the fast no-copy-in-progress case.  We
@@ -740,6 +2378,15 @@ public class OCCHashMap<TypeK, TypeV extends Versioned>
     private final Counter _slots;
     public int slots() { return (int)_slots.get(); }
 
+    // Writes to this table go through a Pending, for the benefit of open
+    // Snapshots.  Set for every table created after snapshots are enabled.
+    final boolean _twoPhase;
+
+    // Hashing key of this table, or null for plain hashing.  A resize keeps
+    // the seed, except that a long probe chain in a sparse table - keys that
+    // collide under this seed - gets the new table a fresh one.
+    final Seed _seed;
+
     // ---
     // New mappings, used during resizing.
     // The 'new KVs' array - created during a resize operation.  This
@@ -775,9 +2422,11 @@ public class OCCHashMap<TypeK, TypeV extends Versioned>
 
     // ---
     // Simple constructor
-    CHM( Counter size ) {
+    CHM( Counter size, boolean twoPhase, Seed seed ) {
       _size = size;
       _slots= new Counter();
+      _twoPhase = twoPhase;
+      _seed = seed;
     }
 
     // --- tableFull ---------------------------------------------------------
@@ -803,7 +2452,9 @@ public class OCCHashMap<TypeK, TypeV extends Versioned>
     // Since this routine has a fast cutout for copy-already-started, callers
     // MUST 'help_copy' lest we have a path which forever runs through
     // 'resize' only to discover a copy-in-progress which never progresses.
-    private final Object[] resize( OCCHashMap topmap, Object[] kvs) {
+    private final Object[] resize( OCCHashMap topmap, Object[] kvs) { return resize(topmap,kvs,false); }
+    // 'long_chain' is set when a put ran past the reprobe limit.
+    private final Object[] resize( OCCHashMap topmap, Object[] kvs, boolean long_chain ) {
       assert chm(kvs) == this;
 
       // Check for resize already in progress, probably triggered by another thread
@@ -853,7 +2504,8 @@ public class OCCHashMap<TypeK, TypeV extends Versioned>
       // Size calculation: 2 words (K+V) per table entry, plus a handful.  We
       // guess at 32-bit pointers; 64-bit pointers screws up the size calc by
       // 2x but does not screw up the heuristic very much.
-      int megs = ((((1<<log2)<<1)+4)<<3/*word to bytes*/)>>20/*megs*/;
+      // Chunked tables allocate next to nothing up front.
+      int megs = log2 > CHUNK_LOG ? 0 : ((((1<<log2)<<1)+4)<<3/*word to bytes*/)>>20/*megs*/;
       if( r >= 2 && megs > 0 ) { // Already 2 guys trying; wait and see
         newkvs = _newkvs;        // Between dorking around, another thread did it
         if( newkvs != null )     // See if resize is already in progress
@@ -871,10 +2523,13 @@ public class OCCHashMap<TypeK, TypeV extends Versioned>
       if( newkvs != null )      // See if resize is already in progress
         return newkvs;          // Use the new table already
 
-      // Double size for K,V pairs, add 1 for CHM
-      newkvs = new Object[((1<<log2)<<1)+2]; // This can get expensive for big arrays
-      newkvs[0] = new CHM(_size); // CHM in slot 0
-      newkvs[1] = new int[1<<log2]; // hashes in slot 1
+      newkvs = new_table(log2); // This can get expensive for big flat arrays
+      // Past the reprobe limit with under 1/4 of the slots live: the keys
+      // collide rather than crowd, so hashing them the same way again is
+      // pointless - and maybe what an attacker wants.
+      final Seed seed = !topmap._seeded ? null
+        : (_seed == null || (long_chain && sz < (oldlen>>2))) ? new Seed() : _seed;
+      newkvs[0] = new CHM(_size,topmap._registry != null,seed); // CHM in slot 0
 
       // Another check after the slow allocation
       if( _newkvs != null )     // See if resize is already in progress
@@ -920,11 +2575,12 @@ public class OCCHashMap<TypeK, TypeV extends Versioned>
       Object[] newkvs = _newkvs;
       assert newkvs != null;    // Already checked by caller
       int oldlen = len(oldkvs); // Total amount to copy
-      final int MIN_COPY_WORK = Math.min(oldlen,1024); // Limit per-thread work
+      final int MIN_COPY_WORK = Math.min(oldlen,1<<COPY_WORK_LOG); // Limit per-thread work
 
       // ---
       int panic_start = -1;
       int copyidx=-9999;            // Fool javac to think it's initialized
+      final Prime spare = new Prime(null); // The one box for all slots we copy
       while( _copyDone < oldlen ) { // Still needing to copy?
         // Carve out a chunk of work.  The counter wraps around so every
         // thread eventually tries to copy every slot repeatedly.
@@ -947,9 +2603,21 @@ public class OCCHashMap<TypeK, TypeV extends Versioned>
 
         // We now know what to copy.  Try to copy.
         int workdone = 0;
-        for( int i=0; i<MIN_COPY_WORK; i++ )
-          if( copy_slot(topmap,(copyidx+i)&(oldlen-1),oldkvs,newkvs) ) // Made an oldtable slot go dead?
-            workdone++;         // Yes!
+        if( flat(oldkvs) ) {
+          for( int i=0; i<MIN_COPY_WORK; i++ )
+            if( copy_slot(topmap,(copyidx+i)&(oldlen-1),oldkvs,newkvs,spare) ) // Made an oldtable slot go dead?
+              workdone++;       // Yes!
+        } else {                // Chunked: work units never straddle chunks
+          final int start = copyidx&(oldlen-1);
+          if( chunk(oldkvs,start) == null && // Never written: retire it whole
+              kill_chunk(oldkvs,start>>>CHUNK_LOG,null) )
+            workdone = CHUNK;
+          if( chunk(oldkvs,start) != DeadChunk.KVS )
+            for( int i=0; i<MIN_COPY_WORK; i++ )
+              if( copy_slot(topmap,start+i,oldkvs,newkvs,spare) )
+                workdone++;
+          copied_work(oldkvs,start);
+        }
         if( workdone > 0 )      // Report work-done occasionally
           copy_check_and_promote( topmap, oldkvs, workdone );// See if we can promote
         //for( int i=0; i<MIN_COPY_WORK; i++ )
@@ -968,6 +2636,57 @@ public class OCCHashMap<TypeK, TypeV extends Versioned>
     }
 
 
+    // Work units of a chunked old table known to be copied, one bit per unit
+    // in one int per chunk; made by the first copier to finish a unit.
+    volatile AtomicIntegerArray _chunkCopied;
+    static private final AtomicReferenceFieldUpdater<CHM,AtomicIntegerArray> _chunkCopiedUpdater =
+      AtomicReferenceFieldUpdater.newUpdater(CHM.class, AtomicIntegerArray.class, "_chunkCopied");
+    private static final int COPY_WORK_LOG = 10; // 1024 slots, MIN_COPY_WORK of a chunked table
+    private static final int CHUNK_DONE = (1<<(CHUNK>>COPY_WORK_LOG))-1;
+
+    // A chunk pinned by an iteration is never freed, even once copied: a
+    // KeyWalk must find in it every key it walked there.
+    private static final int PIN = CHUNK_DONE+1;
+
+    private AtomicIntegerArray chunk_copied( Object[] kvs ) {
+      final AtomicIntegerArray done = _chunkCopied;
+      if( done != null ) return done;
+      _chunkCopiedUpdater.compareAndSet(this,null,new AtomicIntegerArray(kvs.length-3));
+      return _chunkCopied;
+    }
+
+    // Every slot of the work unit at 'start' in the old chunked table is now
+    // copied for good.  Whoever completes a chunk frees it, unless pinned.
+    private void copied_work( Object[] oldkvs, int start ) {
+      final AtomicIntegerArray done = chunk_copied(oldkvs);
+      final int c = start>>>CHUNK_LOG;
+      final int bit = 1<<((start&CHUNK_MASK)>>>COPY_WORK_LOG);
+      int m;
+      do {
+        m = done.get(c);
+        if( (m & bit) != 0 ) return; // Somebody else finished it
+      } while( !done.compareAndSet(c,m,m|bit) );
+      if( (m|bit) == CHUNK_DONE )
+        kill_chunk(oldkvs,c,oldkvs[c+2]);
+    }
+
+    // Pin chunk 'c' of this chunked table.  False if it is already copied
+    // whole, and so freed or about to be.
+    boolean pin_chunk( Object[] kvs, int c ) {
+      final AtomicIntegerArray done = chunk_copied(kvs);
+      int m;
+      do {
+        m = done.get(c);
+        if( (m & PIN) != 0 ) return true;
+        if( m == CHUNK_DONE ) return false;
+      } while( !done.compareAndSet(c,m,m|PIN) );
+      return true;
+    }
+    boolean pinned( int c ) {
+      final AtomicIntegerArray done = _chunkCopied;
+      return done != null && (done.get(c) & PIN) != 0;
+    }
+
     // --- copy_slot_and_check -----------------------------------------------
     // Copy slot 'idx' from the old table to the new table.  If this thread
     // confirmed the copy, update the counters and check for promotion.
@@ -985,7 +2704,7 @@ public class OCCHashMap<TypeK, TypeV extends Versioned>
       // We're only here because the caller saw a Prime, which implies a
       // table-copy is in progress.
       assert newkvs != null;
-      if( copy_slot(topmap,idx,oldkvs,_newkvs) )   // Copy the desired slot
+      if( copy_slot(topmap,idx,oldkvs,_newkvs,null) ) // Copy the desired slot
         copy_check_and_promote(topmap, oldkvs, 1); // Record the slot copied
       // Generically help along any copy (except if called recursively from a helper)
       return (should_help == null) ? newkvs : topmap.help_copy(newkvs);
@@ -1032,7 +2751,14 @@ public class OCCHashMap<TypeK, TypeV extends Versioned>
     // not-null must have been from a copy_slot (or other old-table overwrite)
     // and not from a thread directly writing in the new table.  Thus we can
     // count null-to-not-null transitions in the new table.
-    private boolean copy_slot( OCCHashMap topmap, int idx, Object[] oldkvs, Object[] newkvs ) {
+    //
+    // A box only lives until its slot goes TOMBPRIME, so bulk copiers pass
+    // in a 'spare' box to use for every slot of their work unit in turn,
+    // rather than allocating one per slot.  A thread that finds somebody
+    // else's box must then re-check the slot after reading the boxed value:
+    // if the box has moved on, it may hold another slot's value, but this
+    // slot's copy is complete.
+    private boolean copy_slot( OCCHashMap topmap, int idx, Object[] oldkvs, Object[] newkvs, Prime spare ) {
       // Blindly set the key slot from null to TOMBSTONE, to eagerly stop
       // fresh put's from inserting new values in the old table when the old
       // table is mid-resize.  We don't need to act on the results here,
@@ -1045,9 +2771,19 @@ public class OCCHashMap<TypeK, TypeV extends Versioned>
       // ---
       // Prevent new values from appearing in the old table.
       // Box what we see in the old table, to prevent further updates.
-      Object oldval = val(oldkvs,idx); // Read OLD table
+      // Settle any committing transaction first, so the box holds a value.
+      Object oldval = settle(topmap,oldkvs,idx,val(oldkvs,idx)); // Read OLD table
       while( !(oldval instanceof Prime) ) {
-        final Prime box = (oldval == null || oldval == TOMBSTONE) ? TOMBPRIME : new Prime(oldval);
+        // Deleted keys are dropped - unless an open Snapshot might still
+        // read them; then they are carried over as DEAD.
+        final Object boxed = (oldval == null) ? TOMBSTONE
+          : (oldval == TOMBSTONE || topmap.expired(oldval))
+          ? (topmap.snapshotsOpen() ? (oldval == TOMBSTONE ? DEAD : oldval) : TOMBSTONE)
+          : oldval;
+        final Prime box;
+        if( boxed == TOMBSTONE ) box = TOMBPRIME;
+        else if( spare == null ) box = new Prime(boxed);
+        else { box = spare; spare._V = boxed; } // Not in any slot: free to reset
         if( CAS_val(oldkvs,idx,oldval,box) ) { // CAS down a box'd version of oldval
           // If we made the Value slot hold a TOMBPRIME, then we both
           // prevented further updates here but also the (absent)
@@ -1062,7 +2798,7 @@ public class OCCHashMap<TypeK, TypeV extends Versioned>
           oldval = box;         // Record updated oldval
           break;                // Break loop; oldval is now boxed by us
         }
-        oldval = val(oldkvs,idx); // Else try, try again
+        oldval = settle(topmap,oldkvs,idx,val(oldkvs,idx)); // Else try, try again
       }
       if( oldval == TOMBPRIME ) return false; // Copy already complete here!
 
@@ -1074,6 +2810,8 @@ public class OCCHashMap<TypeK, TypeV extends Versioned>
       // new table - somebody else should have recorded the null-not_null
       // transition in this copy.
       Object old_unboxed = ((Prime)oldval)._V;
+      if( val(oldkvs,idx) != oldval ) // Box moved on, and maybe to another slot?
+        return false;                 // Then this slot is TOMBPRIME: copied
       assert old_unboxed != TOMBSTONE;
       boolean copied_into_new = (putIfMatch(topmap, newkvs, key, old_unboxed, null) == null);
 
@@ -1094,28 +2832,16 @@ public class OCCHashMap<TypeK, TypeV extends Versioned>
   // The main class for iterating over the NBHM.  It "snapshots" a clean
   // view of the K/V array.
   private class SnapshotV implements Iterator<TypeV>, Enumeration<TypeV> {
-    final Object[] _sskvs;
+    final KeyWalk _keys;
     public SnapshotV() {
-      while( true ) {           // Verify no table-copy-in-progress
-        Object[] topkvs = _kvs;
-        CHM topchm = chm(topkvs);
-        if( topchm._newkvs == null ) { // No table-copy-in-progress
-          // The "linearization point" for the iteration.  Every key in this
-          // table will be visited, but keys added later might be skipped or
-          // even be added to a following table (also not iterated over).
-          _sskvs = topkvs;
-          break;
-        }
-        // Table copy in-progress - so we cannot get a clean iteration.  We
-        // must help finish the table copy before we can start iterating.
-        topchm.help_copy_impl(OCCHashMap.this,topkvs,true);
-      }
+      // The "linearization point" for the iteration.  Every key in the
+      // table now will be visited, but keys added later might be skipped.
+      // A table-copy in progress is walked as it is, not finished first.
+      _keys = new KeyWalk();
       // Warm-up the iterator
       next();
     }
-    int length() { return len(_sskvs); }
-    Object key(int idx) { return OCCHashMap.key(_sskvs,idx); }
-    private int _idx;              // Varies from 0-keys.length
+    private boolean _started;      // Warmed up yet?
     private Object _nextK, _prevK; // Last 2 keys found
     private TypeV  _nextV, _prevV; // Last 2 values found
     public boolean hasNext() { return _nextV != null; }
@@ -1125,24 +2851,23 @@ public class OCCHashMap<TypeK, TypeV extends Versioned>
       // some other thread deleted the last value.  Instead, 'next'
       // spends all its effort finding the key that comes after the
       // 'next' key.
-      if( _idx != 0 && _nextV == null ) throw new NoSuchElementException();
+      if( _started && _nextV == null ) throw new NoSuchElementException();
+      _started = true;
       _prevK = _nextK;          // This will become the previous key
       _prevV = _nextV;          // This will become the previous value
       _nextV = null;            // We have no more next-key
       // Attempt to set <_nextK,_nextV> to the next K,V pair.
       // _nextV is the trigger: stop searching when it is != null
-      while( _idx<length() ) {  // Scan array
-        _nextK = key(_idx++); // Get a key that definitely is in the set (for the moment!)
-        if( _nextK != null && // Found something?
-            _nextK != TOMBSTONE &&
-            (_nextV=get(_nextK)) != null )
+      while( _keys.hasNext() ) { // Scan the tables
+        _nextK = _keys.next();  // Get a key that definitely is in the set (for the moment!)
+        if( (_nextV=peek(_nextK)) != null )
           break;                // Got it!  _nextK is a valid Key
       }                         // Else keep scanning
       return _prevV;            // Return current value.
     }
     public void remove() {
       if( _prevV == null ) throw new IllegalStateException();
-      putIfMatch( OCCHashMap.this, _sskvs, _prevK, TOMBSTONE, _prevV );
+      putIfMatch( OCCHashMap.this, _kvs, _prevK, TOMBSTONE, _prevV );
       _prevV = null;
     }
 
@@ -1285,7 +3010,8 @@ public class OCCHashMap<TypeK, TypeV extends Versioned>
   private void writeObject(java.io.ObjectOutputStream s) throws IOException  {
     s.defaultWriteObject();     // Nothing to write
     for( Object K : keySet() ) {
-      final Object V = get(K);  // Do an official 'get'
+      final Object V = peek(K); // Do an official 'get'
+      if( V == null ) continue; // Removed since the key was seen
       s.writeObject(K);         // Write the <TypeK,TypeV> pair
       s.writeObject(V);
     }
@@ -1298,12 +3024,14 @@ public class OCCHashMap<TypeK, TypeV extends Versioned>
   private void readObject(java.io.ObjectInputStream s) throws IOException, ClassNotFoundException {
     s.defaultReadObject();      // Read nothing
     initialize(MIN_SIZE);
+    final BulkLoader<TypeK,TypeV> loader = new BulkLoader<TypeK,TypeV>(this,0);
     for(;;) {
       final TypeK K = (TypeK) s.readObject();
       final TypeV V = (TypeV) s.readObject();
       if( K == null ) break;
-      put(K,V);                 // Insert with an offical put
+      loader.add(K,V);
     }
+    loader.load();              // Into a table of the final size at once
   }
 
 } // End OCCHashMap class
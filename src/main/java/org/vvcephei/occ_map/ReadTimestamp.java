@@ -0,0 +1,37 @@
+package org.vvcephei.occ_map;
+
+/**
+ * A registered MVCC reader of an {@link OCCHashMap} with history enabled.
+ * While registered, versions this reader could observe through {@link
+ * OCCHashMap#getAsOf} are not reclaimed (subject to the map's per-key
+ * history bound).  Readers must {@link #release} when done, or history will
+ * be retained for them forever.
+ */
+public final class ReadTimestamp {
+  private final VersionHistory _history;
+  private final long _version;
+
+  ReadTimestamp(final VersionHistory history, final long version) {
+    _history = history;
+    _version = version;
+  }
+
+  /**
+   * @return The version this reader reads at.
+   */
+  public long getVersion() {
+    return _version;
+  }
+
+  /**
+   * Unregister this reader, allowing the versions it pinned to be reclaimed.
+   * Releasing more than once is harmless.
+   */
+  public void release() {
+    _history.release(this);
+  }
+
+  @Override public String toString() {
+    return "ReadTimestamp@v" + _version;
+  }
+}
@@ -0,0 +1,264 @@
+package org.vvcephei.occ_map;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The cold tier of an {@link OCCHashMap} with spilling enabled: an
+ * append-only log of serialized values in segment files in one directory.
+ * The map keeps the key and a {@link Spilled} pointer (segment, offset,
+ * length and version) in place of each spilled value.
+ * <p/>
+ * Appends reserve their bytes with one atomic add on the active segment and
+ * then write at that position; a full segment is rolled over to a new one.
+ * Records are never rewritten in place.  Compaction, run in the background,
+ * copies the live records of mostly-dead segments to the active one,
+ * re-points the map at them and deletes the old files once no read is
+ * using them.
+ * <p/>
+ * The map appends, compacts and closes only under this store's monitor.
+ * A record is only reachable through the pointer the appender puts in the
+ * table, so a compaction must never count a segment's live bytes while an
+ * append to it has yet to publish its pointer.  Reads take no lock.
+ */
+final class SegmentStore {
+  private static final int HEADER = 4; // Record length, ahead of the bytes
+
+  private final File _dir;
+  private final long _segmentBytes;
+  private final AtomicInteger _nextId = new AtomicInteger();
+  private final Set<Segment> _segments = ConcurrentHashMap.newKeySet();
+  private volatile Segment _active;
+  private final AtomicBoolean _compacting = new AtomicBoolean();
+  private final ThreadPoolExecutor _background;
+
+  SegmentStore(final File dir, final long segmentBytes) throws IOException {
+    if (segmentBytes < 1024) throw new IllegalArgumentException("segmentBytes: " + segmentBytes);
+    if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Cannot create " + dir);
+    _dir = dir;
+    _segmentBytes = segmentBytes;
+    _active = newSegment();
+    _background = new ThreadPoolExecutor(1, 1, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+        new ThreadFactory() {
+          public Thread newThread(final Runnable r) {
+            final Thread t = new Thread(r, "OCCHashMap-compaction");
+            t.setDaemon(true);
+            return t;
+          }
+        });
+    _background.allowCoreThreadTimeOut(true);
+  }
+
+  private Segment newSegment() throws IOException {
+    final Segment S = new Segment(new File(_dir, "segment-" + _nextId.getAndIncrement() + ".log"));
+    _segments.add(S);
+    return S;
+  }
+
+  // --- values in and out ---------------------------------------------------
+
+  /** Serialize the value and append it, returning its pointer. */
+  Spilled append(final Object val, final long version) {
+    try {
+      final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      final ObjectOutputStream out = new ObjectOutputStream(bytes);
+      out.writeObject(val);
+      out.close();
+      return appendBytes(bytes.toByteArray(), version);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  Spilled appendBytes(final byte[] bytes, final long version) throws IOException {
+    final int size = HEADER + bytes.length;
+    while (true) {
+      final Segment S = _active;
+      final long off = S._end.getAndAdd(size);
+      if (off == 0 || off + size <= _segmentBytes) { // A lone record may overfill
+        final ByteBuffer buf = ByteBuffer.allocate(size);
+        buf.putInt(bytes.length).put(bytes).flip();
+        long pos = off;
+        while (buf.hasRemaining()) pos += S._ch.write(buf, pos);
+        return new Spilled(S, off + HEADER, bytes.length, version);
+      }
+      roll(S);
+    }
+  }
+
+  // Replace the full segment as the active one; racers wait for the winner.
+  private synchronized void roll(final Segment full) throws IOException {
+    if (_active == full) _active = newSegment();
+  }
+
+  // --- Segment -------------------------------------------------------------
+  // One log file.  Reads count themselves in _users, so that a retired
+  // segment's file is closed and deleted by the last one out.
+  static final class Segment {
+    private static final int RETIRED = Integer.MIN_VALUE;
+    final File _file;
+    final FileChannel _ch;
+    final AtomicLong _end = new AtomicLong();   // Bytes reserved
+    private final AtomicInteger _users = new AtomicInteger();
+
+    Segment(final File file) throws IOException {
+      _file = file;
+      _ch = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+          StandardOpenOption.WRITE);
+    }
+
+    // The record's bytes, or null once the segment is retired
+    byte[] read(final long off, final int len) throws IOException {
+      int u;
+      do {
+        u = _users.get();
+        if (u < 0) return null;
+      } while (!_users.compareAndSet(u, u + 1));
+      try {
+        final ByteBuffer buf = ByteBuffer.allocate(len);
+        long pos = off;
+        while (buf.hasRemaining()) {
+          final int n = _ch.read(buf, pos);
+          if (n < 0) throw new IOException("Truncated segment " + _file);
+          pos += n;
+        }
+        return buf.array();
+      } finally {
+        if (_users.decrementAndGet() == RETIRED) delete();
+      }
+    }
+
+    void retire() {
+      int u;
+      do {
+        u = _users.get();
+        if (u < 0) return;
+      } while (!_users.compareAndSet(u, u | RETIRED));
+      if (u == 0) delete();
+    }
+
+    private void delete() {
+      try {
+        _ch.close();
+      } catch (IOException e) {
+        // Nothing to be done; the file goes anyway
+      }
+      _file.delete();
+    }
+  }
+
+  // --- pointers ------------------------------------------------------------
+
+  /**
+   * What an {@link OCCHashMap} slot holds in place of a value that lives, or
+   * is about to live, in the cold tier.  It has the value's version, so
+   * version checks need not load the value.
+   */
+  abstract static class Tiered implements Versioned {
+    /** The value; null if it moved while this was being read. */
+    abstract Object value();
+  }
+
+  /** A value in a segment. */
+  static final class Spilled extends Tiered {
+    final Segment _seg;
+    final long _off;
+    final int _len;
+    private final long _version;
+
+    Spilled(final Segment seg, final long off, final int len, final long version) {
+      _seg = seg;
+      _off = off;
+      _len = len;
+      _version = version;
+    }
+
+    public long getVersion() {
+      return _version;
+    }
+
+    // Bytes the record takes in its segment
+    long size() {
+      return HEADER + _len;
+    }
+
+    Object value() {
+      try {
+        final byte[] bytes = _seg.read(_off, _len);
+        if (bytes == null) return null; // Compacted away under us
+        return new ObjectInputStream(new ByteArrayInputStream(bytes)).readObject();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      } catch (ClassNotFoundException e) {
+        throw new IllegalStateException("Cannot read back a spilled value", e);
+      }
+    }
+  }
+
+  // --- compaction ----------------------------------------------------------
+
+  /** Compact in the background, unless a compaction is running already. */
+  void compactLater(final OCCHashMap<?, ?> map) {
+    if (!_compacting.compareAndSet(false, true)) return;
+    _background.execute(new Runnable() {
+      public void run() {
+        try {
+          map.compactSpill(SegmentStore.this);
+        } finally {
+          _compacting.set(false);
+        }
+      }
+    });
+  }
+
+  // Segments worth compacting, given the live bytes the map still points at
+  // in each: all but the active one, at most half live.
+  Set<Segment> victims(final Map<Segment, Long> live) {
+    final Set<Segment> res = ConcurrentHashMap.newKeySet();
+    final Segment active = _active;
+    for (final Segment S : _segments) {
+      final Long L = live.get(S);
+      if (S != active && (L == null ? 0 : L) * 2 <= S._end.get()) res.add(S);
+    }
+    return res;
+  }
+
+  // Copy a live record to the active segment.  Null if it went meanwhile.
+  Spilled move(final Spilled S) throws IOException {
+    final byte[] bytes = S._seg.read(S._off, S._len);
+    return bytes == null ? null : appendBytes(bytes, S.getVersion());
+  }
+
+  void retire(final Segment S) {
+    _segments.remove(S);
+    S.retire();
+  }
+
+  int segmentCount() {
+    return _segments.size();
+  }
+
+  // Drop every segment, once nothing in the map points at them
+  void close() {
+    for (final Segment S : _segments) retire(S);
+    _background.shutdown();
+  }
+}
@@ -0,0 +1,288 @@
+package org.vvcephei.occ_map;
+
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+
+/**
+ * A map spread over a fixed number of independent {@link OCCHashMap}
+ * shards.  Each key lives in the shard picked by the high bits of its
+ * (mixed) hash code, and every single-key operation is that shard's own.
+ * <p/>
+ * Shards resize on their own, a fraction of the map at a time, and keep
+ * their own size counters and table-copy state, so writers to different
+ * shards never touch the same table or counter.  This trades a little
+ * memory, and an extra hash per call, for shorter resize pauses and less
+ * sharing in maps that grow large under many writers.
+ * <p/>
+ * {@link #size}, iteration and {@link #clear} cover every shard, one after
+ * the other; like those of a single map, they are not atomic.  A {@link
+ * #snapshot} however is one point in time across all shards: the shards
+ * share their list of open snapshots, and a snapshot is taken by the one
+ * CAS that adds it there.  Transactions, history, escalation and profiling
+ * are per map and are not offered here.
+ */
+public class ShardedOCCMap<TypeK, TypeV extends Versioned> extends AbstractMap<TypeK, TypeV>
+    implements ConcurrentMap<TypeK, TypeV>, Serializable {
+  private static final long serialVersionUID = 1L;
+
+  private final OCCHashMap<TypeK, TypeV>[] _shards;
+  private final int _log;       // log2 of the number of shards
+  private final KeyStrategy<Object> _strategy;
+
+  /**
+   * Create a map with a shard count of four per available processor,
+   * rounded up to a power of two.
+   */
+  public ShardedOCCMap() {
+    this(Runtime.getRuntime().availableProcessors() << 2);
+  }
+
+  /**
+   * Create a map with the given number of shards, rounded up to a power of
+   * two.
+   */
+  public ShardedOCCMap(final int shards) {
+    this(shards, 0, null);
+  }
+
+  /**
+   * Create a map with the given number of shards, rounded up to a power of
+   * two, and initial room for the given number of elements in all.
+   *
+   * @param strategy the key strategy, or null for the keys' own methods
+   */
+  public ShardedOCCMap(final int shards, final int initial_sz, final KeyStrategy<? super TypeK> strategy) {
+    if (shards < 1 || shards > (1 << 16)) throw new IllegalArgumentException("shards: " + shards);
+    if (initial_sz < 0) throw new IllegalArgumentException("initial_sz: " + initial_sz);
+    int log = 0;
+    while ((1 << log) < shards) log++;
+    _log = log;
+    _strategy = strategy == KeyStrategy.EQUALS ? null : (KeyStrategy<Object>) strategy;
+    _shards = new OCCHashMap[1 << log];
+    for (int i = 0; i < _shards.length; i++)
+      _shards[i] = new OCCHashMap<TypeK, TypeV>(initial_sz >> log, strategy);
+  }
+
+  // The key's shard.  The high bits of a multiplicative mix are the best
+  // mixed ones, and are independent of the low bits the shard's own table
+  // indexes by.
+  final OCCHashMap<TypeK, TypeV> shard(final Object key) {
+    if (_log == 0) return _shards[0];
+    final int h = (_strategy == null ? key.hashCode() : _strategy.hashCode(key)) * 0x9E3779B9;
+    return _shards[h >>> (32 - _log)];
+  }
+
+  /** The number of shards. */
+  public int shardCount() {
+    return _shards.length;
+  }
+
+  // --- per-shard settings --------------------------------------------------
+
+  /** {@link OCCHashMap#enableHashSeeding} on every shard. */
+  public void enableHashSeeding() {
+    for (final OCCHashMap<TypeK, TypeV> S : _shards) S.enableHashSeeding();
+  }
+
+  /** {@link OCCHashMap#setTombstoneHorizon} on every shard. */
+  public void setTombstoneHorizon(final long millis) {
+    for (final OCCHashMap<TypeK, TypeV> S : _shards) S.setTombstoneHorizon(millis);
+  }
+
+  /** {@link OCCHashMap#setConflictResolver} on every shard. */
+  public void setConflictResolver(final ConflictResolver<? super TypeV> resolver) {
+    for (final OCCHashMap<TypeK, TypeV> S : _shards) S.setConflictResolver(resolver);
+  }
+
+  // --- single-key operations -----------------------------------------------
+
+  @Override
+  public TypeV get(final Object key) {
+    return shard(key).get(key);
+  }
+
+  @Override
+  public boolean containsKey(final Object key) {
+    return shard(key).containsKey(key);
+  }
+
+  @Override
+  public TypeV put(final TypeK key, final TypeV val) {
+    return shard(key).put(key, val);
+  }
+
+  public TypeV putIfAbsent(final TypeK key, final TypeV val) {
+    return shard(key).putIfAbsent(key, val);
+  }
+
+  @Override
+  public TypeV remove(final Object key) {
+    return shard(key).remove(key);
+  }
+
+  /** See {@link OCCHashMap#remove(Object, long)}. */
+  public TypeV remove(final Object key, final long version) {
+    return shard(key).remove(key, version);
+  }
+
+  public boolean remove(final Object key, final Object val) {
+    return shard(key).remove(key, val);
+  }
+
+  public TypeV replace(final TypeK key, final TypeV val) {
+    return shard(key).replace(key, val);
+  }
+
+  public boolean replace(final TypeK key, final TypeV oldValue, final TypeV newValue) {
+    return shard(key).replace(key, oldValue, newValue);
+  }
+
+  /** See {@link OCCHashMap#putIfVersion}. */
+  public boolean putIfVersion(final TypeK key, final TypeV val, final long expectedVersion) {
+    return shard(key).putIfVersion(key, val, expectedVersion);
+  }
+
+  /** See {@link OCCHashMap#update}. */
+  public TypeV update(final TypeK key, final Function<? super TypeV, ? extends TypeV> fn) {
+    return shard(key).update(key, fn);
+  }
+
+  /** See {@link OCCHashMap#updateAsync(Object, Function, Executor)}. */
+  public CompletableFuture<TypeV> updateAsync(final TypeK key, final Function<? super TypeV, ? extends TypeV> fn,
+                                              final Executor executor) {
+    return shard(key).updateAsync(key, fn, executor);
+  }
+
+  /** See {@link OCCHashMap#updateAsync(Object, Function, Executor, int)}. */
+  public CompletableFuture<TypeV> updateAsync(final TypeK key, final Function<? super TypeV, ? extends TypeV> fn,
+                                              final Executor executor, final int maxAttempts) {
+    return shard(key).updateAsync(key, fn, executor, maxAttempts);
+  }
+
+  /** See {@link OCCHashMap#awaitVersion}. */
+  public TypeV awaitVersion(final Object key, final long minVersion, final long timeout, final TimeUnit unit)
+      throws InterruptedException, TimeoutException {
+    return shard(key).awaitVersion(key, minVersion, timeout, unit);
+  }
+
+  /** See {@link OCCHashMap#awaitVersionAsync}. */
+  public CompletableFuture<TypeV> awaitVersionAsync(final Object key, final long minVersion) {
+    return shard(key).awaitVersionAsync(key, minVersion);
+  }
+
+  // --- whole-map operations ------------------------------------------------
+
+  /** The sum of the shards' sizes, each read in turn. */
+  @Override
+  public int size() {
+    long n = 0;
+    for (final OCCHashMap<TypeK, TypeV> S : _shards) n += S.size();
+    return (int) Math.min(n, Integer.MAX_VALUE);
+  }
+
+  @Override
+  public boolean isEmpty() {
+    for (final OCCHashMap<TypeK, TypeV> S : _shards)
+      if (!S.isEmpty()) return false;
+    return true;
+  }
+
+  /** Clear every shard in turn. */
+  @Override
+  public void clear() {
+    for (final OCCHashMap<TypeK, TypeV> S : _shards) S.clear();
+  }
+
+  /**
+   * The entries of every shard, shard after shard.  Each shard's part is
+   * iterated as {@link OCCHashMap#entrySet} would, and the iterator supports
+   * {@code remove}.
+   */
+  @Override
+  public Set<Map.Entry<TypeK, TypeV>> entrySet() {
+    return new AbstractSet<Map.Entry<TypeK, TypeV>>() {
+      @Override
+      public Iterator<Map.Entry<TypeK, TypeV>> iterator() {
+        final Iterator<Map.Entry<TypeK, TypeV>>[] parts = new Iterator[_shards.length];
+        for (int i = 0; i < parts.length; i++) parts[i] = _shards[i].entrySet().iterator();
+        return new ChainedIterator<Map.Entry<TypeK, TypeV>>(parts);
+      }
+
+      @Override
+      public int size() {
+        return ShardedOCCMap.this.size();
+      }
+
+      @Override
+      public boolean contains(final Object o) {
+        return o instanceof Map.Entry && shard(((Map.Entry<?, ?>) o).getKey()).entrySet().contains(o);
+      }
+
+      @Override
+      public boolean remove(final Object o) {
+        return o instanceof Map.Entry && shard(((Map.Entry<?, ?>) o).getKey()).entrySet().remove(o);
+      }
+
+      @Override
+      public void clear() {
+        ShardedOCCMap.this.clear();
+      }
+    };
+  }
+
+  // --- snapshots -----------------------------------------------------------
+
+  /**
+   * Let this map take {@link #snapshot snapshots}, as {@link
+   * OCCHashMap#enableSnapshots} does for one map.  All shards share one list
+   * of open snapshots.
+   */
+  public void enableSnapshots() {
+    _shards[0].enableSnapshots(new SnapshotRegistry());
+    final SnapshotRegistry registry = _shards[0].snapshotRegistry(); // Whoever won
+    for (int i = 1; i < _shards.length; i++) _shards[i].enableSnapshots(registry);
+  }
+
+  /**
+   * Take a point-in-time, read-only view of every entry in every shard, in
+   * constant time and without blocking writers; see {@link
+   * OCCHashMap#snapshot}.  Any write to any shard is either in the snapshot,
+   * or else made after every write the snapshot holds.
+   *
+   * @throws IllegalStateException if snapshots are not enabled
+   */
+  public Snapshot<TypeK, TypeV> snapshot() {
+    final SnapshotRegistry registry = _shards[0].snapshotRegistry();
+    for (final OCCHashMap<TypeK, TypeV> S : _shards)
+      if (registry == null || S.snapshotRegistry() != registry)
+        throw new IllegalStateException("Snapshots are not enabled on this map");
+    final Snapshot<TypeK, TypeV> S = new Snapshot<TypeK, TypeV>(_shards, this, registry);
+    registry.add(S);            // The point in time, for every shard
+    return S;
+  }
+
+  /**
+   * Copy every entry of every shard into one {@link FrozenMap}; see {@link
+   * OCCHashMap#freeze}.  With snapshots enabled the copy is of one {@link
+   * #snapshot}.
+   */
+  public FrozenMap<TypeK, TypeV> freeze() {
+    if (_shards[0].snapshotRegistry() == null) return FrozenMap.of(this, _strategy);
+    final Snapshot<TypeK, TypeV> S = snapshot();
+    try {
+      return FrozenMap.of(S, _strategy);
+    } finally {
+      S.release();
+    }
+  }
+}
@@ -0,0 +1,72 @@
+package org.vvcephei.occ_map;
+
+/**
+ * SipHash-2-4 (Aumasson and Bernstein) over the contents of a String or a
+ * byte array, under a secret 128-bit key.  Unlike a seeded multiplicative
+ * hash, it has no known seed-independent collisions, so keys chosen without
+ * knowing the key cannot be made to collide on purpose.
+ * <p/>
+ * Strings are hashed as their UTF-16 chars, four to a word.
+ */
+final class SipHash {
+  private long v0, v1, v2, v3;
+
+  private SipHash(final long k0, final long k1) {
+    v0 = k0 ^ 0x736f6d6570736575L;
+    v1 = k1 ^ 0x646f72616e646f6dL;
+    v2 = k0 ^ 0x6c7967656e657261L;
+    v3 = k1 ^ 0x7465646279746573L;
+  }
+
+  static int hash(final long k0, final long k1, final String s) {
+    final SipHash h = new SipHash(k0, k1);
+    final int len = s.length();
+    final int end = len & ~3;
+    for (int i = 0; i < end; i += 4)
+      h.absorb(s.charAt(i) | (long) s.charAt(i + 1) << 16 | (long) s.charAt(i + 2) << 32 | (long) s.charAt(i + 3) << 48);
+    long last = (long) (len << 1) << 56; // Byte length, as the spec's final block wants
+    for (int i = end; i < len; i++)
+      last |= (long) s.charAt(i) << ((i - end) << 4);
+    return h.finish(last);
+  }
+
+  static int hash(final long k0, final long k1, final byte[] b) {
+    final SipHash h = new SipHash(k0, k1);
+    final int len = b.length;
+    final int end = len & ~7;
+    for (int i = 0; i < end; i += 8) {
+      long m = 0;
+      for (int j = 7; j >= 0; j--) m = (m << 8) | (b[i + j] & 0xffL);
+      h.absorb(m);
+    }
+    long last = (long) len << 56;
+    for (int i = end; i < len; i++)
+      last |= (b[i] & 0xffL) << ((i - end) << 3);
+    return h.finish(last);
+  }
+
+  private void absorb(final long m) {
+    v3 ^= m;
+    round();
+    round();
+    v0 ^= m;
+  }
+
+  private int finish(final long last) {
+    absorb(last);
+    v2 ^= 0xff;
+    round();
+    round();
+    round();
+    round();
+    final long r = v0 ^ v1 ^ v2 ^ v3;
+    return (int) (r ^ (r >>> 32));
+  }
+
+  private void round() {
+    v0 += v1; v1 = Long.rotateLeft(v1, 13); v1 ^= v0; v0 = Long.rotateLeft(v0, 32);
+    v2 += v3; v3 = Long.rotateLeft(v3, 16); v3 ^= v2;
+    v0 += v3; v3 = Long.rotateLeft(v3, 21); v3 ^= v0;
+    v2 += v1; v1 = Long.rotateLeft(v1, 17); v1 ^= v2; v2 = Long.rotateLeft(v2, 32);
+  }
+}
@@ -0,0 +1,163 @@
+package org.vvcephei.occ_map;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A point-in-time, read-only view of an {@link OCCHashMap}, taken with
+ * {@link OCCHashMap#snapshot} on a map with snapshots enabled, or of every
+ * shard of a {@link ShardedOCCMap} at once.
+ * <p/>
+ * Taking a snapshot costs the same no matter how big the map is.  Nothing
+ * is copied up front.  Instead, the first write to each key after the
+ * snapshot hands the snapshot the value it replaces.  Reads of a key that
+ * has not been written since come straight from the map.  So a snapshot's
+ * memory grows with the number of keys written while it is open, not with
+ * the size of the map.
+ * <p/>
+ * Every read, including iteration, sees the map exactly as it was when the
+ * snapshot was taken, however long ago that was.  This makes snapshots
+ * suitable for checkpointing and reporting while writers keep committing.
+ * The view cannot be modified.
+ * <p/>
+ * Call {@link #release} when done: every open snapshot adds a little work
+ * to every write, and keeps deleted keys from being dropped.
+ */
+public final class Snapshot<TypeK, TypeV extends Versioned> extends AbstractMap<TypeK, TypeV> {
+  // The map, or every shard of a sharded one
+  private final OCCHashMap<TypeK, TypeV>[] _shards;
+  private final ShardedOCCMap<TypeK, TypeV> _sharded; // Routes keys; null for a single map
+  private final SnapshotRegistry _registry;
+  // Raw value of every key written since the snapshot, as of the snapshot,
+  // keyed by the map's side keys.  The first write wins, so entries never
+  // change once present.
+  private final ConcurrentMap<Object, Object> _preserved = new ConcurrentHashMap<Object, Object>();
+  private volatile boolean _released;
+
+  Snapshot(final OCCHashMap<TypeK, TypeV>[] shards, final ShardedOCCMap<TypeK, TypeV> sharded,
+           final SnapshotRegistry registry) {
+    _shards = shards;
+    _sharded = sharded;
+    _registry = registry;
+  }
+
+  private OCCHashMap<TypeK, TypeV> map(final Object key) {
+    return _sharded == null ? _shards[0] : _sharded.shard(key);
+  }
+
+  // Called by writers just before the value they replace can vanish.
+  void preserve(final Object key, final Object raw) {
+    _preserved.putIfAbsent(_shards[0].sideKey(key), raw); // Shards share a strategy
+  }
+
+  /**
+   * Returns the value the key had when the snapshot was taken, or {@code
+   * null} if it had none.
+   *
+   * @throws NullPointerException if the specified key is null
+   * @throws IllegalStateException if the snapshot has been released
+   */
+  @Override
+  public TypeV get(final Object key) {
+    checkOpen();
+    // Read the map first: any value newer than the snapshot was preserved
+    // before it became visible, so the check below then finds it.
+    final OCCHashMap<TypeK, TypeV> map = map(key);
+    final Object current = map.getRaw(key);
+    final Object preserved = _preserved.get(map.sideKey(key));
+    final Object raw = preserved != null ? preserved : current;
+    return OCCHashMap.isLive(raw) ? (TypeV) raw : null;
+  }
+
+  /**
+   * @throws NullPointerException if the specified key is null
+   * @throws IllegalStateException if the snapshot has been released
+   */
+  @Override
+  public boolean containsKey(final Object key) {
+    return get(key) != null;
+  }
+
+  /**
+   * Returns the entries of the snapshot.  Iterating walks the whole map, and
+   * so does {@code size()}.
+   *
+   * @throws IllegalStateException if the snapshot has been released
+   */
+  @Override
+  public Set<Map.Entry<TypeK, TypeV>> entrySet() {
+    checkOpen();
+    return new AbstractSet<Map.Entry<TypeK, TypeV>>() {
+      @Override
+      public Iterator<Map.Entry<TypeK, TypeV>> iterator() {
+        if (_shards.length == 1) return new Entries(_shards[0].rawKeys());
+        final Iterator<Object>[] keys = new Iterator[_shards.length];
+        for (int i = 0; i < keys.length; i++) keys[i] = _shards[i].rawKeys();
+        return new Entries(new ChainedIterator<Object>(keys));
+      }
+
+      @Override
+      public int size() {
+        int n = 0;
+        for (final Iterator<Map.Entry<TypeK, TypeV>> i = iterator(); i.hasNext(); i.next()) n++;
+        return n;
+      }
+    };
+  }
+
+  /**
+   * Stop maintaining this snapshot.  Any further read throws.  Releasing
+   * twice is harmless.
+   */
+  public void release() {
+    _released = true;
+    _registry.release(this);
+  }
+
+  private void checkOpen() {
+    if (_released) throw new IllegalStateException("Snapshot is released");
+  }
+
+  // Every key the snapshot can hold is in the map's table: copies keep
+  // deleted keys while snapshots are open.  Each is looked up as of the
+  // snapshot, and keys without a value then are skipped.
+  private final class Entries implements Iterator<Map.Entry<TypeK, TypeV>> {
+    private final Iterator<Object> _keys;
+    private Map.Entry<TypeK, TypeV> _next;
+
+    Entries(final Iterator<Object> keys) {
+      _keys = keys;
+      advance();
+    }
+
+    private void advance() {
+      _next = null;
+      while (_next == null && _keys.hasNext()) {
+        final Object K = _keys.next();
+        final TypeV V = get(K);
+        if (V != null) _next = new SimpleImmutableEntry<TypeK, TypeV>((TypeK) K, V);
+      }
+    }
+
+    public boolean hasNext() {
+      return _next != null;
+    }
+
+    public Map.Entry<TypeK, TypeV> next() {
+      if (_next == null) throw new NoSuchElementException();
+      final Map.Entry<TypeK, TypeV> e = _next;
+      advance();
+      return e;
+    }
+
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+}
@@ -0,0 +1,45 @@
+package org.vvcephei.occ_map;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * The snapshots open on a map, or on every shard of a {@link ShardedOCCMap}
+ * at once.  A snapshot is taken by the one CAS that adds it to the list, and
+ * every write decides which snapshots it must preserve its old value for by
+ * reading the list.  Maps that share a registry therefore share the point in
+ * time of each snapshot.
+ */
+final class SnapshotRegistry {
+  static final Snapshot[] NONE = new Snapshot[0];
+
+  private volatile Snapshot[] _open = NONE;
+  private static final AtomicReferenceFieldUpdater<SnapshotRegistry, Snapshot[]> _openUpdater =
+      AtomicReferenceFieldUpdater.newUpdater(SnapshotRegistry.class, Snapshot[].class, "_open");
+
+  Snapshot[] open() {
+    return _open;
+  }
+
+  void add(final Snapshot S) {
+    while (true) {
+      final Snapshot[] open = _open;
+      final Snapshot[] nnn = Arrays.copyOf(open, open.length + 1);
+      nnn[open.length] = S;
+      if (_openUpdater.compareAndSet(this, open, nnn)) return; // The point in time
+    }
+  }
+
+  void release(final Snapshot S) {
+    while (true) {
+      final Snapshot[] open = _open;
+      int i = 0;
+      while (i < open.length && open[i] != S) i++;
+      if (i == open.length) return; // Already released
+      final Snapshot[] nnn = new Snapshot[open.length - 1];
+      System.arraycopy(open, 0, nnn, 0, i);
+      System.arraycopy(open, i + 1, nnn, i, nnn.length - i);
+      if (_openUpdater.compareAndSet(this, open, nnn)) return;
+    }
+  }
+}
@@ -0,0 +1,143 @@
+package org.vvcephei.occ_map;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * A serializable multi-key transaction on an {@link OCCHashMap}, started
+ * with {@link OCCHashMap#begin}.
+ * <p/>
+ * Reads go to the map (or to the transaction's own buffered writes) and
+ * remember exactly which value they saw.  Writes are buffered until {@link
+ * #commit}, which atomically applies all of them if-and-only-if every key
+ * the transaction read still holds the value it read.  Otherwise nothing is
+ * applied and commit returns false; the usual response is to start a new
+ * transaction and try again.
+ * <p/>
+ * Committing is lock-free: the transaction marks each key it touches, then
+ * flips its own status with one CAS.  Concurrent readers see either all of
+ * its writes or none of them.  Nobody ever waits for a committing
+ * transaction; conflicting operations abort it instead.
+ * <p/>
+ * A transaction is meant to be used by one thread at a time.
+ */
+public final class Transaction<TypeK, TypeV extends Versioned> {
+  static final int ACTIVE = 0;
+  static final int COMMITTED = 1;
+  static final int ABORTED = 2;
+
+  private final OCCHashMap<TypeK, TypeV> _map;
+  // Both maps are keyed by the map's side keys, which honour its KeyStrategy.
+  // Raw value read per key: null if absent.  Every written key is read first.
+  private final Map<Object, Object> _reads = new HashMap<Object, Object>();
+  // Buffered writes per key: null to remove.
+  private final Map<Object, Object> _writes = new HashMap<Object, Object>();
+
+  private volatile int _status = ACTIVE;
+  private static final AtomicIntegerFieldUpdater<Transaction> _statusUpdater =
+    AtomicIntegerFieldUpdater.newUpdater(Transaction.class, "_status");
+
+  Transaction(final OCCHashMap<TypeK, TypeV> map) {
+    _map = map;
+  }
+
+  int status() {
+    return _status;
+  }
+
+  // Move from ACTIVE to 'to' unless already decided; returns the decision.
+  int decide(final int to) {
+    _statusUpdater.compareAndSet(this, ACTIVE, to);
+    return _status;
+  }
+
+  /**
+   * Returns the value of the key as seen by this transaction: its own
+   * buffered write if there is one, else the value in the map when this
+   * transaction first read the key.
+   *
+   * @throws NullPointerException if the specified key is null
+   * @throws IllegalStateException if the transaction is already finished
+   */
+  public TypeV get(final Object key) {
+    checkActive();
+    final Object side = _map.sideKey(key);
+    if (_writes.containsKey(side)) return (TypeV) _writes.get(side);
+    return live(read(key, side));
+  }
+
+  /**
+   * Buffer a put of the key.  The version check happens here, against the
+   * value this transaction read.
+   *
+   * @return the previous value of the key as seen by this transaction
+   * @throws NullPointerException if the specified key or value is null
+   * @throws VersionConflictException if the value's version is not greater
+   *         than the version this transaction read
+   * @throws IllegalStateException if the transaction is already finished
+   */
+  public TypeV put(final TypeK key, final TypeV val) {
+    if (val == null) throw new NullPointerException();
+    checkActive();
+    final Object side = _map.sideKey(key);
+    final Object raw = read(key, side);
+    if (raw instanceof Versioned && val.getVersion() <= ((Versioned) raw).getVersion())
+      throw new VersionConflictException(key, ((Versioned) raw).getVersion(), val.getVersion());
+    final TypeV prev = _writes.containsKey(side) ? (TypeV) _writes.get(side) : live(raw);
+    _writes.put(side, val);
+    return prev;
+  }
+
+  /**
+   * Buffer a removal of the key.
+   *
+   * @return the previous value of the key as seen by this transaction
+   * @throws NullPointerException if the specified key is null
+   * @throws IllegalStateException if the transaction is already finished
+   */
+  public TypeV remove(final Object key) {
+    checkActive();
+    final Object side = _map.sideKey(key);
+    final Object raw = read(key, side);
+    final TypeV prev = _writes.containsKey(side) ? (TypeV) _writes.get(side) : live(raw);
+    _writes.put(side, null);
+    return prev;
+  }
+
+  /**
+   * Atomically apply the buffered writes, if nothing this transaction read
+   * has changed since.  A transaction without reads trivially commits.
+   *
+   * @return true if committed; false if aborted because of a conflict, in
+   *         which case none of the writes were applied
+   * @throws IllegalStateException if the transaction is already finished
+   */
+  public boolean commit() {
+    checkActive();
+    if (_reads.isEmpty()) return decide(COMMITTED) == COMMITTED;
+    return _map.txnCommit(this, _reads, _writes);
+  }
+
+  /**
+   * Abandon this transaction and its buffered writes.
+   */
+  public void abort() {
+    decide(ABORTED);
+  }
+
+  private Object read(final Object key, final Object side) {
+    if (_reads.containsKey(side)) return _reads.get(side);
+    final Object raw = _map.getRaw(key);
+    _reads.put(side, raw);
+    return raw;
+  }
+
+  private TypeV live(final Object raw) {
+    return OCCHashMap.isLive(raw) ? (TypeV) raw : null;
+  }
+
+  private void checkActive() {
+    if (_status != ACTIVE) throw new IllegalStateException("Transaction is already " + (_status == COMMITTED ? "committed" : "aborted"));
+  }
+}
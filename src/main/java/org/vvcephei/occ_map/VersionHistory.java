@@ -0,0 +1,220 @@
+package org.vvcephei.occ_map;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * Bounded per-key chains of superseded values, backing {@link
+ * OCCHashMap#getAsOf} and {@link OCCHashMap#history}.
+ *
+ * <p>Writers record the value they are about to replace just before their
+ * value CAS, so any value that has been overwritten in the table is already
+ * in its chain.  A failed CAS merely records a value that is still current,
+ * which readers skip by version.  Chains are immutable linked lists ordered
+ * newest-version first and are swapped in with a CAS on the chain head.
+ *
+ * <p>Reclamation is cooperative, in the same spirit as the table copy: each
+ * writer trims the chain it touches, and {@link OCCHashMap#pruneHistory}
+ * sweeps every chain.  Releasing a reader that held the watermark back
+ * starts such a sweep on a background daemon thread, for the keys no longer
+ * written.  A superseded version is kept while it is among the newest
+ * {@code maxVersions} of its key and some registered {@link ReadTimestamp}
+ * might still read it; with no readers, none is kept.  A chain trimmed to
+ * nothing is retired: its head is swapped for {@code DEAD}, so that no
+ * writer adds to it, and it is unmapped.
+ */
+final class VersionHistory {
+
+  // Immutable chain link
+  private static final class Node {
+    final Versioned _val;
+    final Node _next;
+    Node( final Versioned val, final Node next ) { _val = val; _next = next; }
+  }
+
+  private static final class Chain {
+    volatile Node _head;
+    private static final AtomicReferenceFieldUpdater<Chain,Node> _headUpdater =
+      AtomicReferenceFieldUpdater.newUpdater(Chain.class, Node.class, "_head");
+    boolean CAS_head( final Node old, final Node nnn ) { return _headUpdater.compareAndSet(this,old,nnn); }
+  }
+
+  // Head of a retired chain
+  private static final Node DEAD = new Node(null,null);
+
+  private final int _depth;
+  private final ConcurrentMap<Object,Chain> _chains = new ConcurrentHashMap<Object,Chain>();
+  // Registered readers are rare and long-lived compared to writes, so they
+  // are simply guarded by this object's monitor.
+  private final Set<ReadTimestamp> _readers = new HashSet<ReadTimestamp>();
+  // Oldest read timestamp held by a registered reader, or Long.MAX_VALUE
+  // when nobody is reading; _idle when nobody is.
+  private volatile long _watermark = Long.MAX_VALUE;
+  private volatile boolean _idle = true;
+  private final AtomicBoolean _pruning = new AtomicBoolean();
+
+  // One sweeper thread for every history in the process, started on the
+  // first sweep (the holder class loads then) and gone when idle, so a map
+  // whose history is replaced or dropped leaves no thread behind.
+  private static final class Sweeper {
+    static final ThreadPoolExecutor EXECUTOR = new ThreadPoolExecutor(1,1,10,TimeUnit.SECONDS,new LinkedBlockingQueue<Runnable>(),
+      new ThreadFactory() {
+        public Thread newThread( final Runnable r ) {
+          final Thread t = new Thread(r,"OCCHashMap-history");
+          t.setDaemon(true);
+          return t;
+        }
+      });
+    static { EXECUTOR.allowCoreThreadTimeOut(true); }
+  }
+
+  VersionHistory( final int depth ) {
+    if( depth <= 0 ) throw new IllegalArgumentException("maxVersions must be positive: "+depth);
+    _depth = depth;
+  }
+
+  // --- record --------------------------------------------------------------
+  // Called on the commit path with the value about to be superseded.
+  void record( final Object key, final Versioned val ) {
+    final long watermark = _watermark;
+    final boolean idle = _idle;
+    Chain c = _chains.get(key);
+    if( c == null && idle ) return; // Nobody could read it
+    while( true ) {
+      if( c == null ) {
+        final Chain nc = new Chain();
+        c = _chains.putIfAbsent(key,nc);
+        if( c == null ) c = nc;
+      }
+      if( update(key,c,val,watermark,idle) ) return;
+      _chains.remove(key,c);    // Retired meanwhile: help unmap it, and start afresh
+      c = _chains.get(key);
+    }
+  }
+
+  // Swap the chain's head for its trimmed self, with val inserted if not
+  // null.  A chain trimmed to nothing is retired and unmapped.  False if it
+  // was retired already.
+  private boolean update( final Object key, final Chain c, final Versioned val, final long watermark, final boolean idle ) {
+    while( true ) {
+      final Node head = c._head;
+      if( head == DEAD ) return false;
+      final Node nh = trim(val == null ? head : insert(head,val),watermark,idle);
+      if( nh == null ) {
+        if( c.CAS_head(head,DEAD) ) {
+          _chains.remove(key,c);
+          return true;
+        }
+      } else if( nh == head || c.CAS_head(head,nh) ) return true;
+    }
+  }
+
+  // Insert val in version order, unless that version is already present.
+  private static Node insert( final Node head, final Versioned val ) {
+    final long v = val.getVersion();
+    if( head == null || head._val.getVersion() < v )
+      return new Node(val,head);  // The usual case: newest version goes first
+    if( head._val.getVersion() == v ) return head;
+    final Node rest = insert(head._next,val);
+    return rest == head._next ? head : new Node(head._val,rest);
+  }
+
+  // Keep at most _depth links, and of those at or below the watermark only
+  // the newest, which the oldest registered reader may need; with no
+  // readers, none.  Null if nothing is kept.
+  private Node trim( final Node head, final long watermark, final boolean idle ) {
+    int n = 0;
+    Node cut = null;            // Last link to keep
+    for( Node x = head; x != null; x = x._next ) {
+      final boolean old = x._val.getVersion() <= watermark;
+      if( old && idle ) break;  // Nobody reads history
+      cut = x;
+      if( ++n >= _depth || old ) break;
+    }
+    if( cut == null ) return null;      // Nothing to keep
+    if( cut._next == null ) return head; // Nothing to drop
+    return copyThrough(head,cut);
+  }
+
+  private static Node copyThrough( final Node x, final Node cut ) {
+    return x == cut ? new Node(x._val,null) : new Node(x._val,copyThrough(x._next,cut));
+  }
+
+  // --- reads ---------------------------------------------------------------
+  // Newest recorded value with a version no greater than 'version', or null.
+  Versioned asOf( final Object key, final long version ) {
+    final Chain c = _chains.get(key);
+    if( c == null ) return null;
+    for( Node x = live(c); x != null; x = x._next )
+      if( x._val.getVersion() <= version )
+        return x._val;
+    return null;
+  }
+
+  // All recorded values strictly older than 'newerThan', newest first.
+  void collect( final Object key, final long newerThan, final List<Object> out ) {
+    final Chain c = _chains.get(key);
+    if( c == null ) return;
+    for( Node x = live(c); x != null; x = x._next )
+      if( x._val.getVersion() < newerThan )
+        out.add(x._val);
+  }
+
+  private static Node live( final Chain c ) {
+    final Node head = c._head;
+    return head == DEAD ? null : head;
+  }
+
+  // --- reclamation ---------------------------------------------------------
+  void prune() {
+    final long watermark = _watermark;
+    final boolean idle = _idle;
+    for( final Map.Entry<Object,Chain> e : _chains.entrySet() )
+      update(e.getKey(),e.getValue(),null,watermark,idle);
+  }
+
+  // Prune in the background, unless a prune is pending already.
+  private void pruneLater() {
+    if( !_pruning.compareAndSet(false,true) ) return;
+    Sweeper.EXECUTOR.execute(new Runnable() {
+      public void run() {
+        _pruning.set(false);    // A release from here on needs another sweep
+        prune();
+      }
+    });
+  }
+
+  int chainCount() { return _chains.size(); }
+
+  void clear() { _chains.clear(); }
+
+  // --- readers -------------------------------------------------------------
+  synchronized ReadTimestamp register( final long version ) {
+    final ReadTimestamp ts = new ReadTimestamp(this,version);
+    _readers.add(ts);
+    if( version < _watermark ) _watermark = version;
+    _idle = false;
+    return ts;
+  }
+
+  synchronized void release( final ReadTimestamp ts ) {
+    if( !_readers.remove(ts) ) return;
+    long min = Long.MAX_VALUE;
+    for( final ReadTimestamp r : _readers )
+      if( r.getVersion() < min ) min = r.getVersion();
+    final boolean raised = min > _watermark || _readers.isEmpty();
+    _watermark = min;
+    _idle = _readers.isEmpty();
+    if( raised ) pruneLater();
+  }
+}
@@ -0,0 +1,90 @@
+package org.vvcephei.occ_map;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+/**
+ * Callers of {@link OCCHashMap#awaitVersion} waiting for a key to reach a
+ * version, backing it and {@link OCCHashMap#awaitVersionAsync}.
+ *
+ * <p>Each waiter is a future, filed under its key in a copy-on-write array.
+ * Writers hand every committed value to {@link #wake}, which completes the
+ * waiters it satisfies; a waiter takes itself out of the array when it
+ * completes, whether by a write, a timeout or a cancel.  Nobody blocks on
+ * anything but their own future, so waiting works the same on platform and
+ * virtual threads.
+ *
+ * <p>A waiter files itself before it reads the key, and a writer looks for
+ * waiters only after its value is in the table, so either the waiter's read
+ * sees the value or the writer sees the waiter.
+ */
+final class VersionWaiters {
+
+  private static final class Waiter extends CompletableFuture<Object> {
+    final long _min;
+    Waiter( final long min ) { _min = min; }
+  }
+
+  private final ConcurrentMap<Object,Waiter[]> _byKey = new ConcurrentHashMap<Object,Waiter[]>();
+  // Waiters filed, so writers can skip the lookup when there are none.
+  private final AtomicInteger _count = new AtomicInteger();
+
+  boolean isEmpty() { return _count.get() == 0; }
+
+  // --- add -----------------------------------------------------------------
+  // File a waiter for the key reaching minVersion.  The caller then checks
+  // the key itself, in case the version is already there.
+  CompletableFuture<Object> add( final Object key, final long minVersion ) {
+    final Waiter W = new Waiter(minVersion);
+    _count.incrementAndGet();
+    while( true ) {
+      final Waiter[] ws = _byKey.get(key);
+      if( ws == null ? _byKey.putIfAbsent(key,new Waiter[]{W}) == null : _byKey.replace(key,ws,append(ws,W)) )
+        break;
+    }
+    W.whenComplete(new BiConsumer<Object,Throwable>() {
+      public void accept( final Object val, final Throwable t ) { remove(key,W); }
+    });
+    return W;
+  }
+
+  private static Waiter[] append( final Waiter[] ws, final Waiter W ) {
+    final Waiter[] nnn = Arrays.copyOf(ws,ws.length+1);
+    nnn[ws.length] = W;
+    return nnn;
+  }
+
+  private void remove( final Object key, final Waiter W ) {
+    while( true ) {
+      final Waiter[] ws = _byKey.get(key);
+      if( ws == null ) return;
+      int i = 0;
+      while( i < ws.length && ws[i] != W ) i++;
+      if( i == ws.length ) return; // Already gone
+      final boolean done;
+      if( ws.length == 1 ) done = _byKey.remove(key,ws);
+      else {
+        final Waiter[] nnn = new Waiter[ws.length-1];
+        System.arraycopy(ws,0,nnn,0,i);
+        System.arraycopy(ws,i+1,nnn,i,nnn.length-i);
+        done = _byKey.replace(key,ws,nnn);
+      }
+      if( done ) { _count.decrementAndGet(); return; }
+    }
+  }
+
+  // --- wake ----------------------------------------------------------------
+  // Called on the commit path with the key's new value and what awaiting
+  // callers receive for it (null for a versioned delete).
+  void wake( final Object key, final Versioned val, final Object result ) {
+    final Waiter[] ws = _byKey.get(key);
+    if( ws == null ) return;
+    final long version = val.getVersion();
+    for( final Waiter W : ws )
+      if( W._min <= version ) W.complete(result);
+  }
+}
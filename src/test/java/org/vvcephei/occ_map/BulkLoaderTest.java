@@ -0,0 +1,54 @@
+package org.vvcephei.occ_map;
+
+import junit.framework.TestCase;
+
+import static org.vvcephei.occ_map.OCCHashMapTest.VersionedString.v;
+import static org.vvcephei.occ_map.OCCHashMapTest.VersionedString.v0;
+
+public class BulkLoaderTest extends TestCase {
+
+  public void testLoad() {
+    final OCCHashMap<String, OCCHashMapTest.VersionedString> map = new OCCHashMap<String, OCCHashMapTest.VersionedString>();
+    map.put("old", v0("replaced"));
+    final BulkLoader<String, OCCHashMapTest.VersionedString> loader =
+        new BulkLoader<String, OCCHashMapTest.VersionedString>(map, 100000, 4);
+    for (int i = 0; i < 100000; i++) loader.add("k" + i, v("x" + i, i));
+    loader.add("k7", v("later", 8));   // A duplicate keeps the later version
+    loader.add("k9", v("earlier", 8));
+    loader.load();
+    assertEquals(0, loader.size());
+
+    assertEquals(100000, map.size());
+    assertNull(map.get("old"));
+    for (int i = 0; i < 100000; i++)
+      if (i != 7) assertEquals(v("x" + i, i), map.get("k" + i));
+    assertEquals(v("later", 8), map.get("k7"));
+
+    // The loaded table is an ordinary one: it takes puts, and grows
+    try {
+      map.put("k5", v("stale", 5));
+      fail("Expected to get an exception");
+    } catch (VersionConflictException e) { }
+    for (int i = 100000; i < 300000; i++) map.put("k" + i, v0("y"));
+    assertEquals(300000, map.size());
+    assertEquals(v("x5", 5), map.get("k5"));
+  }
+
+  public void testStrategyAndSeeding() {
+    final OCCHashMap<byte[], OCCHashMapTest.VersionedString> map =
+        new OCCHashMap<byte[], OCCHashMapTest.VersionedString>(0, KeyStrategy.BYTE_ARRAY);
+    map.enableHashSeeding();
+    final BulkLoader<byte[], OCCHashMapTest.VersionedString> loader =
+        new BulkLoader<byte[], OCCHashMapTest.VersionedString>(map, 0, 2); // Grows its buffer
+    for (int i = 0; i < 20000; i++) loader.add(new byte[] {(byte) i, (byte) (i >> 8)}, v0("x" + i));
+    loader.load();
+    assertEquals(20000, map.size());
+    assertEquals(v0("x300"), map.get(new byte[] {(byte) 300, (byte) (300 >> 8)}));
+
+    map.enableSnapshots();
+    try {
+      loader.load();
+      fail("Expected snapshots to refuse a bulk load");
+    } catch (IllegalStateException e) { }
+  }
+}
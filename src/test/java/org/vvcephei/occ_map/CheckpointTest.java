@@ -0,0 +1,197 @@
+package org.vvcephei.occ_map;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.vvcephei.occ_map.OCCHashMapTest.VersionedString.v;
+
+public class CheckpointTest extends TestCase {
+
+  public void testIncremental() throws IOException {
+    final OCCHashMap<String, OCCHashMapTest.VersionedString> map = new OCCHashMap<String, OCCHashMapTest.VersionedString>();
+    for (int i = 0; i < 1000; i++) map.put("k" + i, v("x" + i, i));
+    map.remove("k999", 2000);
+    final ByteArrayOutputStream base = new ByteArrayOutputStream();
+    assertEquals(1000, map.checkpoint(Channels.newChannel(base)));
+
+    map.put("k1", v("y1", 1001));
+    map.remove("k2");
+    for (int i = 1000; i < 5000; i++) map.put("k" + i, v("x" + i, i)); // Resizes
+    final ByteArrayOutputStream d1 = new ByteArrayOutputStream();
+    assertEquals(4002, map.incrementalCheckpoint(Channels.newChannel(d1)));
+
+    map.put("k1", v("z1", 1002));
+    final ByteArrayOutputStream d2 = new ByteArrayOutputStream();
+    assertEquals(1, map.incrementalCheckpoint(Channels.newChannel(d2)));
+    assertTrue(d2.size() < d1.size() / 100);
+
+    final OCCHashMap<String, OCCHashMapTest.VersionedString> copy = new OCCHashMap<String, OCCHashMapTest.VersionedString>();
+    copy.put("junk", v("junk", 0));
+    copy.restore(in(base), in(d1), in(d2));
+    assertEquals(map, copy);
+    assertEquals(v("z1", 1002), copy.get("k1"));
+    assertNull(copy.get("k2"));
+    try {
+      copy.put("k999", v("stale", 1999)); // The versioned removal came along
+      fail("Expected to get an exception");
+    } catch (VersionConflictException e) { }
+
+    // Increments go in order, on their own base
+    try {
+      new OCCHashMap<String, OCCHashMapTest.VersionedString>().restore(in(base), in(d2));
+      fail("Expected a missing increment to be refused");
+    } catch (StreamCorruptedException e) { }
+    try {
+      new OCCHashMap<String, OCCHashMapTest.VersionedString>().restore(in(d1));
+      fail("Expected an increment to be refused as base");
+    } catch (StreamCorruptedException e) { }
+
+    // After a clear, the next increment is the whole map
+    map.clear();
+    map.put("only", v("one", 1));
+    final ByteArrayOutputStream d3 = new ByteArrayOutputStream();
+    assertEquals(1, map.incrementalCheckpoint(Channels.newChannel(d3)));
+    copy.restore(in(base), in(d1), in(d2), in(d3));
+    assertEquals(map, copy);
+
+    // Keys a transaction only read are not written
+    map.put("read", v("r", 1));
+    map.incrementalCheckpoint(Channels.newChannel(new ByteArrayOutputStream()));
+    final Transaction<String, OCCHashMapTest.VersionedString> txn = map.begin();
+    txn.get("read");
+    txn.put("only", v("two", 2));
+    assertTrue(txn.commit());
+    assertEquals(1, map.incrementalCheckpoint(Channels.newChannel(new ByteArrayOutputStream())));
+  }
+
+  public void testOnline() throws Exception {
+    final int N = 2000;
+    final OCCHashMap<String, OCCHashMapTest.VersionedString> map = new OCCHashMap<String, OCCHashMapTest.VersionedString>();
+    for (int i = 0; i < N; i++) map.put("k" + i, v("r", 0));
+    map.put("gone", v("g", 3));
+    // One writer rewrites every key in order, round after round: a state it
+    // went through has all keys at one round, up to some key, and the rest
+    // at the round before.
+    final AtomicBoolean stop = new AtomicBoolean();
+    final Thread writer = new Thread() {
+      public void run() {
+        for (int r = 1; !stop.get(); r++)
+          for (int i = 0; i < N; i++) map.put("k" + i, v("r", r));
+      }
+    };
+    writer.start();
+    Thread.sleep(20);
+    map.remove("gone");
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final ExecutorService executor = Executors.newSingleThreadExecutor();
+    final int n = map.onlineCheckpoint(Channels.newChannel(out), executor).get();
+    try {
+      map.onlineCheckpoint(Channels.newChannel(new ByteArrayOutputStream()), new Executor() {
+        public void execute(final Runnable r) { throw new RejectedExecutionException(); }
+      });
+      fail("Expected the rejection to come through");
+    } catch (RejectedExecutionException e) { }
+    stop.set(true);
+    writer.join();
+    executor.shutdown();
+    assertTrue(n >= N);
+
+    final OCCHashMap<String, OCCHashMapTest.VersionedString> copy = new OCCHashMap<String, OCCHashMapTest.VersionedString>();
+    copy.restoreOnline(in(out));
+    assertEquals(N, copy.size());
+    assertNull(copy.get("gone"));
+    final long first = copy.get("k0").getVersion();
+    long prev = first;
+    for (int i = 0; i < N; i++) {
+      final long ver = copy.get("k" + i).getVersion();
+      assertTrue("k" + i + " at " + ver + " after " + prev, ver == prev || ver == first - 1);
+      prev = ver;
+    }
+    try {
+      copy.restore(in(out));
+      fail("Expected an online checkpoint to be refused as base");
+    } catch (StreamCorruptedException e) { }
+  }
+
+  public void testOnlineConcurrent() throws Exception {
+    final int A = 16, W = 2, M = 500;
+    final OCCHashMap<String, OCCHashMapTest.VersionedString> map = new OCCHashMap<String, OCCHashMapTest.VersionedString>();
+    for (int i = 0; i < A; i++) map.put("a" + i, v("100", 0));
+    for (int t = 0; t < W; t++)
+      for (int i = 0; i < M; i++) map.put("w" + t + "-" + i, v("r", 0));
+    // Transactions move one unit between two accounts, keeping the total;
+    // plain writers each rewrite their own keys in order, as in testOnline.
+    final AtomicBoolean stop = new AtomicBoolean();
+    final ExecutorService writers = Executors.newFixedThreadPool(3 + W);
+    final List<Future<?>> futures = new ArrayList<Future<?>>();
+    for (int t = 0; t < 3; t++)
+      futures.add(writers.submit(new Runnable() {
+        public void run() {
+          final Random rnd = new Random();
+          while (!stop.get()) {
+            final int x = rnd.nextInt(A), y = (x + 1 + rnd.nextInt(A - 1)) % A;
+            final Transaction<String, OCCHashMapTest.VersionedString> txn = map.begin();
+            final OCCHashMapTest.VersionedString a = txn.get("a" + x), b = txn.get("a" + y);
+            txn.put("a" + x, v(String.valueOf(Integer.parseInt(a.string) - 1), a.version + 1));
+            txn.put("a" + y, v(String.valueOf(Integer.parseInt(b.string) + 1), b.version + 1));
+            txn.commit();
+          }
+        }
+      }));
+    for (int t = 0; t < W; t++) {
+      final int T = t;
+      futures.add(writers.submit(new Runnable() {
+        public void run() {
+          for (int r = 1; !stop.get(); r++)
+            for (int i = 0; i < M; i++) map.put("w" + T + "-" + i, v("r", r));
+        }
+      }));
+    }
+    final ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      for (int round = 0; round < 20; round++) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        map.onlineCheckpoint(Channels.newChannel(out), executor).get();
+        final OCCHashMap<String, OCCHashMapTest.VersionedString> copy = new OCCHashMap<String, OCCHashMapTest.VersionedString>();
+        copy.restoreOnline(in(out));
+        int total = 0;
+        for (int i = 0; i < A; i++) total += Integer.parseInt(copy.get("a" + i).string);
+        assertEquals("Round " + round, 100 * A, total);
+        for (int t = 0; t < W; t++) {
+          final long first = copy.get("w" + t + "-0").getVersion();
+          long prev = first;
+          for (int i = 0; i < M; i++) {
+            final long ver = copy.get("w" + t + "-" + i).getVersion();
+            assertTrue("Round " + round + ": w" + t + "-" + i + " at " + ver + " after " + prev, ver == prev || ver == first - 1);
+            prev = ver;
+          }
+        }
+      }
+    } finally {
+      stop.set(true);
+      for (final Future<?> f : futures) f.get(60, TimeUnit.SECONDS);
+      writers.shutdown();
+      executor.shutdown();
+    }
+  }
+
+  private static ReadableByteChannel in(final ByteArrayOutputStream bytes) {
+    return Channels.newChannel(new ByteArrayInputStream(bytes.toByteArray()));
+  }
+}
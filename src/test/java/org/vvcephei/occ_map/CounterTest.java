@@ -0,0 +1,45 @@
+package org.vvcephei.occ_map;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class CounterTest extends TestCase {
+
+  public void testBasics() {
+    final Counter c = new Counter();
+    assertEquals(0, c.get());
+    c.increment();
+    c.add(41);
+    c.decrement();
+    assertEquals(41, c.get());
+    assertEquals(41, c.estimate_get());
+    assertEquals("41", c.toString());
+    c.set(-7);
+    assertEquals(-7, c.get());
+  }
+
+  // No increment may be lost, however much the cells grow meanwhile.
+  public void testConcurrentIncrements() throws Exception {
+    final Counter c = new Counter();
+    final int threads = 8, per = 200000;
+    final ExecutorService ex = Executors.newFixedThreadPool(threads);
+    final List<Future<Void>> futures = new ArrayList<Future<Void>>();
+    for (int t = 0; t < threads; t++)
+      futures.add(ex.submit(new Callable<Void>() {
+        public Void call() {
+          for (int i = 0; i < per; i++) c.increment();
+          return null;
+        }
+      }));
+    for (Future<Void> f : futures) f.get();
+    ex.shutdown();
+    assertEquals((long) threads * per, c.get());
+    assertTrue(c.internal_size() >= 1);
+  }
+}
@@ -0,0 +1,61 @@
+package org.vvcephei.occ_map;
+
+import junit.framework.TestCase;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.vvcephei.occ_map.OCCHashMapTest.VersionedString.v;
+import static org.vvcephei.occ_map.OCCHashMapTest.VersionedString.v0;
+
+public class FrozenMapTest extends TestCase {
+
+  public void testFreeze() {
+    final OCCHashMap<String, OCCHashMapTest.VersionedString> map = new OCCHashMap<String, OCCHashMapTest.VersionedString>();
+    for (int i = 0; i < 10000; i++) map.put("k" + i, v("x" + i, i));
+    map.put("Aa", v0("aa"));    // "Aa" and "BB" share a hashCode
+    map.put("BB", v0("bb"));
+    final FrozenMap<String, OCCHashMapTest.VersionedString> frozen = map.freeze();
+    map.put("k1", v("changed", 2));
+
+    assertEquals(10002, frozen.size());
+    for (int i = 0; i < 10000; i++) {
+      assertEquals(v("x" + i, i), frozen.get("k" + i));
+      assertEquals(i, frozen.getVersion("k" + i));
+    }
+    assertEquals(v0("aa"), frozen.get("Aa"));
+    assertEquals(v0("bb"), frozen.get("BB"));
+    assertNull(frozen.get("k10000"));
+    assertFalse(frozen.containsKey("missing"));
+    assertEquals(-1, frozen.getVersion("missing"));
+    final Map<String, OCCHashMapTest.VersionedString> copy = new HashMap<String, OCCHashMapTest.VersionedString>(frozen);
+    assertEquals(10002, copy.size());
+    assertEquals(v("x1", 1), copy.get("k1"));
+
+    assertTrue(new OCCHashMap<String, OCCHashMapTest.VersionedString>().freeze().isEmpty());
+  }
+
+  public void testSnapshotAndStrategy() {
+    final OCCHashMap<byte[], OCCHashMapTest.VersionedString> map =
+        new OCCHashMap<byte[], OCCHashMapTest.VersionedString>(0, KeyStrategy.BYTE_ARRAY);
+    map.enableSnapshots();
+    for (int i = 0; i < 100; i++) map.put(new byte[] {(byte) i, 1}, v0("x" + i));
+    final FrozenMap<byte[], OCCHashMapTest.VersionedString> frozen = map.freeze();
+    assertEquals(v0("x7"), frozen.get(new byte[] {7, 1}));
+    assertNull(frozen.get(new byte[] {7, 2}));
+    assertEquals(100, frozen.size());
+  }
+
+  public void testHolder() {
+    final OCCHashMap<String, OCCHashMapTest.VersionedString> map = new OCCHashMap<String, OCCHashMapTest.VersionedString>();
+    map.put("k", v0("a"));
+    final FrozenMap.Holder<String, OCCHashMapTest.VersionedString> holder =
+        new FrozenMap.Holder<String, OCCHashMapTest.VersionedString>(map.freeze());
+    map.put("k", v("b", 1));
+    assertEquals(v0("a"), holder.get("k"));
+    final FrozenMap<String, OCCHashMapTest.VersionedString> old = holder.refresh(map);
+    assertEquals(v0("a"), old.get("k"));
+    assertEquals(v("b", 1), holder.get("k"));
+    assertEquals(1, holder.map().getVersion("k"));
+  }
+}
@@ -0,0 +1,58 @@
+package org.vvcephei.occ_map;
+
+import junit.framework.TestCase;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import static org.vvcephei.occ_map.OCCHashMapTest.VersionedString.v;
+
+public class KeyProfilerTest extends TestCase {
+
+  public void testHotKeys() {
+    final OCCHashMap<String, OCCHashMapTest.VersionedString> map = new OCCHashMap<String, OCCHashMapTest.VersionedString>();
+    final KeyProfiler profiler = map.enableProfiling(1); // Count everything
+    assertSame(profiler, map.profiler());
+    for (int i = 1; i <= 100; i++) map.put("hot", v("x", i));
+    for (int i = 0; i < 1000; i++) map.put("cold" + i, v("x", 1));
+    for (int i = 0; i < 10; i++) {
+      try {
+        map.put("contended", v("x", 0));
+      } catch (VersionConflictException e) { }
+    }
+
+    final List<KeyProfiler.HotKey> writes = profiler.topWrites(3);
+    assertEquals("hot", writes.get(0).getKey());
+    assertTrue(writes.get(0).getValue() >= 100); // Count-min never undercounts
+    assertTrue(profiler.estimateWrites("hot") >= 100);
+    assertTrue(profiler.estimateWrites("cold1") < 100);
+    assertEquals("contended", profiler.topConflicts(1).get(0).getKey());
+    assertTrue(profiler.estimateConflicts("contended") >= 9); // The first put wins
+
+    profiler.reset();
+    assertTrue(profiler.topWrites(3).isEmpty());
+    map.disableProfiling();
+    map.put("hot", v("x", 101));
+    assertTrue(profiler.topWrites(3).isEmpty());
+    assertNull(map.profiler());
+  }
+
+  public void testMBean() throws Exception {
+    final OCCHashMap<String, OCCHashMapTest.VersionedString> map = new OCCHashMap<String, OCCHashMapTest.VersionedString>();
+    final KeyProfiler profiler = map.enableProfiling(1);
+    map.put("k", v("x", 1));
+    final String name = "org.vvcephei.occ_map:type=KeyProfiler,name=test";
+    profiler.registerMBean(name);
+    final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    try {
+      final String[] top = (String[]) server.getAttribute(new ObjectName(name), "TopWrites");
+      assertEquals(1, top.length);
+      assertEquals("k=1", top[0]);
+      assertEquals(1, server.getAttribute(new ObjectName(name), "SampleRate"));
+    } finally {
+      server.unregisterMBean(new ObjectName(name));
+    }
+  }
+}
@@ -19,15 +19,20 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Objects;
 import java.util.Random;
 import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionService;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CyclicBarrier;
@@ -36,6 +41,9 @@ import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
 
 import static org.hamcrest.CoreMatchers.anyOf;
 import static org.hamcrest.CoreMatchers.is;
@@ -155,6 +163,15 @@ public class OCCHashMapTest extends TestCase {
     }
   }
 
+  // A value whose equals must never be called
+  public static class VersionedBlob implements Versioned {
+    public final int version;
+    public VersionedBlob(final int version) { this.version = version; }
+    @Override public long getVersion() { return version; }
+    @Override public boolean equals(final Object o) { throw new AssertionError("equals called"); }
+    @Override public int hashCode() { return version; }
+  }
+
   private OCCHashMap<String,VersionedString> _nbhm;
   protected void setUp   () { _nbhm = new OCCHashMap<String, VersionedString>(); }
   protected void tearDown() { _nbhm = null; }
@@ -316,6 +333,689 @@ public class OCCHashMapTest extends TestCase {
     assertThat("toString works",_nbhm.toString(), anyOf(is("{k1=v1@v0, k2=v2@v0}"),is("{k2=v2@v0, k1=v1@v0}")));
   }
 
+  public void testHistory() throws InterruptedException {
+    try {
+      _nbhm.getAsOf("k1", 0);
+      fail("Expected history to be disabled");
+    } catch (IllegalStateException e) { }
+
+    _nbhm.enableHistory(3);
+    final ReadTimestamp reader = _nbhm.registerReader(1);
+    _nbhm.put("k1", v0("a"));
+    _nbhm.put("k1", v("b", 1));
+    _nbhm.put("k1", v("c", 2));
+    _nbhm.put("k1", v("d", 3));
+    _nbhm.put("k1", v("e", 4));
+    assertEquals(v("e", 4), _nbhm.get("k1"));
+    assertEquals(v("e", 4), _nbhm.getAsOf("k1", 10));
+    assertEquals(v("c", 2), _nbhm.getAsOf("k1", 2));
+    assertEquals(v("b", 1), _nbhm.getAsOf("k1", 1));
+    // Version 0 is older than any registered reader can see
+    assertThat(_nbhm.getAsOf("k1", 0), nullValue());
+    assertEquals(4, _nbhm.history("k1").size());
+    assertEquals(v("e", 4), _nbhm.history("k1").get(0));
+    assertEquals(v("b", 1), _nbhm.history("k1").get(3));
+    assertThat(_nbhm.getAsOf("k2", 10), nullValue());
+    assertTrue(_nbhm.history("k2").isEmpty());
+
+    // The per-key bound applies regardless of readers
+    _nbhm.put("k1", v("f", 5));
+    assertEquals(4, _nbhm.history("k1").size());
+    assertThat(_nbhm.getAsOf("k1", 1), nullValue());
+
+    // Removal keeps the last value readable as of its version
+    _nbhm.put("k2", v("x", 1));
+    _nbhm.remove("k2");
+    assertThat(_nbhm.get("k2"), nullValue());
+    assertEquals(v("x", 1), _nbhm.getAsOf("k2", 5));
+
+    // Without readers no superseded value survives, nor its chain; the
+    // release sweeps the keys no longer written in the background
+    reader.release();
+    for( int i = 0; i < 100 && _nbhm.versionHistory().chainCount() > 0; i++ ) Thread.sleep(10);
+    assertEquals(0, _nbhm.versionHistory().chainCount());
+    assertEquals(1, _nbhm.history("k1").size());
+    assertThat(_nbhm.getAsOf("k1", 4), nullValue());
+    assertThat(_nbhm.getAsOf("k2", 5), nullValue());
+    _nbhm.put("k1", v("g", 6));
+    assertEquals(1, _nbhm.history("k1").size());
+    assertEquals(0, _nbhm.versionHistory().chainCount());
+
+    // A reader registered later pins what is superseded from then on
+    final ReadTimestamp later = _nbhm.registerReader(6);
+    _nbhm.put("k1", v("h", 7));
+    _nbhm.put("k1", v("i", 8));
+    assertEquals(v("g", 6), _nbhm.getAsOf("k1", 6));
+    later.release();
+    _nbhm.pruneHistory();
+    assertEquals(0, _nbhm.versionHistory().chainCount());
+
+    // Histories, replaced or not, share one sweeper thread
+    for( int i = 0; i < 20; i++ ) {
+      _nbhm.enableHistory(3);
+      _nbhm.registerReader(0).release();
+    }
+    int sweepers = 0;
+    for( final Thread t : Thread.getAllStackTraces().keySet() )
+      if( t.getName().equals("OCCHashMap-history") ) sweepers++;
+    assertTrue(sweepers + " sweeper threads", sweepers <= 1);
+  }
+
+  public void testVersionedRemove() {
+    assertThat(_nbhm.put("k1", v("a", 5)), nullValue());
+    try {
+      _nbhm.remove("k1", 5);
+      fail("Expected to get an exception");
+    } catch (VersionConflictException e) {
+      assertEquals(5l, e.getExistingVersion());
+    }
+    assertEquals(v("a", 5), _nbhm.remove("k1", 6));
+    assertFalse(_nbhm.containsKey("k1"));
+    checkSizes(0);
+
+    // A delayed writer cannot resurrect the key
+    try {
+      _nbhm.put("k1", v("stale", 5));
+      fail("Expected to get an exception");
+    } catch (VersionConflictException e) {
+      assertEquals(6l, e.getExistingVersion());
+      assertEquals(5l, e.getPutVersion());
+    }
+    try {
+      _nbhm.putIfAbsent("k1", v("stale", 6));
+      fail("Expected to get an exception");
+    } catch (VersionConflictException e) { }
+    assertThat(_nbhm.replace("k1", v("b", 7)), nullValue());
+    assertFalse(_nbhm.containsKey("k1"));
+    assertThat(_nbhm.putIfAbsent("k1", v("b", 7)), nullValue());
+    checkSizes(1);
+    assertThat(_nbhm.remove("k1", 8), is(v("b", 7)));
+
+    // Deletes of keys never seen are remembered too
+    assertThat(_nbhm.remove("k2", 3), nullValue());
+    try {
+      _nbhm.put("k2", v("stale", 2));
+      fail("Expected to get an exception");
+    } catch (VersionConflictException e) { }
+    checkSizes(0);
+
+    // Young tombstones survive a resize, expired ones are purged by it
+    for (int i = 0; i < 1000; i++) _nbhm.put("x" + i, v0("x"));
+    try {
+      _nbhm.put("k2", v("stale", 2));
+      fail("Expected to get an exception");
+    } catch (VersionConflictException e) { }
+    _nbhm.setTombstoneHorizon(0);
+    for (int i = 0; i < 10000; i++) _nbhm.put("y" + i, v0("y"));
+    assertThat(_nbhm.put("k2", v("fresh", 0)), nullValue());
+    assertEquals(11001, _nbhm.size());
+  }
+
+  public void testPutIfVersion() {
+    final OCCHashMap<String,VersionedBlob> map = new OCCHashMap<String,VersionedBlob>();
+    final VersionedBlob b1 = new VersionedBlob(1);
+    assertFalse(map.putIfVersion("k1", b1, 0));
+    assertFalse(map.containsKey("k1"));
+    assertThat(map.put("k1", b1), nullValue());
+    assertFalse(map.putIfVersion("k1", new VersionedBlob(3), 2));
+    assertSame(b1, map.get("k1"));
+    final VersionedBlob b2 = new VersionedBlob(2);
+    assertTrue(map.putIfVersion("k1", b2, 1));
+    assertSame(b2, map.get("k1"));
+    assertFalse(map.putIfVersion("k1", new VersionedBlob(3), 1));
+    try {
+      map.putIfVersion("k1", new VersionedBlob(2), 2);
+      fail("Expected to get an exception");
+    } catch (VersionConflictException e) {
+      assertEquals(2l, e.getExistingVersion());
+    }
+    map.remove("k1", 5);
+    assertFalse(map.putIfVersion("k1", new VersionedBlob(6), 5));
+    assertEquals(0, map.size());
+  }
+
+  public void testTransaction() {
+    _nbhm.put("k1", v0("a"));
+    Transaction<String,VersionedString> txn = _nbhm.begin();
+    assertEquals(v0("a"), txn.get("k1"));
+    assertThat(txn.get("k2"), nullValue());
+    assertEquals(v0("a"), txn.put("k1", v("b", 1)));
+    assertThat(txn.put("k2", v0("c")), nullValue());
+    assertEquals(v("b", 1), txn.get("k1"));
+    try {
+      txn.put("k1", v0("stale"));
+      fail("Expected to get an exception");
+    } catch (VersionConflictException e) { }
+    // Nothing is visible before commit
+    assertEquals(v0("a"), _nbhm.get("k1"));
+    assertFalse(_nbhm.containsKey("k2"));
+    assertTrue(txn.commit());
+    assertEquals(v("b", 1), _nbhm.get("k1"));
+    assertEquals(v0("c"), _nbhm.get("k2"));
+    checkSizes(2);
+    try {
+      txn.get("k1");
+      fail("Expected the transaction to be finished");
+    } catch (IllegalStateException e) { }
+
+    // A conflicting write aborts, and nothing is applied
+    txn = _nbhm.begin();
+    txn.put("k1", v("d", 2));
+    assertEquals(v0("c"), txn.remove("k2"));
+    _nbhm.put("k1", v("e", 2));
+    assertFalse(txn.commit());
+    assertEquals(v("e", 2), _nbhm.get("k1"));
+    assertEquals(v0("c"), _nbhm.get("k2"));
+    checkSizes(2);
+
+    // A key only read still has to be unchanged at commit
+    txn = _nbhm.begin();
+    txn.get("k3");
+    txn.remove("k2");
+    _nbhm.put("k3", v0("f"));
+    assertFalse(txn.commit());
+    assertEquals(v0("c"), _nbhm.get("k2"));
+
+    txn = _nbhm.begin();
+    txn.remove("k2");
+    assertTrue(txn.commit());
+    assertFalse(_nbhm.containsKey("k2"));
+    checkSizes(2);
+  }
+
+  // Move units between accounts in transactions while other threads check
+  // that the total never changes.
+  public void testConcurrentTransactions() throws Exception {
+    final OCCHashMap<Integer,VersionedInt> map = new OCCHashMap<Integer,VersionedInt>();
+    final int accounts = 64;
+    for( int i = 0; i < accounts; i++ ) map.put(i, VersionedInt.v0(100));
+    final ExecutorService ex = Executors.newFixedThreadPool(4);
+    final List<Future<Integer>> futures = new LinkedList<Future<Integer>>();
+    for( int t = 0; t < 4; t++ ) {
+      final int seed = t;
+      futures.add(ex.submit(new Callable<Integer>() {
+        public Integer call() {
+          final Random r = new Random(seed);
+          int commits = 0;
+          for( int i = 0; i < 5000; i++ ) {
+            final Transaction<Integer,VersionedInt> txn = map.begin();
+            if( seed == 0 ) {             // Auditor: a read-only transaction
+              int sum = 0;
+              for( int a = 0; a < accounts; a++ ) sum += txn.get(a).integer;
+              if( txn.commit() ) { assertEquals(accounts * 100, sum); commits++; }
+              continue;
+            }
+            final int a = r.nextInt(accounts), b = (a + 1 + r.nextInt(accounts - 1)) % accounts;
+            final VersionedInt va = txn.get(a), vb = txn.get(b);
+            txn.put(a, VersionedInt.v(va.integer - 1, va.version + 1));
+            txn.put(b, VersionedInt.v(vb.integer + 1, vb.version + 1));
+            if( txn.commit() ) commits++;
+          }
+          return commits;
+        }
+      }));
+    }
+    int commits = 0;
+    for( Future<Integer> f : futures ) commits += f.get();
+    ex.shutdown();
+    assertTrue(commits > 0);
+    int sum = 0;
+    for( VersionedInt v : map.values() ) sum += v.integer;
+    assertEquals(accounts * 100, sum);
+    assertEquals(accounts, map.size());
+  }
+
+  public void testUpdateAsync() throws Exception {
+    final OCCHashMap<Integer,VersionedInt> map = new OCCHashMap<Integer,VersionedInt>();
+    final Function<VersionedInt,VersionedInt> incr = new Function<VersionedInt,VersionedInt>() {
+      public VersionedInt apply(VersionedInt cur) {
+        return cur == null ? VersionedInt.v0(1) : VersionedInt.v(cur.integer + 1, cur.version + 1);
+      }
+    };
+    final ExecutorService ex = Executors.newFixedThreadPool(4);
+    final List<CompletableFuture<VersionedInt>> futures = new LinkedList<CompletableFuture<VersionedInt>>();
+    for( int i = 0; i < 2000; i++ ) futures.add(map.updateAsync(i % 4, incr, ex, 10000));
+    for( CompletableFuture<VersionedInt> f : futures ) f.get();
+    for( int k = 0; k < 4; k++ ) assertEquals(VersionedInt.v(500, 499), map.get(k));
+
+    // Returning null removes
+    assertThat(map.updateAsync(0, new Function<VersionedInt,VersionedInt>() {
+      public VersionedInt apply(VersionedInt cur) { return null; }
+    }, ex).get(), nullValue());
+    assertThat(map.get(0), nullValue());
+
+    // A function that keeps losing the race exhausts the budget
+    final CompletableFuture<VersionedInt> loser = map.updateAsync(1, new Function<VersionedInt,VersionedInt>() {
+      public VersionedInt apply(VersionedInt cur) {
+        map.put(1, VersionedInt.v(cur.integer, cur.version + 1)); // Sneak in first
+        return VersionedInt.v(cur.integer, cur.version + 1);
+      }
+    }, ex, 3);
+    try {
+      loser.get();
+      fail("Expected to get an exception");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof ConcurrentModificationException);
+    }
+    assertEquals(VersionedInt.v(500, 502), map.get(1));
+
+    // A stale version fails at once
+    try {
+      map.updateAsync(2, new Function<VersionedInt,VersionedInt>() {
+        public VersionedInt apply(VersionedInt cur) { return VersionedInt.v(cur.integer + 1, cur.version); }
+      }, ex).get();
+      fail("Expected to get an exception");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof VersionConflictException);
+    }
+    ex.shutdown();
+  }
+
+  public void testUpdate() throws Exception {
+    final OCCHashMap<Integer,VersionedInt> map = new OCCHashMap<Integer,VersionedInt>();
+    final Function<VersionedInt,VersionedInt> incr = new Function<VersionedInt,VersionedInt>() {
+      public VersionedInt apply(VersionedInt cur) {
+        Thread.yield();         // Widen the race
+        return cur == null ? VersionedInt.v0(1) : VersionedInt.v(cur.integer + 1, cur.version + 1);
+      }
+    };
+    assertEquals(VersionedInt.v0(1), map.update(0, incr));
+    final ExecutorService ex = Executors.newFixedThreadPool(8);
+    final List<Future<?>> futures = new LinkedList<Future<?>>();
+    for( int t = 0; t < 8; t++ )
+      futures.add(ex.submit(new Runnable() {
+        public void run() {
+          for( int i = 0; i < 1000; i++ ) map.update(i % 2, incr);
+        }
+      }));
+    for( Future<?> f : futures ) f.get();
+    ex.shutdown();
+    assertEquals(VersionedInt.v(4001, 4000), map.get(0));
+    assertEquals(VersionedInt.v(4000, 3999), map.get(1));
+
+    // An update that keeps losing moves to the combining path
+    final int[] calls = {0};
+    assertEquals(VersionedInt.v(4001, 4004), map.update(1, new Function<VersionedInt,VersionedInt>() {
+      public VersionedInt apply(VersionedInt cur) {
+        if( ++calls[0] <= 4 ) map.put(1, VersionedInt.v(cur.integer, cur.version + 1)); // Sneak in first
+        return VersionedInt.v(cur.integer + 1, cur.version + 1);
+      }
+    }));
+    assertEquals(5, calls[0]);
+    assertThat(map.update(1, new Function<VersionedInt,VersionedInt>() { // Removing, combined
+      public VersionedInt apply(VersionedInt cur) { return null; }
+    }), nullValue());
+    assertThat(map.get(1), nullValue());
+    try {
+      map.update(0, new Function<VersionedInt,VersionedInt>() {
+        public VersionedInt apply(VersionedInt cur) { return VersionedInt.v(0, cur.version); }
+      });
+      fail("Expected to get an exception");
+    } catch (VersionConflictException e) { }
+
+    // A batch in which every update fails commits nothing, and each update
+    // sees its own failure
+    final OCCHashMap<Integer,VersionedInt> weak = new OCCHashMap<Integer,VersionedInt>();
+    weak.enableWeakValues();    // Values held by reference: no same-value cutout
+    final VersionedInt kept = VersionedInt.v(7, 3);
+    weak.put(0, kept);
+    try {
+      new Combiner<Integer,VersionedInt>(weak, 0, 0).apply(new Function<VersionedInt,VersionedInt>() {
+        public VersionedInt apply(VersionedInt cur) { throw new UnsupportedOperationException(); }
+      });
+      fail("Expected to get an exception");
+    } catch (UnsupportedOperationException e) { }
+    assertSame(kept, weak.get(0));
+  }
+
+  public void testEscalation() throws Exception {
+    final OCCHashMap<Integer,VersionedInt> map = new OCCHashMap<Integer,VersionedInt>();
+    try {
+      map.contentionStats();
+      fail("Expected to get an exception");
+    } catch (IllegalStateException e) { }
+    map.enableEscalation(2);
+    map.put(0, VersionedInt.v0(0));
+
+    // Starving: loses twice, then updates under a lease
+    final int[] calls = {0};
+    assertEquals(VersionedInt.v(1, 3), map.update(0, new Function<VersionedInt,VersionedInt>() {
+      public VersionedInt apply(VersionedInt cur) {
+        if( ++calls[0] <= 2 ) map.put(0, VersionedInt.v(cur.integer, cur.version + 1)); // Sneak in first
+        return VersionedInt.v(cur.integer + 1, cur.version + 1);
+      }
+    }));
+    ContentionStats stats = map.contentionStats();
+    assertEquals(2, stats.getConflicts());
+    assertEquals(1, stats.getEscalations());
+    assertEquals(1, stats.getLeasedUpdates());
+    assertEquals(2, stats.getMaxConflicts());
+
+    final Function<VersionedInt,VersionedInt> incr = new Function<VersionedInt,VersionedInt>() {
+      public VersionedInt apply(VersionedInt cur) {
+        Thread.yield();         // Widen the race
+        return VersionedInt.v(cur.integer + 1, cur.version + 1);
+      }
+    };
+    final ExecutorService ex = Executors.newFixedThreadPool(8);
+    final List<Future<?>> futures = new LinkedList<Future<?>>();
+    for( int t = 0; t < 8; t++ )
+      futures.add(ex.submit(new Runnable() {
+        public void run() {
+          for( int i = 0; i < 500; i++ ) map.update(0, incr);
+        }
+      }));
+    for( Future<?> f : futures ) f.get();
+    ex.shutdown();
+    assertEquals(VersionedInt.v(4001, 4003), map.get(0));
+    stats = map.contentionStats();
+    assertThat(stats.getLeasedUpdates() >= stats.getEscalations(), is(true));
+  }
+
+  public void testConflictResolver() throws Exception {
+    final OCCHashMap<Integer,VersionedInt> map = new OCCHashMap<Integer,VersionedInt>();
+    map.setConflictResolver(new ConflictResolver<VersionedInt>() { // A counter: stale puts add up
+      public VersionedInt merge(VersionedInt existing, VersionedInt incoming) {
+        return VersionedInt.v(existing.integer + incoming.integer, existing.version + 1);
+      }
+    });
+    map.put(0, VersionedInt.v(1, 1));
+    assertEquals(VersionedInt.v(1, 1), map.put(0, VersionedInt.v(5, 1)));
+    assertEquals(VersionedInt.v(6, 2), map.get(0));
+    map.put(0, VersionedInt.v(0, 10)); // Newer versions just win
+    assertEquals(VersionedInt.v(0, 10), map.get(0));
+
+    // Conditional writes still fail on conflict
+    try {
+      map.putIfVersion(0, VersionedInt.v(1, 10), 10);
+      fail("Expected to get an exception");
+    } catch (VersionConflictException e) { }
+    assertEquals(VersionedInt.v(0, 10), map.get(0));
+
+    // Concurrent stale puts all get merged in
+    final ExecutorService ex = Executors.newFixedThreadPool(4);
+    final List<Future<?>> futures = new LinkedList<Future<?>>();
+    for( int t = 0; t < 4; t++ )
+      futures.add(ex.submit(new Runnable() {
+        public void run() {
+          for( int i = 0; i < 1000; i++ ) map.put(1, VersionedInt.v(1, 0));
+        }
+      }));
+    for( Future<?> f : futures ) f.get();
+    ex.shutdown();
+    assertEquals(VersionedInt.v(4000, 3999), map.get(1));
+
+    map.setConflictResolver(null);
+    try {
+      map.put(1, VersionedInt.v(1, 0));
+      fail("Expected to get an exception");
+    } catch (VersionConflictException e) { }
+  }
+
+  public void testAwaitVersion() throws Exception {
+    final OCCHashMap<String,VersionedString> map = new OCCHashMap<String,VersionedString>();
+    map.put("k", v("a", 3));
+    assertEquals(v("a", 3), map.awaitVersion("k", 2, 0, TimeUnit.MILLISECONDS)); // Already there
+    try {
+      map.awaitVersion("k", 4, 10, TimeUnit.MILLISECONDS);
+      fail("Expected to get an exception");
+    } catch (TimeoutException e) { }
+
+    // A blocked waiter is woken by the write that reaches its version
+    final ExecutorService ex = Executors.newSingleThreadExecutor();
+    final Future<VersionedString> waiter = ex.submit(new Callable<VersionedString>() {
+      public VersionedString call() throws Exception {
+        return map.awaitVersion("k", 5, 10, TimeUnit.SECONDS);
+      }
+    });
+    map.put("k", v("b", 4));
+    map.put("k", v("c", 6));
+    assertEquals(v("c", 6), waiter.get());
+    ex.shutdown();
+
+    // Futures: transactions and versioned deletes wake them too
+    final CompletableFuture<VersionedString> f7 = map.awaitVersionAsync("k", 7);
+    final CompletableFuture<VersionedString> f8 = map.awaitVersionAsync("k", 8);
+    final CompletableFuture<VersionedString> other = map.awaitVersionAsync("other", 1);
+    assertFalse(f7.isDone());
+    final Transaction<String,VersionedString> txn = map.begin();
+    txn.put("k", v("d", 7));
+    assertTrue(txn.commit());
+    assertEquals(v("d", 7), f7.getNow(null));
+    assertFalse(f8.isDone());
+    map.remove("k", 8);
+    assertTrue(f8.isDone());
+    assertThat(f8.get(), nullValue());
+    assertTrue(other.cancel(false));
+    map.put("other", v("x", 1));
+    assertTrue(other.isCancelled());
+  }
+
+  public void testSnapshot() {
+    try {
+      _nbhm.snapshot();
+      fail("Expected snapshots to be disabled");
+    } catch (IllegalStateException e) { }
+    _nbhm.put("k1", v0("a"));
+    _nbhm.put("k2", v0("b"));
+    _nbhm.remove("k2", 1);
+    _nbhm.put("k3", v0("c"));
+    _nbhm.enableSnapshots();
+    final Snapshot<String,VersionedString> snap = _nbhm.snapshot();
+    _nbhm.put("k1", v("a2", 1));
+    _nbhm.remove("k3");
+    _nbhm.put("k4", v0("d"));
+    Transaction<String,VersionedString> txn = _nbhm.begin();
+    txn.put("k1", v("a3", 2));
+    txn.put("k2", v("b2", 2));
+    assertTrue(txn.commit());
+    for( int i = 0; i < 1000; i++ ) // Force resizes, dropping nothing the snapshot needs
+      _nbhm.put("x" + i, v0("x"));
+    _nbhm.remove("x0");
+
+    assertEquals(v0("a"), snap.get("k1"));
+    assertThat(snap.get("k2"), nullValue());
+    assertEquals(v0("c"), snap.get("k3"));
+    assertThat(snap.get("k4"), nullValue());
+    assertThat(snap.get("x0"), nullValue());
+    assertEquals(2, snap.size());
+    final Map<String,VersionedString> expected = new HashMap<String,VersionedString>();
+    expected.put("k1", v0("a"));
+    expected.put("k3", v0("c"));
+    assertEquals(expected, snap);
+    try {
+      snap.put("k1", v("a4", 5));
+      fail("Expected the snapshot to be read-only");
+    } catch (UnsupportedOperationException e) { }
+
+    // The map moved on regardless
+    assertEquals(v("a3", 2), _nbhm.get("k1"));
+    assertEquals(v("b2", 2), _nbhm.get("k2"));
+    assertFalse(_nbhm.containsKey("k3"));
+    checkSizes(1002);
+    final Snapshot<String,VersionedString> later = _nbhm.snapshot();
+    assertEquals(v("a3", 2), later.get("k1"));
+    assertEquals(1002, later.size());
+
+    snap.release();
+    snap.release();
+    later.release();
+    try {
+      snap.get("k1");
+      fail("Expected the snapshot to be released");
+    } catch (IllegalStateException e) { }
+    _nbhm.clear();
+    checkSizes(0);
+  }
+
+  // Writers bump 'a' and then 'b', each a single put, or move units between
+  // accounts in transactions.  No snapshot may see 'b' ahead of 'a', nor a
+  // different total.
+  public void testConcurrentSnapshots() throws Exception {
+    final OCCHashMap<Integer,VersionedInt> map = new OCCHashMap<Integer,VersionedInt>();
+    final int accounts = 32, a = -1, b = -2;
+    for( int i = 0; i < accounts; i++ ) map.put(i, VersionedInt.v0(100));
+    map.put(a, VersionedInt.v0(0));
+    map.put(b, VersionedInt.v0(0));
+    map.enableSnapshots();
+    final ExecutorService ex = Executors.newFixedThreadPool(3);
+    final List<Future<Integer>> futures = new LinkedList<Future<Integer>>();
+    futures.add(ex.submit(new Callable<Integer>() {
+      public Integer call() {
+        for( int i = 1; i <= 20000; i++ ) {
+          map.put(a, VersionedInt.v(i, i));
+          map.put(b, VersionedInt.v(i, i));
+          if( i % 100 == 0 ) map.put(1000 + i, VersionedInt.v0(i)); // Some resizes too
+        }
+        return 0;
+      }
+    }));
+    futures.add(ex.submit(new Callable<Integer>() {
+      public Integer call() {
+        final Random r = new Random(0);
+        for( int i = 0; i < 20000; i++ ) {
+          final Transaction<Integer,VersionedInt> txn = map.begin();
+          final int x = r.nextInt(accounts), y = (x + 1 + r.nextInt(accounts - 1)) % accounts;
+          final VersionedInt vx = txn.get(x), vy = txn.get(y);
+          txn.put(x, VersionedInt.v(vx.integer - 1, vx.version + 1));
+          txn.put(y, VersionedInt.v(vy.integer + 1, vy.version + 1));
+          txn.commit();
+        }
+        return 0;
+      }
+    }));
+    futures.add(ex.submit(new Callable<Integer>() {
+      public Integer call() {
+        int checked = 0;
+        for( int i = 0; i < 300; i++ ) {
+          final Snapshot<Integer,VersionedInt> snap = map.snapshot();
+          final int sb = snap.get(b).integer;
+          Thread.yield();
+          final int sa = snap.get(a).integer;
+          assertTrue(sb + " ahead of " + sa, sb <= sa);
+          int sum = 0;
+          for( Entry<Integer,VersionedInt> e : snap.entrySet() )
+            if( e.getKey() >= 0 && e.getKey() < accounts ) sum += e.getValue().integer;
+          assertEquals(accounts * 100, sum);
+          assertEquals(sb, (int) snap.get(b).integer);
+          snap.release();
+          checked++;
+        }
+        return checked;
+      }
+    }));
+    for( Future<Integer> f : futures ) f.get();
+    ex.shutdown();
+    int sum = 0;
+    for( int i = 0; i < accounts; i++ ) sum += map.get(i).integer;
+    assertEquals(accounts * 100, sum);
+    assertEquals(map.get(a), map.get(b));
+  }
+
+  public void testKeyStrategy() {
+    final OCCHashMap<byte[],VersionedString> bytes = new OCCHashMap<byte[],VersionedString>(KeyStrategy.BYTE_ARRAY);
+    assertThat(bytes.put(new byte[]{1, 2}, v0("a")), nullValue());
+    assertEquals(v0("a"), bytes.get(new byte[]{1, 2}));
+    assertThat(bytes.get(new byte[]{2, 1}), nullValue());
+    assertEquals(v0("a"), bytes.put(new byte[]{1, 2}, v("b", 1)));
+    assertEquals(1, bytes.size());
+    for( int i = 0; i < 100; i++ ) // Through a few resizes
+      bytes.put(new byte[]{(byte) i, 0, 0}, v0("x"));
+    assertEquals(v("b", 1), bytes.get(new byte[]{1, 2}));
+    assertEquals(v0("x"), bytes.remove(new byte[]{99, 0, 0}));
+    assertEquals(100, bytes.size());
+
+    // The side tables follow the strategy too
+    bytes.enableHistory(4);
+    final ReadTimestamp reader = bytes.registerReader(1);
+    bytes.put(new byte[]{1, 2}, v("c", 2));
+    assertEquals(v("b", 1), bytes.getAsOf(new byte[]{1, 2}, 1));
+    reader.release();
+    final Transaction<byte[],VersionedString> txn = bytes.begin();
+    assertEquals(v("c", 2), txn.get(new byte[]{1, 2}));
+    txn.put(new byte[]{1, 2}, v("d", 3));
+    assertEquals(v("d", 3), txn.get(new byte[]{1, 2}));
+    assertTrue(txn.commit());
+    assertEquals(v("d", 3), bytes.get(new byte[]{1, 2}));
+    bytes.enableSnapshots();
+    final Snapshot<byte[],VersionedString> snap = bytes.snapshot();
+    bytes.put(new byte[]{1, 2}, v("e", 4));
+    assertEquals(v("d", 3), snap.get(new byte[]{1, 2}));
+    snap.release();
+
+    final OCCHashMap<String,VersionedString> identity = new OCCHashMap<String,VersionedString>(KeyStrategy.IDENTITY);
+    final String k1 = new String("k"), k2 = new String("k");
+    identity.put(k1, v0("a"));
+    identity.put(k2, v0("b"));
+    assertEquals(2, identity.size());
+    assertEquals(v0("a"), identity.get(k1));
+    assertEquals(v0("b"), identity.get(k2));
+    assertThat(identity.get("k"), nullValue());
+
+    final OCCHashMap<String,VersionedString> nocase = new OCCHashMap<String,VersionedString>(new KeyStrategy<String>() {
+      public int hashCode(String key) { return key.toLowerCase().hashCode(); }
+      public boolean equals(String a, String b) { return a.equalsIgnoreCase(b); }
+    });
+    nocase.put("Key", v0("a"));
+    assertEquals(v0("a"), nocase.put("KEY", v("b", 1)));
+    assertTrue(nocase.containsKey("key"));
+    assertEquals(1, nocase.size());
+    try {
+      nocase.get(null);
+      fail("Expected to get an exception");
+    } catch (NullPointerException e) { }
+  }
+
+  // 2^bits distinct Strings with one hashCode: any mix of "Aa" and "BB".
+  private static String[] collidingStrings(final int bits) {
+    final String[] res = new String[1 << bits];
+    for (int i = 0; i < res.length; i++) {
+      final StringBuilder sb = new StringBuilder();
+      for (int b = 0; b < bits; b++) sb.append((i >>> b & 1) == 0 ? "Aa" : "BB");
+      res[i] = sb.toString();
+    }
+    return res;
+  }
+
+  public void testHashSeeding() {
+    final String[] keys = collidingStrings(10);
+    final OCCHashMap<String,VersionedString> plain = new OCCHashMap<String,VersionedString>();
+    final OCCHashMap<String,VersionedString> seeded = new OCCHashMap<String,VersionedString>();
+    seeded.put("pre", v0("p"));
+    seeded.enableHashSeeding(); // Copies what is already there
+    assertEquals(v0("p"), seeded.get("pre"));
+    for (String k : keys) {
+      plain.put(k, v0(k));
+      seeded.put(k, v0(k));
+    }
+    assertEquals(keys.length + 1, seeded.size());
+    for (String k : keys) assertEquals(v0(k), seeded.get(k));
+    assertThat(plain.longestProbe() >= keys.length - 1, is(true)); // One chain
+    assertThat(seeded.longestProbe() < 64, is(true));
+
+    // Seeding survives clear
+    seeded.clear();
+    for (String k : keys) seeded.put(k, v0(k));
+    assertThat(seeded.longestProbe() < 64, is(true));
+
+    // Equal hashCodes collide under any seed; every long chain reseeds, and
+    // lookups must follow keys into differently seeded tables.
+    final OCCHashMap<Object,VersionedString> same = new OCCHashMap<Object,VersionedString>();
+    same.enableHashSeeding();
+    final List<Object> objs = new LinkedList<Object>();
+    for (int i = 0; i < 300; i++) {
+      final int id = i;
+      final Object o = new Object() {
+        public int hashCode() { return 42; }
+        public String toString() { return "o" + id; }
+      };
+      objs.add(o);
+      same.put(o, v0(o.toString()));
+    }
+    for (Object o : objs) assertEquals(v0(o.toString()), same.get(o));
+    assertEquals(300, same.size());
+  }
+
   public void testSerial() {
     assertTrue(_nbhm.isEmpty());
     assertThat ( _nbhm.put("k1",v0("v1")), nullValue() );
@@ -399,6 +1099,242 @@ public class OCCHashMapTest extends TestCase {
     assertThat("Found all integers in list",sum,is(CNT*(CNT-1)/2 - (3+4)));
   }
 
+  // Enough keys to outgrow a flat table twice over: chunked tables, copies
+  // from flat to chunked and from chunked to chunked, under two writers.
+  public void testChunkedTable() throws Exception {
+    final int CNT = 60000;
+    final OCCHashMap<Integer,VersionedInt> map = new OCCHashMap<Integer,VersionedInt>();
+    final ExecutorService ex = Executors.newFixedThreadPool(2);
+    final List<Future<Integer>> futures = new LinkedList<Future<Integer>>();
+    for( int t = 0; t < 2; t++ ) {
+      final int base = t * CNT;
+      futures.add(ex.submit(new Callable<Integer>() {
+        public Integer call() {
+          for( int i = base; i < base + CNT; i++ ) {
+            map.put(i, VersionedInt.v0(i));
+            assertEquals(i, (int) map.get(i).integer);
+            if( i > base ) assertEquals(i - 1, (int) map.get(i - 1).integer);
+          }
+          return 0;
+        }
+      }));
+    }
+    for( Future<Integer> f : futures ) f.get();
+    ex.shutdown();
+    assertEquals(2 * CNT, map.size());
+    for( int i = 0; i < 2 * CNT; i++ ) assertEquals(i, (int) map.get(i).integer);
+    assertNull(map.get(-1));
+
+    map.enableSnapshots();      // A chunked copy with deleted keys kept
+    final Snapshot<Integer,VersionedInt> snap = map.snapshot();
+    for( int i = 0; i < 2 * CNT; i += 2 ) map.remove(i);
+    for( int i = 2 * CNT; i < 3 * CNT; i++ ) map.put(i, VersionedInt.v0(i));
+    assertEquals(2 * CNT, snap.size());
+    snap.release();
+    int n = 0;
+    for( Integer K : map.keySet() ) {
+      assertTrue(K % 2 == 1 || K >= 2 * CNT);
+      n++;
+    }
+    assertEquals(2 * CNT, n);
+    assertEquals(2 * CNT, map.size());
+
+    final OCCHashMap<Integer,VersionedInt> big = new OCCHashMap<Integer,VersionedInt>(100000);
+    big.put(7, VersionedInt.v0(7)); // Chunked from the start; one chunk allocated
+    assertEquals(7, (int) big.get(7).integer);
+    big.clear();
+    assertNull(big.get(7));
+  }
+
+  // Iterate while the table grows, so that many iterations start in the
+  // middle of a table-copy, flat and chunked: every key exactly once.
+  public void testIterationMidCopy() {
+    final OCCHashMap<Integer,VersionedInt> map = new OCCHashMap<Integer,VersionedInt>();
+    final Set<Integer> seen = new HashSet<Integer>();
+    for( int i = 0; i < 200000; i++ ) {
+      map.put(i, VersionedInt.v0(i));
+      if( i % 997 != 0 ) continue;
+      seen.clear();
+      for( Integer K : map.keySet() ) assertTrue(seen.add(K));
+      assertEquals(i + 1, seen.size());
+    }
+    int n = 0;
+    for( Iterator<Integer> it = map.keySet().iterator(); it.hasNext(); ) {
+      final int K = it.next();
+      if( K >= 0 && K % 2 == 0 ) it.remove();
+      if( n < 50000 ) map.put(-1 - n++, VersionedInt.v0(0)); // Keep it growing
+    }
+    assertEquals(100000 + n, map.size());
+  }
+
+  // Version checks on a few hot keys while other threads grow the table
+  // through many copies: no bump may be lost or doubled by a copy.
+  public void testVersionsAcrossResizes() throws Exception {
+    final int CNT = 50000, HOT = 8;
+    final OCCHashMap<Integer,VersionedInt> map = new OCCHashMap<Integer,VersionedInt>();
+    for( int k = 0; k < HOT; k++ ) map.put(-1 - k, VersionedInt.v0(0));
+    final ExecutorService ex = Executors.newFixedThreadPool(4);
+    final List<Future<Integer>> futures = new LinkedList<Future<Integer>>();
+    for( int t = 0; t < 2; t++ ) {
+      final int base = t * CNT;
+      futures.add(ex.submit(new Callable<Integer>() {
+        public Integer call() {
+          for( int i = base; i < base + CNT; i++ ) map.put(i, VersionedInt.v0(i));
+          return 0;
+        }
+      }));
+      futures.add(ex.submit(new Callable<Integer>() {
+        public Integer call() {
+          int wins = 0;
+          for( int i = 0; i < CNT; i++ ) {
+            final int key = -1 - (i % HOT);
+            final int ver = map.get(key).version;
+            try {
+              if( map.putIfVersion(key, VersionedInt.v(key, ver + 1), ver) ) wins++;
+            } catch( VersionConflictException e ) { }
+          }
+          return wins;
+        }
+      }));
+    }
+    int wins = 0;
+    for( Future<Integer> f : futures ) wins += f.get();
+    ex.shutdown();
+    assertEquals(2 * CNT + HOT, map.size());
+    int versions = 0;
+    for( int k = 0; k < HOT; k++ ) versions += map.get(-1 - k).version;
+    assertEquals(wins, versions);
+    for( int i = 0; i < 2 * CNT; i++ ) assertEquals(i, (int) map.get(i).integer);
+  }
+
+  public void testWeakValues() throws InterruptedException {
+    final OCCHashMap<String,VersionedString> map = new OCCHashMap<String,VersionedString>();
+    map.enableWeakValues();
+    final VersionedString kept = v("kept", 1);
+    map.put("kept", kept);
+    map.put("gone", v("gone", 5));
+    for( int i = 0; i < 50 && map.get("gone") != null; i++ ) {
+      System.gc();
+      Thread.sleep(10);
+    }
+    assertNull(map.get("gone"));
+    assertSame(kept, map.get("kept"));
+    assertEquals(2, map.size());  // Until drained
+    assertEquals(1, map.drainValueRefs());
+    assertEquals(1, map.size());
+
+    // The version check applies to live values only
+    try {
+      map.put("kept", v("stale", 1));
+      fail("Expected to get an exception");
+    } catch (VersionConflictException e) { }
+    assertTrue(map.replace("kept", kept, v("kept", 2)));
+    assertNull(map.putIfAbsent("gone", v("back", 0))); // Reclaimed reads as absent
+    assertEquals(v("back", 0), map.get("gone"));
+    assertEquals(2, map.size());
+
+    try {
+      map.enableSnapshots();
+      fail("Expected snapshots to be refused");
+    } catch (IllegalStateException e) { }
+    try {
+      map.enableSoftValues();
+      fail("Expected the mode to be fixed");
+    } catch (IllegalStateException e) { }
+  }
+
+  public void testSpill() throws IOException {
+    final File dir = File.createTempFile("spill", "");
+    assertTrue(dir.delete());
+    final OCCHashMap<String,VersionedString> map = new OCCHashMap<String,VersionedString>();
+    map.enableSpill(dir, 1024);
+    for( int i = 0; i < 1000; i++ ) map.put("k"+i, v("x"+i, i));
+    assertEquals(0, map.spillCold());       // Marks everything
+    assertEquals(v("x1", 1), map.get("k1")); // Touched: stays
+    assertEquals(999, map.spillCold());
+    assertEquals(1000, map.size());
+
+    // Spilled values read back, and go back in memory; version checks see them
+    assertEquals(v("x7", 7), map.get("k7"));
+    assertEquals(v("x8", 8), map.getRaw("k8"));
+    try {
+      map.put("k9", v("stale", 9));
+      fail("Expected to get an exception");
+    } catch (VersionConflictException e) { }
+    assertTrue(map.replace("k10", v("x10", 10), v("y10", 11)));
+    assertEquals(v("y10", 11), map.get("k10"));
+    assertEquals(v("x11", 11), map.remove("k11"));
+    assertEquals(999, map.size());
+    int n = 0;
+    for( VersionedString V : map.values() ) if( V != null ) n++;
+    assertEquals(999, n);
+
+    // Rewrite most of it: the old segments compact away
+    final SegmentStore store = map.spillStore();
+    final int before = store.segmentCount();
+    for( int i = 100; i < 1000; i++ ) map.put("k"+i, v("z"+i, 1000+i));
+    map.compactSpill(store);
+    assertTrue(store.segmentCount() < before);
+    for( int i = 12; i < 100; i++ ) assertEquals(v("x"+i, i), map.get("k"+i));
+
+    try {
+      map.begin();
+      fail("Expected transactions to be refused");
+    } catch (IllegalStateException e) { }
+
+    // Disabling reads everything back and deletes the files
+    map.disableSpill();
+    assertEquals(0, dir.listFiles().length);
+    assertTrue(dir.delete());
+    assertEquals(v("x50", 50), map.get("k50"));
+    assertEquals(v("z500", 1500), map.get("k500"));
+    try {
+      map.spillCold();
+      fail("Expected spilling to be disabled");
+    } catch (IllegalStateException e) { }
+  }
+
+  public void testSpillConcurrent() throws Exception {
+    final File dir = File.createTempFile("spill", "");
+    assertTrue(dir.delete());
+    final OCCHashMap<String,VersionedString> map = new OCCHashMap<String,VersionedString>();
+    map.enableSpill(dir, 1024); // Small segments roll over all the time
+    final int N = 2000;
+    for( int i = 0; i < N; i++ ) map.put("k"+i, v("x", 0));
+    final SegmentStore store = map.spillStore();
+    final long end = System.currentTimeMillis() + 1000;
+    final ExecutorService ex = Executors.newFixedThreadPool(4);
+    final List<Future<?>> futures = new LinkedList<Future<?>>();
+    futures.add(ex.submit(new Runnable() {
+      public void run() { while( System.currentTimeMillis() < end ) map.spillCold(); }
+    }));
+    futures.add(ex.submit(new Runnable() {
+      public void run() { while( System.currentTimeMillis() < end ) map.compactSpill(store); }
+    }));
+    futures.add(ex.submit(new Runnable() { // Rewrite every 7th key, leaving segments mostly dead
+      public void run() {
+        for( int r = 1; System.currentTimeMillis() < end; r++ )
+          for( int i = 0; i < N; i += 7 ) map.put("k"+i, v("x", r));
+      }
+    }));
+    futures.add(ex.submit(new Runnable() { // Read the rest back, spilled or not
+      public void run() {
+        while( System.currentTimeMillis() < end )
+          for( int i = 0; i < N; i++ ) if( i % 7 != 0 ) assertEquals(v("x", 0), map.get("k"+i));
+      }
+    }));
+    for( Future<?> f : futures ) f.get(60, TimeUnit.SECONDS); // A lost value would hang its reader
+    ex.shutdown();
+
+    for( int i = 0; i < N; i++ )
+      if( i % 7 != 0 ) assertEquals(v("x", 0), map.get("k"+i));
+      else assertTrue(map.get("k"+i).version > 0);
+    map.disableSpill();
+    assertEquals(0, dir.listFiles().length);
+    assertTrue(dir.delete());
+    for( int i = 1; i < N; i += 7 ) assertEquals(v("x", 0), map.get("k"+i));
+  }
+
   // Do some simple concurrent testing
   public void testConcurrentSimple() throws InterruptedException {
     final OCCHashMap<String,VersionedString> nbhm = new OCCHashMap<String,VersionedString>();
@@ -0,0 +1,76 @@
+package org.vvcephei.occ_map;
+
+import junit.framework.TestCase;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import static org.vvcephei.occ_map.OCCHashMapTest.VersionedString.v;
+import static org.vvcephei.occ_map.OCCHashMapTest.VersionedString.v0;
+
+public class ShardedOCCMapTest extends TestCase {
+
+  public void testWholeMap() {
+    final ShardedOCCMap<String, OCCHashMapTest.VersionedString> map =
+        new ShardedOCCMap<String, OCCHashMapTest.VersionedString>(5);
+    assertEquals(8, map.shardCount()); // Rounded up
+    assertTrue(map.isEmpty());
+    final Set<OCCHashMap<?, ?>> used = Collections.newSetFromMap(new IdentityHashMap<OCCHashMap<?, ?>, Boolean>());
+    for (int i = 0; i < 1000; i++) {
+      map.put("k" + i, v0("x" + i));
+      used.add(map.shard("k" + i));
+    }
+    assertEquals(8, used.size());
+    assertEquals(1000, map.size());
+    assertEquals(v0("x7"), map.get("k7"));
+    assertTrue(map.putIfVersion("k7", v("y7", 1), 0));
+    assertEquals(v("y7", 1), map.get("k7"));
+
+    final Set<String> seen = new HashSet<String>();
+    for (final Iterator<Map.Entry<String, OCCHashMapTest.VersionedString>> it = map.entrySet().iterator(); it.hasNext(); ) {
+      final Map.Entry<String, OCCHashMapTest.VersionedString> e = it.next();
+      assertTrue(seen.add(e.getKey()));
+      if (e.getKey().endsWith("0")) it.remove();
+    }
+    assertEquals(1000, seen.size());
+    assertEquals(900, map.size());
+    assertNull(map.get("k10"));
+
+    map.clear();
+    assertTrue(map.isEmpty());
+    assertEquals(0, map.keySet().size());
+  }
+
+  public void testSnapshotAcrossShards() {
+    final ShardedOCCMap<String, OCCHashMapTest.VersionedString> map =
+        new ShardedOCCMap<String, OCCHashMapTest.VersionedString>(4);
+    try {
+      map.snapshot();
+      fail("Expected snapshots to be disabled");
+    } catch (IllegalStateException e) { }
+    for (int i = 0; i < 100; i++) map.put("k" + i, v0("a"));
+    map.enableSnapshots();
+
+    final Snapshot<String, OCCHashMapTest.VersionedString> snap = map.snapshot();
+    for (int i = 0; i < 100; i++) map.put("k" + i, v("b", 1));
+    map.remove("k5");
+    map.put("new", v0("c"));
+
+    assertEquals(100, snap.size());
+    for (final Map.Entry<String, OCCHashMapTest.VersionedString> e : snap.entrySet())
+      assertEquals(v0("a"), e.getValue());
+    assertEquals(v0("a"), snap.get("k5"));
+    assertNull(snap.get("new"));
+    assertEquals(v("b", 1), map.get("k6"));
+
+    snap.release();
+    try {
+      snap.get("k1");
+      fail("Expected the snapshot to be released");
+    } catch (IllegalStateException e) { }
+  }
+}
@@ -0,0 +1,73 @@
+package org.vvcephei.occ_map.perf;
+
+import org.vvcephei.occ_map.OCCHashMap;
+import org.vvcephei.occ_map.OCCHashMapTest.VersionedInt;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Many concurrent {@code updateAsync} calls incrementing a few hot keys,
+ * each attempt on its own virtual thread.  Reports throughput, how many
+ * attempts lost a race and were backed off, and how many updates gave up.
+ * Not run by the build; start it by hand on Java 21 or later:
+ * <pre>
+ *   java -cp target/classes:target/test-classes org.vvcephei.occ_map.perf.AsyncUpdatePerf [updaters] [keys]
+ * </pre>
+ * The default is 100k updaters on 64 keys.  Older JVMs have no virtual
+ * threads; the harness then says so and uses the common fork-join pool.
+ */
+public class AsyncUpdatePerf {
+
+  public static void main(final String[] args) throws Exception {
+    final int updaters = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+    final int keys = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+    final ExecutorService vts = virtualThreads();
+    System.out.printf("%d updaters on %d keys, %s%n", updaters, keys,
+        vts != null ? "virtual threads" : "no virtual threads in this JVM: common fork-join pool");
+
+    System.out.printf("%12s %14s %12s %10s%n", "ms", "updates/s", "backed off", "gave up");
+    for (int round = 0; round < 3; round++) { // The first rounds warm up
+      final OCCHashMap<Integer, VersionedInt> map = new OCCHashMap<Integer, VersionedInt>();
+      final AtomicLong calls = new AtomicLong();
+      final Function<VersionedInt, VersionedInt> incr = new Function<VersionedInt, VersionedInt>() {
+        public VersionedInt apply(final VersionedInt cur) {
+          calls.incrementAndGet();
+          return cur == null ? VersionedInt.v0(1) : VersionedInt.v(cur.integer + 1, cur.version + 1);
+        }
+      };
+      final CompletableFuture<?>[] futures = new CompletableFuture<?>[updaters];
+      final long t0 = System.nanoTime();
+      for (int i = 0; i < updaters; i++)
+        futures[i] = map.updateAsync(i % keys, incr, vts != null ? vts : ForkJoinPool.commonPool());
+      int failed = 0;
+      for (final CompletableFuture<?> f : futures) {
+        try {
+          f.join();
+        } catch (RuntimeException e) {
+          failed++;
+        }
+      }
+      final long elapsed = System.nanoTime() - t0;
+      long total = 0;
+      for (final VersionedInt v : map.values()) total += v.integer;
+      if (total != updaters - failed) throw new AssertionError("Lost updates: " + total + " of " + (updaters - failed));
+      System.out.printf("%12.1f %14.0f %12d %10d%n", elapsed / 1e6, updaters * 1e9 / elapsed,
+          calls.get() - (updaters - failed), failed);
+    }
+    if (vts != null) vts.shutdown();
+  }
+
+  // Executors.newVirtualThreadPerTaskExecutor(), where the JVM has it.
+  private static ExecutorService virtualThreads() {
+    try {
+      return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (Exception e) {
+      return null;
+    }
+  }
+}
@@ -0,0 +1,49 @@
+package org.vvcephei.occ_map.perf;
+
+import org.vvcephei.occ_map.BulkLoader;
+import org.vvcephei.occ_map.OCCHashMap;
+import org.vvcephei.occ_map.OCCHashMapTest.VersionedInt;
+
+/**
+ * Time to fill a map: one put at a time into a map that starts small, and
+ * so resizes all the way, against a {@link BulkLoader} on one thread and on
+ * all processors.  Not run by the build; start it by hand, with enough heap:
+ * <pre>
+ *   java -Xmx4g -cp target/classes:target/test-classes org.vvcephei.occ_map.perf.BulkLoadPerf [entries]
+ * </pre>
+ */
+public class BulkLoadPerf {
+
+  public static void main(final String[] args) {
+    final int entries = args.length > 0 ? Integer.parseInt(args[0]) : 1 << 21;
+    final int procs = Runtime.getRuntime().availableProcessors();
+    final Integer[] keys = new Integer[entries];
+    final VersionedInt[] vals = new VersionedInt[entries];
+    for (int i = 0; i < entries; i++) {
+      keys[i] = i * 0x9E3779B1; // Scattered, as real keys would be
+      vals[i] = VersionedInt.v0(i);
+    }
+    System.out.printf("%d entries, %d processors%n", entries, procs);
+    System.out.printf("%-14s %10s%n", "", "ms");
+    for (int round = 0; round < 3; round++) { // The first rounds warm up
+      long t0 = System.nanoTime();
+      final OCCHashMap<Integer, VersionedInt> put = new OCCHashMap<Integer, VersionedInt>();
+      for (int i = 0; i < entries; i++) put.put(keys[i], vals[i]);
+      report("put", t0, put, entries);
+      for (final int threads : procs == 1 ? new int[] {1} : new int[] {1, procs}) {
+        t0 = System.nanoTime();
+        final OCCHashMap<Integer, VersionedInt> bulk = new OCCHashMap<Integer, VersionedInt>();
+        final BulkLoader<Integer, VersionedInt> loader = new BulkLoader<Integer, VersionedInt>(bulk, entries, threads);
+        for (int i = 0; i < entries; i++) loader.add(keys[i], vals[i]);
+        loader.load();
+        report("bulk x" + threads, t0, bulk, entries);
+      }
+    }
+  }
+
+  private static void report(final String what, final long t0, final OCCHashMap<?, ?> map, final int entries) {
+    final long ms = (System.nanoTime() - t0) / 1000000;
+    if (map.size() != entries) throw new AssertionError(what + " went wrong: " + map.size());
+    System.out.printf("%-14s %10d%n", what, ms);
+  }
+}
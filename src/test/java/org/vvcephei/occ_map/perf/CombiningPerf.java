@@ -0,0 +1,119 @@
+package org.vvcephei.occ_map.perf;
+
+import org.vvcephei.occ_map.OCCHashMap;
+import org.vvcephei.occ_map.OCCHashMapTest.VersionedInt;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * Read-modify-write throughput on keys drawn from a Zipfian distribution,
+ * where a few keys take a large share of the writes.  Compares {@code
+ * update}, which switches hot keys to flat combining, with a plain loop of
+ * {@code get} and {@code putIfVersion} that retries every lost CAS, and
+ * with {@code ConcurrentHashMap.compute} (which locks the bin) as a
+ * baseline.  Not run by the build; start it by hand:
+ * <pre>
+ *   java -cp target/classes:target/test-classes org.vvcephei.occ_map.perf.CombiningPerf [keys] [skew] [seconds]
+ * </pre>
+ * Defaults: 1024 keys, skew 1.4 (the hottest key takes about a third of the
+ * writes), 2 seconds per run, at 1 to 64 threads.  Results are millions of
+ * updates per second.
+ */
+public class CombiningPerf {
+
+  private static final Function<VersionedInt, VersionedInt> INCR = new Function<VersionedInt, VersionedInt>() {
+    public VersionedInt apply(final VersionedInt cur) {
+      return cur == null ? VersionedInt.v0(1) : VersionedInt.v(cur.integer + 1, cur.version + 1);
+    }
+  };
+
+  interface Updater {
+    void update(int key);
+  }
+
+  public static void main(final String[] args) throws Exception {
+    final int keys = args.length > 0 ? Integer.parseInt(args[0]) : 1024;
+    final double skew = args.length > 1 ? Double.parseDouble(args[1]) : 1.4;
+    final int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 2;
+    final double[] cdf = zipf(keys, skew);
+    System.out.printf("%d keys, skew %.2f: hottest key takes %.0f%% of writes%n", keys, skew, cdf[0] * 100);
+    System.out.printf("%8s %14s %14s %14s%n", "threads", "update", "CAS loop", "CHM.compute");
+    for (int threads = 1; threads <= 64; threads <<= 1) {
+      final OCCHashMap<Integer, VersionedInt> combining = new OCCHashMap<Integer, VersionedInt>();
+      final OCCHashMap<Integer, VersionedInt> racing = new OCCHashMap<Integer, VersionedInt>();
+      final ConcurrentHashMap<Integer, VersionedInt> chm = new ConcurrentHashMap<Integer, VersionedInt>();
+      final BiFunction<Integer, VersionedInt, VersionedInt> incr = new BiFunction<Integer, VersionedInt, VersionedInt>() {
+        public VersionedInt apply(final Integer k, final VersionedInt cur) { return INCR.apply(cur); }
+      };
+      System.out.printf("%8d %14.2f %14.2f %14.2f%n", threads,
+          run(threads, seconds, cdf, new Updater() {
+            public void update(final int key) { combining.update(key, INCR); }
+          }),
+          run(threads, seconds, cdf, new Updater() {
+            public void update(final int key) {
+              while (true) {
+                final VersionedInt cur = racing.get(key);
+                final VersionedInt next = INCR.apply(cur);
+                if (cur == null ? racing.putIfAbsent(key, next) == null : racing.putIfVersion(key, next, cur.version))
+                  return;
+              }
+            }
+          }),
+          run(threads, seconds, cdf, new Updater() {
+            public void update(final int key) { chm.compute(key, incr); }
+          }));
+    }
+  }
+
+  // Cumulative probabilities of keys 0..n-1, key k having weight 1/(k+1)^skew.
+  private static double[] zipf(final int n, final double skew) {
+    final double[] cdf = new double[n];
+    double sum = 0;
+    for (int k = 0; k < n; k++) cdf[k] = sum += 1 / Math.pow(k + 1, skew);
+    for (int k = 0; k < n; k++) cdf[k] /= sum;
+    return cdf;
+  }
+
+  private static double run(final int threads, final int seconds, final double[] cdf, final Updater u) throws Exception {
+    final AtomicBoolean stop = new AtomicBoolean();
+    final AtomicLong ops = new AtomicLong();
+    final CountDownLatch ready = new CountDownLatch(threads), go = new CountDownLatch(1);
+    final CountDownLatch done = new CountDownLatch(threads);
+    for (int t = 0; t < threads; t++) {
+      new Thread() {
+        public void run() {
+          final ThreadLocalRandom r = ThreadLocalRandom.current();
+          long n = 0;
+          ready.countDown();
+          try {
+            go.await();
+          } catch (InterruptedException e) {
+            return;
+          }
+          while (!stop.get()) {
+            int key = Arrays.binarySearch(cdf, r.nextDouble());
+            if (key < 0) key = -key - 1;
+            u.update(Math.min(key, cdf.length - 1));
+            n++;
+          }
+          ops.addAndGet(n);
+          done.countDown();
+        }
+      }.start();
+    }
+    ready.await();
+    final long t0 = System.nanoTime();
+    go.countDown();
+    Thread.sleep(seconds * 1000L);
+    stop.set(true);
+    done.await();
+    return ops.get() / ((System.nanoTime() - t0) / 1e3);
+  }
+}
@@ -0,0 +1,88 @@
+package org.vvcephei.occ_map.perf;
+
+import org.vvcephei.occ_map.Counter;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Throughput of {@link Counter} against {@link LongAdder}, with 1 to 64
+ * threads doing nothing but increments.  Not run by the build; start it by
+ * hand on an otherwise idle machine:
+ * <pre>
+ *   java -cp target/classes:target/test-classes org.vvcephei.occ_map.perf.CounterPerf [millis-per-run]
+ * </pre>
+ * Each configuration is run once to warm up and then measured.  Results are
+ * total increments per microsecond across all threads.
+ */
+public class CounterPerf {
+
+  interface Incrementer {
+    void increment();
+
+    long sum();
+  }
+
+  public static void main(final String[] args) throws Exception {
+    final long millis = args.length > 0 ? Long.parseLong(args[0]) : 1000;
+    System.out.printf("%7s %12s %12s%n", "threads", "Counter", "LongAdder");
+    for (int threads = 1; threads <= 64; threads <<= 1) {
+      final double counter = run(threads, millis, new Incrementer() {
+        final Counter c = new Counter();
+        public void increment() { c.increment(); }
+        public long sum() { return c.get(); }
+      });
+      final double adder = run(threads, millis, new Incrementer() {
+        final LongAdder a = new LongAdder();
+        public void increment() { a.increment(); }
+        public long sum() { return a.sum(); }
+      });
+      System.out.printf("%7d %12.1f %12.1f%n", threads, counter, adder);
+    }
+  }
+
+  // Warm up, then measure; returns increments per microsecond.
+  private static double run(final int threads, final long millis, final Incrementer inc) throws Exception {
+    measure(threads, millis, inc);
+    return measure(threads, millis, inc);
+  }
+
+  private static double measure(final int threads, final long millis, final Incrementer inc) throws Exception {
+    final long before = inc.sum();
+    final CountDownLatch start = new CountDownLatch(1);
+    final CountDownLatch done = new CountDownLatch(threads);
+    final long[] counts = new long[threads];
+    final long deadline[] = new long[1];
+    for (int t = 0; t < threads; t++) {
+      final int id = t;
+      final Thread thread = new Thread(new Runnable() {
+        public void run() {
+          try {
+            start.await();
+          } catch (InterruptedException e) {
+            return;
+          }
+          long n = 0;
+          while (System.nanoTime() < deadline[0]) {
+            for (int i = 0; i < 1000; i++) inc.increment();
+            n += 1000;
+          }
+          counts[id] = n;
+          done.countDown();
+        }
+      });
+      thread.setDaemon(true);
+      thread.start();
+    }
+    final long t0 = System.nanoTime();
+    deadline[0] = t0 + TimeUnit.MILLISECONDS.toNanos(millis);
+    start.countDown();
+    done.await();
+    final long elapsed = System.nanoTime() - t0;
+    long total = 0;
+    for (final long n : counts) total += n;
+    if (inc.sum() - before != total) throw new AssertionError("Lost counts: " + (inc.sum() - before) + " != " + total);
+    return total / (elapsed / 1000.0);
+  }
+}
@@ -0,0 +1,62 @@
+package org.vvcephei.occ_map.perf;
+
+import org.vvcephei.occ_map.OCCHashMap;
+import org.vvcephei.occ_map.OCCHashMapTest.VersionedInt;
+
+/**
+ * Hash flooding: inserts and looks up String keys that all share one
+ * hashCode, in a plain map and in one with hash seeding enabled, and
+ * reports the longest probe sequence along with the time per operation.
+ * Ordinary keys are measured too, for the cost of seeding when nobody is
+ * attacking.  Not run by the build; start it by hand:
+ * <pre>
+ *   java -cp target/classes:target/test-classes org.vvcephei.occ_map.perf.FloodPerf [bits]
+ * </pre>
+ * The adversarial set has 2^bits keys (default 13, i.e. 8192).
+ */
+public class FloodPerf {
+
+  public static void main(final String[] args) {
+    final int bits = args.length > 0 ? Integer.parseInt(args[0]) : 13;
+    final String[] flood = collidingStrings(bits);
+    final String[] normal = new String[flood.length];
+    for (int i = 0; i < normal.length; i++) normal[i] = "key-" + i;
+
+    System.out.printf("%d keys%n", flood.length);
+    System.out.printf("%-20s %12s %10s %10s%n", "", "max probe", "put ns", "get ns");
+    for (int round = 0; round < 3; round++) { // The first rounds warm up
+      run("plain, colliding", flood, false);
+      run("seeded, colliding", flood, true);
+      run("plain, ordinary", normal, false);
+      run("seeded, ordinary", normal, true);
+    }
+  }
+
+  // 2^bits distinct Strings with one hashCode: any mix of "Aa" and "BB".
+  private static String[] collidingStrings(final int bits) {
+    final String[] res = new String[1 << bits];
+    for (int i = 0; i < res.length; i++) {
+      final StringBuilder sb = new StringBuilder();
+      for (int b = 0; b < bits; b++) sb.append((i >>> b & 1) == 0 ? "Aa" : "BB");
+      res[i] = sb.toString();
+    }
+    return res;
+  }
+
+  private static void run(final String label, final String[] keys, final boolean seeded) {
+    final OCCHashMap<String, VersionedInt> map = new OCCHashMap<String, VersionedInt>();
+    if (seeded) map.enableHashSeeding();
+    final VersionedInt v = VersionedInt.v0(0);
+    final long t0 = System.nanoTime();
+    for (final String k : keys) map.put(k, v);
+    final long t1 = System.nanoTime();
+    int found = 0;
+    for (int rep = 0; rep < 10; rep++)
+      for (final String k : keys)
+        if (map.get(k) != null) found++;
+    final long t2 = System.nanoTime();
+    if (found != keys.length * 10) throw new AssertionError("Lookups went wrong: " + found);
+    System.out.printf("%-20s %12d %10.1f %10.1f%n", label, map.longestProbe(),
+        (double) (t1 - t0) / keys.length, (double) (t2 - t1) / (keys.length * 10));
+  }
+}
@@ -0,0 +1,61 @@
+package org.vvcephei.occ_map.perf;
+
+import org.vvcephei.occ_map.FrozenMap;
+import org.vvcephei.occ_map.OCCHashMap;
+import org.vvcephei.occ_map.OCCHashMapTest.VersionedInt;
+
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Latency of a single-threaded {@code get} that hits, and one that misses,
+ * on a table big enough to spill out of the last-level cache.  Keys are
+ * looked up in random order so that nearly every probe starts cold.
+ * Not run by the build; start it by hand, with enough heap:
+ * <pre>
+ *   java -Xmx4g -cp target/classes:target/test-classes org.vvcephei.occ_map.perf.ProbePerf [entries] [lookups]
+ * </pre>
+ * The default is 4M entries, far more than any LLC once keys, values and
+ * table are counted.  Results are nanoseconds per lookup, with
+ * ConcurrentHashMap as a baseline and the map's own {@link FrozenMap}.
+ */
+public class ProbePerf {
+
+  public static void main(final String[] args) {
+    final int entries = args.length > 0 ? Integer.parseInt(args[0]) : 1 << 22;
+    final int lookups = args.length > 1 ? Integer.parseInt(args[1]) : 1 << 22;
+
+    final OCCHashMap<Integer, VersionedInt> occ = new OCCHashMap<Integer, VersionedInt>();
+    final ConcurrentHashMap<Integer, VersionedInt> chm = new ConcurrentHashMap<Integer, VersionedInt>();
+    for (int i = 0; i < entries; i++) {
+      final VersionedInt v = VersionedInt.v0(i);
+      occ.put(i << 1, v);       // Even keys hit, odd keys miss
+      chm.put(i << 1, v);
+    }
+    final FrozenMap<Integer, VersionedInt> frozen = occ.freeze();
+    final Random r = new Random(42);
+    final Integer[] hits = new Integer[lookups], misses = new Integer[lookups];
+    for (int i = 0; i < lookups; i++) {
+      hits[i] = r.nextInt(entries) << 1;
+      misses[i] = (r.nextInt(entries) << 1) | 1;
+    }
+
+    System.out.printf("%d entries, %d lookups%n", entries, lookups);
+    System.out.printf("%-18s %10s %10s%n", "", "hit ns", "miss ns");
+    for (int round = 0; round < 3; round++) { // The first rounds warm up
+      System.out.printf("%-18s %10.1f %10.1f%n", "OCCHashMap", time(occ, hits, true), time(occ, misses, false));
+      System.out.printf("%-18s %10.1f %10.1f%n", "ConcurrentHashMap", time(chm, hits, true), time(chm, misses, false));
+      System.out.printf("%-18s %10.1f %10.1f%n", "FrozenMap", time(frozen, hits, true), time(frozen, misses, false));
+    }
+  }
+
+  private static double time(final java.util.Map<Integer, VersionedInt> map, final Integer[] keys, final boolean hit) {
+    final long t0 = System.nanoTime();
+    int found = 0;
+    for (final Integer k : keys)
+      if (map.get(k) != null) found++;
+    final long elapsed = System.nanoTime() - t0;
+    if (found != (hit ? keys.length : 0)) throw new AssertionError("Lookups went wrong: " + found);
+    return (double) elapsed / keys.length;
+  }
+}
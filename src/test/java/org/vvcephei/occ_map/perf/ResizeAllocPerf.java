@@ -0,0 +1,48 @@
+package org.vvcephei.occ_map.perf;
+
+import org.vvcephei.occ_map.OCCHashMap;
+import org.vvcephei.occ_map.OCCHashMapTest.VersionedInt;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Bytes allocated by table resizes.  The same keys and values are put into
+ * a map that starts small, and so grows through every table size, and
+ * into one sized for them up front; the difference is what the resizes
+ * allocated, per entry.  Old tables are counted too, so the floor is a
+ * few words per entry, whatever the copy protocol.
+ * Not run by the build; start it by hand, with enough heap:
+ * <pre>
+ *   java -Xmx4g -cp target/classes:target/test-classes org.vvcephei.occ_map.perf.ResizeAllocPerf [entries]
+ * </pre>
+ * Needs a JVM whose thread MXBean counts allocated bytes, as HotSpot's does.
+ */
+public class ResizeAllocPerf {
+
+  public static void main(final String[] args) {
+    final int entries = args.length > 0 ? Integer.parseInt(args[0]) : 1 << 21;
+    final Integer[] keys = new Integer[entries];
+    final VersionedInt[] vals = new VersionedInt[entries];
+    for (int i = 0; i < entries; i++) {
+      keys[i] = i;
+      vals[i] = VersionedInt.v0(i);
+    }
+    System.out.printf("%d entries%n", entries);
+    System.out.printf("%-10s %14s%n", "", "bytes/entry");
+    for (int round = 0; round < 3; round++) { // The first rounds warm up
+      final long grown = fill(new OCCHashMap<Integer, VersionedInt>(), keys, vals);
+      final long sized = fill(new OCCHashMap<Integer, VersionedInt>(entries << 1), keys, vals);
+      System.out.printf("%-10s %14.1f%n", "resizing", (double) (grown - sized) / entries);
+    }
+  }
+
+  private static long fill(final OCCHashMap<Integer, VersionedInt> map, final Integer[] keys, final VersionedInt[] vals) {
+    final com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    final long id = Thread.currentThread().getId();
+    final long b0 = mx.getThreadAllocatedBytes(id);
+    for (int i = 0; i < keys.length; i++) map.put(keys[i], vals[i]);
+    final long bytes = mx.getThreadAllocatedBytes(id) - b0;
+    if (map.size() != keys.length) throw new AssertionError("Puts went wrong: " + map.size());
+    return bytes;
+  }
+}